@@ -0,0 +1,25 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A source of bytes for segments whose data is not stored in a local file, for
+ * example an object in an object store. Implementations must implement
+ * equals and hashCode so that sources for the same object are equal, since
+ * the source forms part of the identity of a segment.
+ *
+ * @author tonyj
+ */
+public interface ByteRangeSource {
+
+    /**
+     * Read a range of bytes.
+     *
+     * @param position The position of the first byte to read
+     * @param length The number of bytes to read
+     * @return A future containing a big-endian buffer holding exactly the
+     * requested bytes
+     */
+    CompletableFuture<ByteBuffer> read(long position, int length);
+}
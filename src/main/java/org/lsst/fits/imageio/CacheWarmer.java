@@ -0,0 +1,197 @@
+package org.lsst.fits.imageio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.lsst.fits.imageio.bias.BiasCorrection;
+
+/**
+ * Watches directories for newly arriving CCD FITS files and focal plane or
+ * raft list files, and loads them into the caches of a {@link CachingReader}
+ * in the background, so that the first person to view a new exposure does
+ * not have to wait for it to be read, bias corrected and scaled.
+ * <p>
+ * Files are only warmed once no further changes have been seen for a settle
+ * time, to avoid reading files which are still being written. Files are warmed
+ * one at a time, and the reader loads them a CCD at a time on its own small
+ * pool of low priority threads, so warming never has much work in flight and
+ * does not compete heavily with interactive requests. The reader loads the
+ * images needed by the views which have recently been requested, so new
+ * exposures are ready in the way people are actually looking at them.
+ *
+ * @author tonyj
+ */
+public class CacheWarmer implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(CacheWarmer.class.getName());
+
+    private final CachingReader reader;
+    private final BiasCorrection biasCorrection;
+    private final long settleMillis;
+    private final int maxDepth;
+    private final char[] ccdWcsLetters;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+    private final Map<Path, ScheduledFuture<?>> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService warmExecutor;
+    private final Thread watchThread;
+
+    CacheWarmer(CachingReader reader, List<Path> roots, BiasCorrection biasCorrection) throws IOException {
+        this.reader = reader;
+        this.biasCorrection = biasCorrection;
+        this.settleMillis = Long.getLong("org.lsst.fits.imageio.warmSettleMillis", 2_000L);
+        this.maxDepth = Integer.getInteger("org.lsst.fits.imageio.warmDirectoryDepth", 2);
+        this.ccdWcsLetters = System.getProperty("org.lsst.fits.imageio.warmWcsLetters", "B").toCharArray();
+        this.watchService = roots.isEmpty() ? null : roots.get(0).getFileSystem().newWatchService();
+        this.warmExecutor = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "CacheWarmer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        for (Path root : roots) {
+            registerAll(root, maxDepth);
+        }
+        this.watchThread = new Thread(this::watch, "CacheWarmerWatch");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Register a directory, and its sub-directories down to the given depth.
+     */
+    private void registerAll(Path directory, int depth) throws IOException {
+        if (watchService == null) {
+            return;
+        }
+        try ( Stream<Path> dirs = Files.walk(directory, depth)) {
+            for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                directories.put(key, dir);
+            }
+        }
+    }
+
+    private void watch() {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            for (;;) {
+                WatchKey key = watchService.take();
+                Path dir = directories.get(key);
+                if (dir != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            LOG.log(Level.WARNING, "Watch events lost for {0}", dir);
+                            continue;
+                        }
+                        Path path = dir.resolve((Path) event.context());
+                        if (Files.isDirectory(path)) {
+                            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                newDirectory(path);
+                            }
+                        } else if (isWarmable(path)) {
+                            schedule(path);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    directories.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException x) {
+            // Shutting down
+        }
+    }
+
+    /**
+     * A new directory (for example for a new exposure) has appeared. Watch it,
+     * and warm any files which were created before we started watching.
+     */
+    private void newDirectory(Path path) {
+        try {
+            registerAll(path, maxDepth);
+            try ( Stream<Path> files = Files.walk(path, maxDepth)) {
+                files.filter((p) -> Files.isRegularFile(p) && isWarmable(p)).forEach(this::schedule);
+            }
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Unable to watch " + path, x);
+        }
+    }
+
+    private static boolean isWarmable(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(".fits") || name.endsWith(".fits.fz") || name.endsWith(".fp") || name.endsWith(".raft");
+    }
+
+    /**
+     * Schedule a file to be warmed once it has stopped changing. Each new
+     * event for the file restarts the settle time.
+     */
+    private void schedule(Path path) {
+        pending.compute(path, (p, previous) -> {
+            if (previous != null) {
+                previous.cancel(false);
+            }
+            return warmExecutor.schedule(() -> {
+                pending.remove(p);
+                warm(p);
+            }, settleMillis, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void warm(Path path) {
+        String name = path.getFileName().toString();
+        List<String> lines = new ArrayList<>();
+        char[] wcsLetters;
+        if (name.endsWith(".fp") || name.endsWith(".raft")) {
+            wcsLetters = new char[]{name.endsWith(".fp") ? 'E' : 'Q'};
+            try {
+                for (String line : Files.readAllLines(path)) {
+                    if (!line.startsWith("#")) {
+                        lines.add(line);
+                    }
+                }
+            } catch (IOException x) {
+                LOG.log(Level.FINE, "Unable to read " + path, x);
+                return;
+            }
+        } else {
+            wcsLetters = ccdWcsLetters;
+            lines.add(path.toString());
+        }
+        Timed.execute(() -> {
+            for (char wcsLetter : wcsLetters) {
+                reader.warm(lines, wcsLetter, biasCorrection);
+            }
+            return null;
+        }, "Warming %s took %dms", path);
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchThread.interrupt();
+        if (watchService != null) {
+            watchService.close();
+        }
+        warmExecutor.shutdownNow();
+    }
+}
@@ -1,17 +1,22 @@
 package org.lsst.fits.imageio;
 
+import com.github.benmanes.caffeine.cache.AsyncCacheLoader;
 import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.github.benmanes.caffeine.cache.Weigher;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
-import java.awt.image.LookupOp;
+import java.awt.image.IndexColorModel;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.util.ArrayList;
@@ -19,6 +24,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.ServiceLoader;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.CompletableFuture;
@@ -26,16 +33,20 @@ import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.stream.ImageInputStream;
 import nom.tam.fits.FitsException;
-import nom.tam.fits.Header;
 import nom.tam.fits.TruncatedFileException;
-import nom.tam.util.BufferedFile;
 import org.lsst.fits.imageio.bias.BiasCorrection;
 import org.lsst.fits.imageio.bias.BiasCorrection.CorrectionFactors;
 import org.lsst.fits.imageio.bias.NullBiasCorrection;
@@ -56,110 +67,195 @@ public class CachingReader {
 
     /**
      * Caches the rawdata for a segment. Rawdata is the pixel data as read from
-     * disk
+     * disk. Unless disabled the data is stored off heap, and freed when evicted,
+     * so it must be accessed via {@link #withRawData}.
      */
     private final AsyncLoadingCache<Segment, RawData> rawDataCache;
 
-    // Note: Using a long array as a hash key is probably a bad idea, since presambly it requires scanning all the 
-    // values to compute the hash.
-    private record SegmentBiasCorrectionAndCounts(Segment segment, BiasCorrection biasCorrection, long[] counts) {}
+    /**
+     * Caches the bytes of compressed segments as read from disk, which are
+     * typically several times smaller than the decoded pixels. A segment
+     * evicted from the rawDataCache is decoded again from here, rather than
+     * being reread from the file. Disabled if the size is set to zero.
+     */
+    private final Cache<Segment.DataKey, ByteBuffer> compressedDataCache;
+    private final boolean cacheCompressedData;
+
+    private record SegmentBiasCorrectionAndCounts(Segment segment, BiasCorrection biasCorrection, GlobalScale globalScale) {}
     private final AsyncLoadingCache<SegmentBiasCorrectionAndCounts, BufferedImage> bufferedImageCache;
 
+    /**
+     * Caches partially read raw data for uncompressed segments, used for region
+     * of interest requests which only touch a few rows of a segment.
+     */
+    private final Cache<Segment, PartialRawData> partialRawDataCache;
+
     private record SegmentListAndBiasCorrection(List<Segment> segments, BiasCorrection biasCorrection) {}
-    private final AsyncLoadingCache<SegmentListAndBiasCorrection, long[]> globalScalingCache;
+    private final AsyncLoadingCache<SegmentListAndBiasCorrection, GlobalScale> globalScalingCache;
 
     private record SegmentAndBiasCorrection(Segment segment, BiasCorrection biasCorrection) {}
     private final AsyncLoadingCache<SegmentAndBiasCorrection, CorrectionFactors> biasCorrectionCache;
 
+    /**
+     * Files which have been checked for modification within the last check
+     * interval, so are not checked again until the entry expires.
+     */
+    private final Cache<File, Boolean> recentlyCheckedFiles;
+    private final boolean checkFiles;
+
     /**
      * Caches the lines read from the ImageInputStream
      */
     private final LoadingCache<ImageInputStream, List<String>> linesCache;
 
+    /**
+     * Optional second level cache of rendered images on local disk, consulted
+     * before rendering images from the raw data.
+     */
+    private final ImageDiskCache imageDiskCache;
+
+    /**
+     * Shares memory between the weighted caches above.
+     */
+    private final MemoryBudget memoryBudget;
+
+    /**
+     * The ways in which images have recently been viewed, so that the cache
+     * warmer can load the same cache entries for newly arriving images.
+     */
+    private record RequestedView(char wcsLetter, BiasCorrection biasCorrection, boolean globalScale, int xSubsampling, int ySubsampling) {}
+    private final Cache<RequestedView, Boolean> requestedViews;
+
+    /**
+     * Runs the reads and decoding started by the cache warmer, so that warming
+     * is limited to a few low priority threads rather than competing with
+     * interactive requests for the common pool.
+     */
+    private final ExecutorService warmExecutor;
+
     private static final Logger LOG = Logger.getLogger(CachingReader.class.getName());
+    // The size of the histogram held by each global scale
+    private static final int GLOBAL_SCALE_BYTES = (1 << 18) * 8;
+    private static final List<SegmentSource> SEGMENT_SOURCES = loadSegmentSources();
+    // If true, files which are still being written return the segments written so far (see PartialSegmentList)
+    private static final boolean FOLLOW_GROWING_FILES = Boolean.parseBoolean(System.getProperty("org.lsst.fits.imageio.followGrowingFiles", "true"));
+    // If true the raw data in the rawDataCache is stored off heap
+    private static final boolean OFF_HEAP_RAW_DATA = !"false".equals(System.getProperty("org.lsst.fits.imageio.offHeapRawData"));
+    private static final boolean DECIMATED_READS = Boolean.parseBoolean(System.getProperty("org.lsst.fits.imageio.decimatedReads", "true"));
 
     public CachingReader() {
 
+        imageDiskCache = ImageDiskCache.create();
+
         segmentCache = Caffeine.newBuilder()
                 .maximumSize(Integer.getInteger("org.lsst.fits.imageio.segmentCacheSize", 10_000))
                 .recordStats()
-                .buildAsync((SegmentCacheKey key) -> {
-                    return Timed.execute(() -> {
-                        return readSegment(key.line, key.wcsLetter, key.wcsOverride);
-                    }, "Loading %s took %dms", key.line);
+                .buildAsync(new CacheLoader<SegmentCacheKey, List<Segment>>() {
+                    @Override
+                    public List<Segment> load(SegmentCacheKey key) throws Exception {
+                        return Timed.execute(() -> {
+                            return readSegment(key.line, key.wcsLetter, key.wcsOverride);
+                        }, "Loading %s took %dms", key.line);
+                    }
+
+                    @Override
+                    public List<Segment> reload(SegmentCacheKey key, List<Segment> oldValue) throws Exception {
+                        List<Segment> newValue = load(key);
+                        if (oldValue instanceof PartialSegmentList partial) {
+                            partial.merge(newValue, CachingReader.this::carryOver);
+                            invalidate(partial);
+                        }
+                        return newValue;
+                    }
                 });
 
-        Weigher<Segment, RawData> rawDataWeigher = (Segment k1, RawData rawData) -> rawData.getBuffer().capacity() * 4;
+        long compressedDataCacheSize = Long.getLong("org.lsst.fits.imageio.compressedDataCacheSizeBytes", 1_000_000_000L);
+        cacheCompressedData = compressedDataCacheSize > 0;
+        Weigher<Segment.DataKey, ByteBuffer> compressedDataWeigher = (Segment.DataKey key, ByteBuffer bb) -> bb.capacity();
+        compressedDataCache = Caffeine.newBuilder()
+                .weigher(compressedDataWeigher)
+                .maximumWeight(compressedDataCacheSize)
+                .recordStats()
+                .build();
+
+        long rawDataCacheSize = Long.getLong("org.lsst.fits.imageio.rawDataCacheSizeBytes", 1_000_000_000L);
+        Weigher<Segment, RawData> rawDataWeigher = (Segment k1, RawData rawData) -> (int) Math.min(Integer.MAX_VALUE, rawData.getMemorySize());
         rawDataCache = Caffeine.newBuilder()
                 .weigher(rawDataWeigher)
-                .maximumWeight(Long.getLong("org.lsst.fits.imageio.rawDataCacheSizeBytes", 1_000_000_000L))
+                .maximumWeight(rawDataCacheSize)
+                .removalListener((Segment segment, RawData rawData, RemovalCause cause) -> {
+                    // Drop the cache's reference, which frees off heap data once no longer in use
+                    if (rawData != null) {
+                        rawData.release();
+                    }
+                })
                 .recordStats()
-                .buildAsync((Segment segment, Executor executor) -> segment.readRawDataAsync(executor));
+                .buildAsync(new AsyncCacheLoader<Segment, RawData>() {
+                    @Override
+                    public CompletableFuture<RawData> asyncLoad(Segment segment, Executor executor) {
+                        return loadRawData(segment, executor);
+                    }
+
+                    @Override
+                    public CompletableFuture<Map<Segment, RawData>> asyncLoadAll(Set<? extends Segment> segments, Executor executor) {
+                        return loadAllRawData(segments, executor);
+                    }
+                });
+
+        long partialRawDataCacheSize = Long.getLong("org.lsst.fits.imageio.partialRawDataCacheSizeBytes", 500_000_000L);
+        Weigher<Segment, PartialRawData> partialRawDataWeigher = (Segment segment, PartialRawData partial) -> partial.getWeight();
+        partialRawDataCache = Caffeine.newBuilder()
+                .weigher(partialRawDataWeigher)
+                .maximumWeight(partialRawDataCacheSize)
+                .recordStats()
+                .build();
 
         biasCorrectionCache = Caffeine.newBuilder()
                 .maximumSize(Integer.getInteger("org.lsst.fits.imageio.biasCorrectionCacheSize", 10_000))
                 .recordStats()
-                .buildAsync((SegmentAndBiasCorrection key, Executor executor) -> {
-                    Segment segment = key.segment;
-                    return rawDataCache.get(segment).thenApply(rawData -> {
-                        if (rawData.getBuffer() instanceof IntBuffer intBuffer) {
-                            return key.biasCorrection.compute(intBuffer, segment);
-                        } else {
-                            return new NullBiasCorrection().compute(null, segment);
-                        }
-                    });
-                });
+                .buildAsync((SegmentAndBiasCorrection key, Executor executor) -> loadCorrectionFactors(key, null));
+
+        requestedViews = Caffeine.newBuilder()
+                .maximumSize(Integer.getInteger("org.lsst.fits.imageio.warmViewCount", 16))
+                .expireAfterAccess(Long.getLong("org.lsst.fits.imageio.warmViewExpiryMinutes", 60L), TimeUnit.MINUTES)
+                .build();
+        warmExecutor = Executors.newFixedThreadPool(Math.max(1, Integer.getInteger("org.lsst.fits.imageio.warmThreads", 2)), (Runnable r) -> {
+            Thread thread = new Thread(r, "CacheWarmerLoad");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
 
-        Weigher<SegmentBiasCorrectionAndCounts, BufferedImage> buffedImageWeigher = (SegmentBiasCorrectionAndCounts k1, BufferedImage bi) -> bi.getHeight() * bi.getWidth() * 4;
+        long bufferedImageCacheSize = Long.getLong("org.lsst.fits.imageio.bufferedImageCacheSizeBytes", 5_000_000_000L);
+        Weigher<SegmentBiasCorrectionAndCounts, BufferedImage> buffedImageWeigher = (SegmentBiasCorrectionAndCounts k1, BufferedImage bi) -> imageBytes(bi);
         bufferedImageCache = Caffeine.newBuilder()
                 .weigher(buffedImageWeigher)
-                .maximumWeight(Long.getLong("org.lsst.fits.imageio.bufferedImageCacheSizeBytes", 5_000_000_000L))
+                .maximumWeight(bufferedImageCacheSize)
                 .recordStats()
-                .buildAsync((SegmentBiasCorrectionAndCounts key, Executor executor) -> {
-                    return rawDataCache.get(key.segment).thenApply(rawData -> {
-                        return biasCorrectionCache.get(new SegmentAndBiasCorrection(key.segment, key.biasCorrection)).thenApply(factors -> {
-                            return Timed.execute(() -> {
-                                if (rawData.getBuffer() instanceof IntBuffer) {
-                                    return createBufferedImage((RawData<IntBuffer>) rawData, factors, key.counts);
-                                } else {
-                                    return createBufferedImage((RawData<FloatBuffer>) rawData);
-                                }
-                            }, "Loading buffered image for segment %s took %dms", key.segment);
-                        }).join();
-                    });
-                });
+                .buildAsync(this::loadBufferedImage);
 
+        // Each global scale is a 2MB histogram, so this is weighed rather than limited by entry count
+        long globalScalingCacheSize = Long.getLong("org.lsst.fits.imageio.globalScalingCacheSizeBytes", 200_000_000L);
+        Integer globalScalingCacheEntries = Integer.getInteger("org.lsst.fits.imageio.globalScalingCacheSize");
+        if (globalScalingCacheEntries != null && System.getProperty("org.lsst.fits.imageio.globalScalingCacheSizeBytes") == null) {
+            // The old entry count property, still honoured if the size in bytes has not been given
+            globalScalingCacheSize = globalScalingCacheEntries * (long) GLOBAL_SCALE_BYTES;
+            LOG.log(Level.WARNING, "org.lsst.fits.imageio.globalScalingCacheSize is deprecated, using {0} bytes, set org.lsst.fits.imageio.globalScalingCacheSizeBytes instead", globalScalingCacheSize);
+        }
+        Weigher<SegmentListAndBiasCorrection, GlobalScale> globalScalingWeigher = (SegmentListAndBiasCorrection key, GlobalScale scale) -> scale.counts().length * 8;
         globalScalingCache = Caffeine.newBuilder()
-                .maximumSize(Integer.getInteger("org.lsst.fits.imageio.globalScalingCacheSize", 10_000))
+                .weigher(globalScalingWeigher)
+                .maximumWeight(globalScalingCacheSize)
                 .recordStats()
-                .buildAsync((SegmentListAndBiasCorrection key, Executor executor) -> {
-                    LOG.log(Level.FINE, "Building global scale for {0} {1} {2}", new Object[]{key.hashCode(), key.segments.hashCode(), key.biasCorrection.hashCode()});
-                    List<CompletableFuture<ScalingUtils>> histograms = new ArrayList<>();
-                    for (Segment segment : key.segments) {
-                        histograms.add(rawDataCache.get(segment).thenApply((rawData) -> {
-                            return biasCorrectionCache.get(new SegmentAndBiasCorrection(segment, key.biasCorrection)).thenApply(correctionFactors -> {
-                                IntBuffer intData = (IntBuffer) rawData.getBuffer();
-                                return histogram(segment.getDataSec(), intData, segment, correctionFactors);
-                            }).join(); // Not clear doing a join inside the loop is optimal
-                        }));
-                    }
-                    return CompletableFuture.allOf(histograms.toArray(CompletableFuture[]::new)).thenApply((v) -> {
-                        try {
-                            long[] counts = new long[1 << 18];
-                            for (CompletableFuture<ScalingUtils> future : histograms) {
-                                ScalingUtils su = future.get();
-                                LOG.log(Level.FINE, "Adding bins with max {0}", su.getHighestOccupiedBin());
-                                for (int i = su.getLowestOccupiedBin(); i <= su.getHighestOccupiedBin(); i++) {
-                                    counts[i] += su.getCount(i);
-                                }
-                            }
-                            return counts;
-                        } catch (ExecutionException | InterruptedException x) {
-                            throw new RuntimeException("Error computing global scale", x);
-                        }
-                    });
+                .buildAsync(this::loadGlobalScale);
 
-                });
+        // Interval (in ms) between checks that cached files have not been modified, negative to never check
+        long fileCheckInterval = Long.getLong("org.lsst.fits.imageio.fileCheckIntervalMillis", 10_000L);
+        checkFiles = fileCheckInterval >= 0;
+        recentlyCheckedFiles = Caffeine.newBuilder()
+                .maximumSize(Integer.getInteger("org.lsst.fits.imageio.segmentCacheSize", 10_000))
+                .expireAfterWrite(Math.max(0, fileCheckInterval), TimeUnit.MILLISECONDS)
+                .build();
 
         linesCache = Caffeine.newBuilder()
                 .maximumSize(Integer.getInteger("org.lsst.fits.imageio.linesCacheSize", 10_000))
@@ -180,6 +276,17 @@ public class CachingReader {
                         return lines;
                     }, "Read lines in %dms");
                 });
+        // Share a single memory budget between the weighted caches
+        memoryBudget = MemoryBudget.create(compressedDataCacheSize + rawDataCacheSize + partialRawDataCacheSize + bufferedImageCacheSize + globalScalingCacheSize);
+        if (cacheCompressedData) {
+            memoryBudget.add(MemoryBudget.tier("compressedData", MemoryBudget.Pool.HEAP, compressedDataCache), compressedDataCacheSize);
+        }
+        memoryBudget.add(MemoryBudget.tier("rawData", OFF_HEAP_RAW_DATA ? MemoryBudget.Pool.DIRECT : MemoryBudget.Pool.HEAP, rawDataCache.synchronous()), rawDataCacheSize);
+        memoryBudget.add(MemoryBudget.tier("partialRawData", MemoryBudget.Pool.HEAP, partialRawDataCache), partialRawDataCacheSize);
+        memoryBudget.add(MemoryBudget.tier("bufferedImage", MemoryBudget.Pool.HEAP, bufferedImageCache.synchronous()), bufferedImageCacheSize);
+        memoryBudget.add(MemoryBudget.tier("globalScaling", MemoryBudget.Pool.HEAP, globalScalingCache.synchronous()), globalScalingCacheSize);
+        memoryBudget.allocate();
+
         // Report stats every minute
         Timer timer = new Timer(true);
         timer.schedule(new TimerTask() {
@@ -188,6 +295,15 @@ public class CachingReader {
                 report();
             }
         }, 60_000, 60_000);
+        long rebalanceInterval = Long.getLong("org.lsst.fits.imageio.memoryRebalanceIntervalMillis", 10_000L);
+        if (rebalanceInterval > 0) {
+            timer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    memoryBudget.rebalance();
+                }
+            }, rebalanceInterval, rebalanceInterval);
+        }
     }
 
     void report() {
@@ -195,12 +311,22 @@ public class CachingReader {
         LOG.log(Level.INFO, "segment Cache size {0} stats {1}", new Object[]{s1.estimatedSize(), s1.stats()});
         LoadingCache<Segment, RawData> s2 = rawDataCache.synchronous();
         LOG.log(Level.INFO, "rawData Cache size {0} stats {1}", new Object[]{s2.estimatedSize(), s2.stats()});
+        LOG.log(Level.INFO, "compressedData Cache size {0} stats {1}", new Object[]{compressedDataCache.estimatedSize(), compressedDataCache.stats()});
+        LOG.log(Level.INFO, "partialRawData Cache size {0} stats {1}", new Object[]{partialRawDataCache.estimatedSize(), partialRawDataCache.stats()});
         LoadingCache<SegmentBiasCorrectionAndCounts, BufferedImage> s3 = bufferedImageCache.synchronous();
         LOG.log(Level.INFO, "bufferedImage Cache size {0} stats {1}", new Object[]{s3.estimatedSize(), s3.stats()});
-        LoadingCache<SegmentListAndBiasCorrection, long[]> s4 = globalScalingCache.synchronous();
+        LoadingCache<SegmentListAndBiasCorrection, GlobalScale> s4 = globalScalingCache.synchronous();
         LOG.log(Level.INFO, "globalScaling Cache size {0} stats {1}", new Object[]{s4.estimatedSize(), s4.stats()});
         LoadingCache<SegmentAndBiasCorrection, CorrectionFactors> s5 = biasCorrectionCache.synchronous();
         LOG.log(Level.INFO, "biasCorrection Cache size {0} stats {1}", new Object[]{s5.estimatedSize(), s5.stats()});
+        LOG.log(Level.INFO, "file channel pool {0}", FileChannelPool.instance());
+        LOG.log(Level.INFO, "direct buffer pool {0}", DirectBufferPool.instance());
+        LOG.log(Level.INFO, "off heap memory {0} bytes", OffHeapMemory.getAllocatedBytes());
+        LOG.log(Level.INFO, "memory budget {0}", memoryBudget);
+        if (imageDiskCache != null) {
+            LOG.log(Level.INFO, "image disk cache {0}", imageDiskCache);
+        }
+        LOG.log(Level.INFO, "object store requests {0}", HttpByteRangeSource.getRequestCount());
     }
 
     int preReadImage(ImageInputStream fileInput) {
@@ -208,14 +334,30 @@ public class CachingReader {
         return lines == null ? 0 : lines.size();
     }
 
-    void readImage(ImageInputStream fileInput, Rectangle sourceRegion, Graphics2D g, RGBColorMap cmap, BiasCorrection bc, boolean showBiasRegion, char wcsLetter, long[] globalScale, Map<String, Map<String, Object>> wcsOverride) throws IOException {
+    void readImage(ImageInputStream fileInput, Rectangle sourceRegion, Graphics2D g, RGBColorMap cmap, BiasCorrection bc, boolean showBiasRegion, char wcsLetter, GlobalScale globalScale, Map<String, Map<String, Object>> wcsOverride) throws IOException {
+        readImage(fileInput, sourceRegion, g, cmap, bc, showBiasRegion, wcsLetter, globalScale, wcsOverride, 1, 1);
+    }
+
+    void readImage(ImageInputStream fileInput, Rectangle sourceRegion, Graphics2D g, RGBColorMap cmap, BiasCorrection bc, boolean showBiasRegion, char wcsLetter, GlobalScale globalScale, Map<String, Map<String, Object>> wcsOverride, int xSubsampling, int ySubsampling) throws IOException {
+        if (globalScale == null) {
+            recordView(wcsLetter, bc, false, wcsOverride, showBiasRegion, xSubsampling, ySubsampling);
+        }
         try {
             Queue<CompletableFuture<Void>> segmentsCompletables = new ConcurrentLinkedQueue<>();
             Queue<CompletableFuture<Void>> bufferedImageCompletables = new ConcurrentLinkedQueue<>();
             List<String> lines = linesCache.get(fileInput);
-            lines.stream().map((line) -> segmentCache.get(new SegmentCacheKey(line, wcsLetter, wcsOverride))).forEach((CompletableFuture<List<Segment>> futureSegments) -> {
+            lines.stream().map((line) -> getSegments(new SegmentCacheKey(line, wcsLetter, wcsOverride))).forEach((CompletableFuture<List<Segment>> futureSegments) -> {
                 segmentsCompletables.add(futureSegments.thenAccept((List<Segment> segments) -> {
-                    List<Segment> segmentsToRead = computeSegmentsToRead(segments, sourceRegion);
+                    List<Segment> segmentsToRead = new ArrayList<>();
+                    for (Segment segment : decimate(computeSegmentsToRead(segments, sourceRegion), showBiasRegion, xSubsampling, ySubsampling)) {
+                        CompletableFuture<Void> partial = drawPartialSegment(segment, sourceRegion, g, cmap, bc, showBiasRegion, globalScale);
+                        if (partial != null) {
+                            bufferedImageCompletables.add(partial);
+                        } else {
+                            segmentsToRead.add(segment);
+                        }
+                    }
+                    prefetchRawData(segments, segmentsToRead, bc, globalScale);
                     segmentsToRead.stream().forEach((Segment segment) -> {
                         CompletableFuture<BufferedImage> fbi = bufferedImageCache.get(new SegmentBiasCorrectionAndCounts(segment, bc, globalScale));
                         bufferedImageCompletables.add(fbi.thenAccept((BufferedImage bi) -> {
@@ -230,11 +372,7 @@ public class CachingReader {
                                     Rectangle datasec = segment.getDataSec();
                                     subimage = bi.getSubimage(datasec.x, datasec.y, datasec.width, datasec.height);
                                 }
-                                if (cmap != CameraImageReader.DEFAULT_COLOR_MAP) {
-                                    LookupOp op = cmap.getLookupOp();
-                                    subimage = op.filter(subimage, null);
-                                }
-                                g2.drawImage(subimage, 0, 0, null);
+                                g2.drawImage(withColorMap(subimage, cmap), 0, 0, null);
                                 g2.dispose();
                                 return null;
                             }, "drawImage for segment %s took %dms", segment);
@@ -258,23 +396,21 @@ public class CachingReader {
     }
 
     void readImageWithOnTheFlyGlobalScale(ImageInputStream fileInput, Rectangle sourceRegion, Graphics2D g, RGBColorMap cmap, BiasCorrection bc, boolean showBiasRegion, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) throws IOException {
+        readImageWithOnTheFlyGlobalScale(fileInput, sourceRegion, g, cmap, bc, showBiasRegion, wcsLetter, wcsOverride, 1, 1);
+    }
 
+    void readImageWithOnTheFlyGlobalScale(ImageInputStream fileInput, Rectangle sourceRegion, Graphics2D g, RGBColorMap cmap, BiasCorrection bc, boolean showBiasRegion, char wcsLetter, Map<String, Map<String, Object>> wcsOverride, int xSubsampling, int ySubsampling) throws IOException {
+        recordView(wcsLetter, bc, true, wcsOverride, showBiasRegion, xSubsampling, ySubsampling);
         try {
-            Queue<CompletableFuture<Void>> segmentsCompletables = new ConcurrentLinkedQueue<>();
             Queue<CompletableFuture<Void>> bufferedImageCompletables = new ConcurrentLinkedQueue<>();
             Queue<CompletableFuture<Void>> globalScaleCompletable = new ConcurrentLinkedQueue<>();
             List<String> lines = linesCache.get(fileInput);
-            List<Segment> allSegments = new ArrayList<>();
-            lines.stream().map((line) -> segmentCache.get(new SegmentCacheKey(line, wcsLetter, wcsOverride))).forEach((CompletableFuture<List<Segment>> futureSegments) -> {
-                segmentsCompletables.add(futureSegments.thenAccept((List<Segment> segments) -> {
-                    allSegments.addAll(segments);
-                }));
-            });
-            LOG.log(Level.INFO, "Waiting for {0} files", segmentsCompletables.size());
-            CompletableFuture.allOf(segmentsCompletables.toArray(CompletableFuture[]::new)).join();
+            LOG.log(Level.INFO, "Waiting for {0} files", lines.size());
+            List<Segment> allSegments = getAllSegments(lines, wcsLetter, wcsOverride);
 
-            globalScaleCompletable.add(globalScalingCache.get(new SegmentListAndBiasCorrection(allSegments, bc)).thenAccept((long[] globalScale) -> {
-                List<Segment> segmentsToRead = computeSegmentsToRead(allSegments, sourceRegion);
+            globalScaleCompletable.add(globalScalingCache.get(new SegmentListAndBiasCorrection(allSegments, bc)).thenAccept((GlobalScale globalScale) -> {
+                // The global scale is computed from the full resolution data, only the drawn segments are decimated
+                List<Segment> segmentsToRead = decimate(computeSegmentsToRead(allSegments, sourceRegion), showBiasRegion, xSubsampling, ySubsampling);
                 segmentsToRead.stream().forEach((Segment segment) -> {
                     CompletableFuture<BufferedImage> fbi = bufferedImageCache.get(new SegmentBiasCorrectionAndCounts(segment, bc, globalScale));
                     bufferedImageCompletables.add(fbi.thenAccept((BufferedImage bi) -> {
@@ -289,11 +425,7 @@ public class CachingReader {
                                 Rectangle datasec = segment.getDataSec();
                                 subimage = bi.getSubimage(datasec.x, datasec.y, datasec.width, datasec.height);
                             }
-                            if (cmap != CameraImageReader.DEFAULT_COLOR_MAP) {
-                                LookupOp op = cmap.getLookupOp();
-                                subimage = op.filter(subimage, null);
-                            }
-                            g2.drawImage(subimage, 0, 0, null);
+                            g2.drawImage(withColorMap(subimage, cmap), 0, 0, null);
                             g2.dispose();
                             return null;
                         }, "drawImage for segment %s took %dms", segment);
@@ -316,6 +448,292 @@ public class CachingReader {
         }
     }
 
+    /**
+     * Get the segments for all of the lines, in line order, so that the same
+     * lines always give an equal list of segments.
+     */
+    private List<Segment> getAllSegments(List<String> lines, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) {
+        List<CompletableFuture<List<Segment>>> futures = lines.stream()
+                .map((line) -> getSegments(new SegmentCacheKey(line, wcsLetter, wcsOverride)))
+                .collect(Collectors.toList());
+        List<Segment> allSegments = new ArrayList<>();
+        for (CompletableFuture<List<Segment>> future : futures) {
+            allSegments.addAll(future.join());
+        }
+        return allSegments;
+    }
+
+    /**
+     * Get the segments for a line, first checking that the file they were read
+     * from has not been modified since. If it has the segments are re-read,
+     * and any cached data for the old segments is discarded. For files which
+     * are still being written, the file is re-read in the background if it has
+     * grown, while the segments which are already available continue to be
+     * used.
+     */
+    private CompletableFuture<List<Segment>> getSegments(SegmentCacheKey key) {
+        CompletableFuture<List<Segment>> result = segmentCache.get(key);
+        if (result.isDone() && !result.isCompletedExceptionally() && result.join() instanceof PartialSegmentList partial) {
+            if (partial.shouldReload()) {
+                if (partial.isAbandoned()) {
+                    // Read again without following, which reports the file as truncated
+                    LOG.log(Level.WARNING, "File {0} stopped growing before it was complete", key.line);
+                    segmentCache.synchronous().invalidate(key);
+                    invalidate(partial);
+                    result = segmentCache.get(key);
+                } else {
+                    segmentCache.synchronous().refresh(key);
+                }
+            }
+        } else if (checkFiles && result.isDone() && !result.isCompletedExceptionally()) {
+            List<Segment> segments = result.join();
+            // All of the segments share the identity of the file they were read from
+            if (!segments.isEmpty() && isModified(segments.get(0))) {
+                LOG.log(Level.INFO, "Reloading modified file {0}", segments.get(0).getFile());
+                segmentCache.synchronous().invalidate(key);
+                invalidate(segments);
+                result = segmentCache.get(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Move the raw data already read for a segment of a growing file to the
+     * same segment read again with the file's new identity, so that it does
+     * not have to be read again.
+     */
+    private void carryOver(Segment old, Segment segment) {
+        CompletableFuture<RawData> cached = rawDataCache.getIfPresent(old);
+        if (cached != null && cached.isDone() && !cached.isCompletedExceptionally()) {
+            RawData rawData = cached.join();
+            // The new entry holds its own reference, the old entry's is released when it is invalidated
+            if (rawData.retain()) {
+                rawDataCache.put(segment, CompletableFuture.completedFuture(rawData));
+            }
+        }
+    }
+
+    private boolean isModified(Segment segment) {
+        File file = segment.getFile();
+        FileIdentity identity = segment.getFileIdentity();
+        // Remote objects are treated as immutable
+        if (file == null || identity == null || recentlyCheckedFiles.getIfPresent(file) != null) {
+            return false;
+        }
+        recentlyCheckedFiles.put(file, Boolean.TRUE);
+        return !identity.matches(file);
+    }
+
+    private CompletableFuture<RawData> loadRawData(Segment segment, Executor executor) {
+        CompletableFuture<RawData> decoded = decodeCachedCompressedData(segment, executor);
+        CompletableFuture<RawData> result = decoded != null ? decoded : segment.readRawDataAsync(executor, cacheCompressedData ? this::storeCompressedData : null, OFF_HEAP_RAW_DATA);
+        return result.thenApply(CachingReader::toCachedRawData);
+    }
+
+    private CompletableFuture<Map<Segment, RawData>> loadAllRawData(Set<? extends Segment> segments, Executor executor) {
+        Map<Segment, CompletableFuture<RawData>> decoded = new HashMap<>();
+        List<Segment> toRead = new ArrayList<>();
+        for (Segment segment : segments) {
+            CompletableFuture<RawData> future = decodeCachedCompressedData(segment, executor);
+            if (future != null) {
+                decoded.put(segment, future);
+            } else {
+                toRead.add(segment);
+            }
+        }
+        CompletableFuture<Map<Segment, RawData>> read = Segment.readRawDataAsync(toRead, executor, cacheCompressedData ? this::storeCompressedData : null, OFF_HEAP_RAW_DATA);
+        return read.thenCombine(CompletableFuture.allOf(decoded.values().toArray(CompletableFuture[]::new)), (result, v) -> {
+            decoded.forEach((segment, future) -> result.put(segment, future.join()));
+            result.replaceAll((segment, rawData) -> toCachedRawData(rawData));
+            return result;
+        });
+    }
+
+    private CompletableFuture<BufferedImage> loadBufferedImage(SegmentBiasCorrectionAndCounts key, Executor executor) {
+        if (imageDiskCache == null) {
+            return renderImage(key, executor);
+        }
+        String descriptor = imageDescriptor(key);
+        return CompletableFuture.supplyAsync(() -> imageDiskCache.read(descriptor, SegmentImageType.INSTANCE), executor).thenCompose(image -> {
+            if (image != null) {
+                return CompletableFuture.completedFuture(image);
+            }
+            return renderImage(key, executor).thenApply(rendered -> {
+                imageDiskCache.writeAsync(descriptor, rendered);
+                return rendered;
+            });
+        });
+    }
+
+    private CompletableFuture<GlobalScale> loadGlobalScale(SegmentListAndBiasCorrection key, Executor executor) {
+        LOG.log(Level.FINE, "Building global scale for {0} {1} {2}", new Object[]{key.hashCode(), key.segments.hashCode(), key.biasCorrection.hashCode()});
+        // Read all of the missing raw data in bulk, rather than one segment at a time
+        rawDataCache.getAll(key.segments, (segments, e) -> loadAllRawData(segments, executor));
+        List<CompletableFuture<ScalingUtils>> histograms = new ArrayList<>();
+        for (Segment segment : key.segments) {
+            histograms.add(withRawData(segment, executor, (rawData) -> {
+                return getCorrectionFactors(new SegmentAndBiasCorrection(segment, key.biasCorrection), executor).thenApply(correctionFactors -> {
+                    IntBuffer intData = (IntBuffer) rawData.getBuffer();
+                    return histogram(segment.getDataSec(), intData, segment, correctionFactors);
+                }).join(); // Not clear doing a join inside the loop is optimal
+            }));
+        }
+        return CompletableFuture.allOf(histograms.toArray(CompletableFuture[]::new)).thenApply((v) -> {
+            try {
+                long[] counts = new long[1 << 18];
+                for (CompletableFuture<ScalingUtils> future : histograms) {
+                    ScalingUtils su = future.get();
+                    LOG.log(Level.FINE, "Adding bins with max {0}", su.getHighestOccupiedBin());
+                    for (int i = su.getLowestOccupiedBin(); i <= su.getHighestOccupiedBin(); i++) {
+                        counts[i] += su.getCount(i);
+                    }
+                }
+                return GlobalScale.wrap(counts);
+            } catch (ExecutionException | InterruptedException x) {
+                throw new RuntimeException("Error computing global scale", x);
+            }
+        });
+    }
+
+    private CompletableFuture<CorrectionFactors> loadCorrectionFactors(SegmentAndBiasCorrection key, Executor executor) {
+        Segment segment = key.segment;
+        return withRawData(segment, executor, rawData -> {
+            if (rawData.getBuffer() instanceof IntBuffer intBuffer) {
+                return key.biasCorrection.compute(intBuffer, segment);
+            } else {
+                return new NullBiasCorrection().compute(null, segment);
+            }
+        });
+    }
+
+    /**
+     * Get the bias correction factors, loading any missing raw data with the
+     * given executor.
+     */
+    private CompletableFuture<CorrectionFactors> getCorrectionFactors(SegmentAndBiasCorrection key, Executor executor) {
+        return executor == null ? biasCorrectionCache.get(key) : biasCorrectionCache.get(key, (k, e) -> loadCorrectionFactors(k, executor));
+    }
+
+    private CompletableFuture<BufferedImage> renderImage(SegmentBiasCorrectionAndCounts key, Executor executor) {
+        return withRawData(key.segment, executor, rawData -> {
+            return getCorrectionFactors(new SegmentAndBiasCorrection(key.segment, key.biasCorrection), executor).thenApply(factors -> {
+                return Timed.execute(() -> {
+                    if (rawData.getBuffer() instanceof IntBuffer) {
+                        return createBufferedImage((RawData<IntBuffer>) rawData, factors, key.globalScale);
+                    } else {
+                        return createBufferedImage((RawData<FloatBuffer>) rawData);
+                    }
+                }, "Loading buffered image for segment %s took %dms", key.segment);
+            }).join();
+        });
+    }
+
+    /**
+     * Describes everything a rendered image depends on, for use as the key in
+     * the imageDiskCache.
+     */
+    private static String imageDescriptor(SegmentBiasCorrectionAndCounts key) {
+        return key.segment.getCacheDescriptor() + "|" + key.biasCorrection.getClass().getName() + "|" + (key.globalScale == null ? "local" : Long.toHexString(key.globalScale.getFingerprint()));
+    }
+
+    /**
+     * Apply a function to the cached raw data for a segment, holding a
+     * reference so that it cannot be freed while in use. If the data is
+     * evicted and freed between being fetched and being used it is read again.
+     */
+    private <R> CompletableFuture<R> withRawData(Segment segment, Function<RawData, R> function) {
+        return withRawData(segment, null, function);
+    }
+
+    /**
+     * As {@link #withRawData(Segment, Function)}, but if the raw data has to
+     * be loaded it is loaded using the given executor rather than the cache's
+     * default executor.
+     */
+    private <R> CompletableFuture<R> withRawData(Segment segment, Executor executor, Function<RawData, R> function) {
+        CompletableFuture<RawData> future = executor == null ? rawDataCache.get(segment) : rawDataCache.get(segment, (s, e) -> loadRawData(s, executor));
+        return future.thenCompose(rawData -> {
+            if (rawData == null) {
+                // Left out of a bulk read because it could not be decoded, so read it on its own to report the error
+                rawDataCache.asMap().remove(segment, future);
+                return withRawData(segment, executor, function);
+            }
+            if (!rawData.retain()) {
+                return withRawData(segment, executor, function);
+            }
+            try {
+                return CompletableFuture.completedFuture(function.apply(rawData));
+            } finally {
+                rawData.release();
+            }
+        });
+    }
+
+    private static RawData toCachedRawData(RawData rawData) {
+        return OFF_HEAP_RAW_DATA ? OffHeapRawData.of(rawData) : rawData;
+    }
+
+    /**
+     * Start decoding a compressed segment from the compressedDataCache.
+     *
+     * @return The future raw data, or <code>null</code> if the compressed
+     * bytes are not cached
+     */
+    private CompletableFuture<RawData> decodeCachedCompressedData(Segment segment, Executor executor) {
+        ByteBuffer compressed = segment.isCompressed() ? compressedDataCache.getIfPresent(segment.getDataKey()) : null;
+        if (compressed == null) {
+            return null;
+        }
+        return CompletableFuture.supplyAsync(() -> segment.decode(compressed.duplicate()), executor);
+    }
+
+    /**
+     * Get the compressed data for a segment from the compressedDataCache,
+     * reading it (and adding it to the cache) if it is not already there.
+     */
+    private CompletableFuture<ByteBuffer> getCompressedData(Segment segment) {
+        ByteBuffer compressed = compressedDataCache.getIfPresent(segment.getDataKey());
+        if (compressed != null) {
+            return CompletableFuture.completedFuture(compressed.duplicate());
+        }
+        return segment.readCompressedDataAsync().thenApply((bb) -> {
+            if (!cacheCompressedData) {
+                return bb;
+            }
+            ByteBuffer copy = storeCompressedData(segment, bb);
+            return copy.duplicate();
+        });
+    }
+
+    /**
+     * Keep a heap copy of the bytes read for a compressed segment, since the
+     * buffer read into is reused.
+     */
+    private ByteBuffer storeCompressedData(Segment segment, ByteBuffer bb) {
+        ByteBuffer copy = ByteBuffer.allocate(bb.remaining()).put(bb).flip();
+        compressedDataCache.put(segment.getDataKey(), copy);
+        return copy;
+    }
+
+    /**
+     * Discard any cached data for segments from a file which has been
+     * modified. This is not required for correctness, since the new segments
+     * will not be equal to the old ones, but frees the memory without waiting
+     * for eviction. The pooled channel for the file is also retired, so that a
+     * replaced file is not kept open.
+     */
+    private void invalidate(List<Segment> segments) {
+        Set<File> files = segments.stream().map(Segment::getFile).collect(Collectors.toSet());
+        Set<FileIdentity> identities = segments.stream().map(Segment::getFileIdentity).collect(Collectors.toSet());
+        files.forEach(file -> FileChannelPool.instance().invalidate(file));
+        rawDataCache.synchronous().asMap().keySet().removeIf((segment) -> files.contains(segment.getFile()) && identities.contains(segment.getFileIdentity()));
+        partialRawDataCache.asMap().keySet().removeIf((segment) -> files.contains(segment.getFile()) && identities.contains(segment.getFileIdentity()));
+        compressedDataCache.asMap().keySet().removeIf((key) -> files.contains(key.file()) && identities.contains(key.fileIdentity()));
+        biasCorrectionCache.synchronous().asMap().keySet().removeIf((key) -> files.contains(key.segment.getFile()) && identities.contains(key.segment.getFileIdentity()));
+        bufferedImageCache.synchronous().asMap().keySet().removeIf((key) -> files.contains(key.segment.getFile()) && identities.contains(key.segment.getFileIdentity()));
+    }
+
     private List<Segment> computeSegmentsToRead(List<Segment> segments, Rectangle sourceRegion) {
         if (sourceRegion == null) {
             return segments;
@@ -326,8 +744,138 @@ public class CachingReader {
         }
     }
 
+    private static boolean isDecimated(boolean showBiasRegion, int xSubsampling, int ySubsampling) {
+        return DECIMATED_READS && !showBiasRegion && (xSubsampling > 1 || ySubsampling > 1);
+    }
+
+    /**
+     * Remember how an image was requested, so the cache warmer can load the
+     * same cache entries for new images. Requests with a WCS override are not
+     * recorded, since the override is specific to the image being viewed.
+     */
+    private void recordView(char wcsLetter, BiasCorrection bc, boolean globalScale, Map<String, Map<String, Object>> wcsOverride, boolean showBiasRegion, int xSubsampling, int ySubsampling) {
+        if (wcsOverride == null) {
+            boolean decimated = isDecimated(showBiasRegion, xSubsampling, ySubsampling);
+            int xs = decimated ? Math.max(1, xSubsampling) : 1;
+            int ys = decimated ? Math.max(1, ySubsampling) : 1;
+            requestedViews.put(new RequestedView(wcsLetter, bc, globalScale, xs, ys), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * For subsampled reads replace the segments with decimated versions, so
+     * that only the pixels which will actually be drawn are scaled and
+     * converted to images. The overscan regions are not decimated, so this is
+     * not done when the bias regions are being shown.
+     */
+    private List<Segment> decimate(List<Segment> segments, boolean showBiasRegion, int xSubsampling, int ySubsampling) {
+        if (!isDecimated(showBiasRegion, xSubsampling, ySubsampling)) {
+            return segments;
+        } else {
+            int xs = Math.max(1, xSubsampling);
+            int ys = Math.max(1, ySubsampling);
+            return segments.stream()
+                    .map((segment) -> segment.decimated(xs, ys))
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
     /**
-     * Read a segment either directly from the DAQ or from a FITS file
+     * For region of interest requests which only touch a small number of rows
+     * of a segment, read (or for compressed data decode) and draw only those
+     * rows rather than the whole segment. This is only possible when the scaling and bias
+     * correction can be computed without reading the full segment.
+     *
+     * @return A future which completes when the segment has been drawn, or
+     * <code>null</code> if the segment should be read and drawn in full.
+     */
+    private CompletableFuture<Void> drawPartialSegment(Segment segment, Rectangle sourceRegion, Graphics2D g, RGBColorMap cmap, BiasCorrection bc, boolean showBiasRegion, GlobalScale globalScale) {
+        if (sourceRegion == null || showBiasRegion || globalScale == null || segment.isDecimated() || (segment.isCompressed() && segment.getBitpix() != 32)) {
+            return null;
+        }
+        if (rawDataCache.getIfPresent(segment) != null || bufferedImageCache.getIfPresent(new SegmentBiasCorrectionAndCounts(segment, bc, globalScale)) != null) {
+            return null;
+        }
+        CorrectionFactors factors;
+        if (bc instanceof NullBiasCorrection) {
+            factors = bc.compute(null, segment);
+        } else {
+            // Bias correction requires the overscan regions, so can only be used if already computed
+            CompletableFuture<CorrectionFactors> futureFactors = biasCorrectionCache.getIfPresent(new SegmentAndBiasCorrection(segment, bc));
+            if (futureFactors == null || !futureFactors.isDone() || futureFactors.isCompletedExceptionally()) {
+                return null;
+            }
+            factors = futureFactors.join();
+        }
+        Rectangle datasec = segment.getDataSec();
+        int[] rows = segment.computeRowRange(sourceRegion);
+        if (rows[1] <= rows[0] || (rows[1] - rows[0]) * 2 > datasec.height) {
+            return null;
+        }
+        PartialRawData partial = partialRawDataCache.get(segment, (s) -> new PartialRawData(s, this::getCompressedData, ForkJoinPool.commonPool()));
+        CompletableFuture<Void> read = partial.readRowsAsync(rows[0], rows[1]);
+        reweigh(segment, partial);
+        return read.thenAccept((v) -> {
+            if (partial.isComplete()) {
+                // All of the rows have now been read, so we can use them as the full raw data
+                rawDataCache.put(segment, CompletableFuture.completedFuture(toCachedRawData(partial.toRawData())));
+                partialRawDataCache.invalidate(segment);
+            } else {
+                reweigh(segment, partial);
+            }
+            Timed.execute(() -> {
+                BufferedImage bi = createBufferedImage(segment, partial.getRows(rows[0], rows[1]), factors, globalScale, rows[0], rows[1]);
+                Graphics2D g2 = (Graphics2D) g.create();
+                g2.transform(segment.getWCSTranslation(false));
+                BufferedImage subimage = bi.getSubimage(datasec.x, 0, datasec.width, rows[1] - rows[0]);
+                g2.drawImage(withColorMap(subimage, cmap), 0, rows[0] - datasec.y, null);
+                g2.dispose();
+                return null;
+            }, "drawImage for rows %d-%d of segment %s took %dms", rows[0], rows[1], segment);
+        });
+    }
+
+    /**
+     * Update the weight of a partial raw data entry, which changes as rows are
+     * read and the compressed data is released. Caffeine only weighs entries
+     * when they are written, so the entry is replaced with itself (unless it
+     * has been evicted or replaced in the meantime).
+     */
+    private void reweigh(Segment segment, PartialRawData partial) {
+        partialRawDataCache.asMap().replace(segment, partial, partial);
+    }
+
+    /**
+     * If most of the segments from a single file still need to be rendered,
+     * read their raw data with a single bulk read rather than one read per
+     * segment. The raw data for every segment is put into the rawDataCache,
+     * where it will be found when the images are subsequently built.
+     *
+     * @param segments All of the segments from a single file
+     * @param segmentsToRead The segments which intersect the region being read
+     * @param bc The bias correction being used
+     * @param globalScale The global scale being used, or <code>null</code>
+     */
+    private void prefetchRawData(List<Segment> segments, List<Segment> segmentsToRead, BiasCorrection bc, GlobalScale globalScale) {
+        List<Segment> missing = segmentsToRead.stream()
+                .filter((segment) -> bufferedImageCache.getIfPresent(new SegmentBiasCorrectionAndCounts(segment, bc, globalScale)) == null)
+                .collect(Collectors.toList());
+        if (missing.size() > 1 && missing.size() * 2 >= segments.size()) {
+            rawDataCache.getAll(missing);
+        }
+    }
+
+    private static List<SegmentSource> loadSegmentSources() {
+        List<SegmentSource> sources = new ArrayList<>();
+        for (SegmentSource source : ServiceLoader.load(SegmentSource.class)) {
+            sources.add(source);
+        }
+        return sources;
+    }
+
+    /**
+     * Read a segment using the first segment source which accepts the line,
+     * or otherwise directly from the DAQ or from a FITS file
      *
      * @param line
      * @param wcsLetter
@@ -338,6 +886,11 @@ public class CachingReader {
      * @throws FitsException
      */
     private static List<Segment> readSegment(String line, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) throws IOException, TruncatedFileException, FitsException {
+        for (SegmentSource source : SEGMENT_SOURCES) {
+            if (source.accepts(line)) {
+                return source.readSegments(line, wcsLetter, wcsOverride);
+            }
+        }
         if (line.startsWith("DAQ:")) {
             return readDAQSegment(line, wcsLetter, wcsOverride);
         } else {
@@ -360,85 +913,176 @@ public class CachingReader {
             String rebName = matcher.group(5);
             // Note, we don't actually need to read any data at this moment, we just need to return information about the amplifier location
             // Given focalplanegeometry, raftName, rebName, wcsLetter I would like to get back an  
+            // Only reached if no segment source (such as the DAQ emulator) has been configured for DAQ lines
             throw new IOException("Unsupported operation exception: " + line);
         }
     }
 
     private static List<Segment> readFitsFileSegment(File file, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) throws IOException, TruncatedFileException, FitsException {
+        // Captured before reading, so that any later modification is detected
+        FileIdentity fileIdentity = FileIdentity.of(file);
+        // The index is only used for the WCS stored in the file itself
+        if (wcsOverride != null || !SegmentIndex.isEnabled()) {
+            return parseFitsFileSegment(file, fileIdentity, wcsLetter, wcsOverride);
+        }
+        List<Segment> result = SegmentIndex.read(file, fileIdentity, wcsLetter);
+        if (result == null) {
+            result = parseFitsFileSegment(file, fileIdentity, wcsLetter, null);
+            // Files still being written are not indexed
+            if (!(result instanceof PartialSegmentList)) {
+                SegmentIndex.write(file, fileIdentity, wcsLetter, result);
+            }
+        }
+        return result;
+    }
+
+    private static List<Segment> parseFitsFileSegment(File file, FileIdentity fileIdentity, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) throws IOException, TruncatedFileException, FitsException {
+        try ( FitsHeaderScanner header = new FitsHeaderScanner(file)) {
+            boolean follow = FOLLOW_GROWING_FILES && PartialSegmentList.isFollowable(fileIdentity);
+            return parseSegments(header, file.toString(), file, null, fileIdentity, wcsLetter, wcsOverride, follow);
+        }
+    }
+
+    /**
+     * Create the segments for each of the image extensions read by a header
+     * scanner.
+     *
+     * @param header The scanner, positioned at the start of the file
+     * @param name The name of the file, used in messages
+     * @param file The file containing the segments, or <code>null</code> for a
+     * remote object
+     * @param remote The remote source of the segment data, or
+     * <code>null</code> for a local file
+     * @param fileIdentity The identity of the file
+     * @param wcsLetter The WCS letter to use to position the segments
+     * @param wcsOverride WCS values to use instead of those in the headers, or
+     * <code>null</code>
+     * @param follow If <code>true</code>, and the file ends before all of the
+     * segments have been read, return a {@link PartialSegmentList} containing
+     * the segments whose data is complete, rather than throwing an exception.
+     * Only supported for local files.
+     * @return The list of segments
+     */
+    static List<Segment> parseSegments(FitsHeaderScanner header, String name, File file, ByteRangeSource remote, FileIdentity fileIdentity, char wcsLetter, Map<String, Map<String, Object>> wcsOverride, boolean follow) throws IOException, TruncatedFileException, FitsException {
         List<Segment> result = new ArrayList<>();
         String ccdSlot = null;
         String raftBay = null;
         int nSegments = 16;
         boolean isDMFile = false;
-        try ( BufferedFile bf = new BufferedFile(file, "r")) {
-            for (int i = 0; i < nSegments + 1; i++) {
-                Header header = new Header(bf);
-                if (i == 0) {
-                    raftBay = header.getStringValue("RAFTBAY");
-                    ccdSlot = header.getStringValue("CCDSLOT");
-                    long expId = header.getLongValue("EXPID");
-                    if (ccdSlot == null) {
-                        ccdSlot = header.getStringValue("SENSNAME");
-                    }
-                    if (ccdSlot == null) {
-                        throw new IOException("Missing CCDSLOT while reading " + file);
-                    }
-                    if (expId != 0) { // Crude way to test if this is a DM file
-                        nSegments = 1;
-                        isDMFile = true;
-                    } else if (ccdSlot.startsWith("SW")) {
-                        nSegments = 8;
-                    }
-                    boolean isGuiderFile = header.containsKey("N_STAMPS");
-                    if (isGuiderFile) {
-                        LOG.log(Level.INFO, "skipping guider file {0}", file);
-                        break;
-                    }
+        for (int i = 0; i < nSegments + 1; i++) {
+            try {
+                if (!header.nextHeader()) {
+                    throw new TruncatedFileException("Unexpected end of file while reading " + name);
                 }
-                if (i > 0) {
-                    if (isDMFile) {
-                        // This is correct for a single CCD (e.g. AuxTel)
-                        // Will need more work for the general case
-                        wcsLetter = 'D';
-                        Map<String, Object> dmWCSOverride = new HashMap<>();
-                        boolean isCompressed = header.getBooleanValue("ZIMAGE");
-                        int naxis1, naxis2;
-                        if (isCompressed) {
-                            naxis1 = header.getIntValue("ZNAXIS1");
-                            naxis2 = header.getIntValue("ZNAXIS2");
-                        } else {
-                            naxis1 = header.getIntValue("NAXIS1");
-                            naxis2 = header.getIntValue("NAXIS2");
-                        }
-                        dmWCSOverride.put("DATASEC", String.format("[1:%d,1:%d]", naxis1, naxis2));
-                        dmWCSOverride.put("PC1_1D", 1.0);
-                        dmWCSOverride.put("PC1_2D", 0.0);
-                        dmWCSOverride.put("PC2_1D", 0.0);
-                        dmWCSOverride.put("PC2_2D", 1.0);
-                        dmWCSOverride.put("CRVAL1D", 0);
-                        dmWCSOverride.put("CRVAL2D", 0);
-                        Segment segment = new Segment(header, file, bf, raftBay, ccdSlot, wcsLetter, dmWCSOverride);
-                        result.add(segment);
+            } catch (TruncatedFileException x) {
+                if (follow) {
+                    return new PartialSegmentList(result, file, fileIdentity.size());
+                }
+                throw x;
+            }
+            if (follow && i > 0 && header.getDataPosition() + header.getDataSize() > fileIdentity.size()) {
+                // Header has been written, but not all of the data yet
+                return new PartialSegmentList(result, file, fileIdentity.size());
+            }
+            if (i == 0) {
+                raftBay = header.getStringValue("RAFTBAY");
+                ccdSlot = header.getStringValue("CCDSLOT");
+                long expId = header.getLongValue("EXPID");
+                if (ccdSlot == null) {
+                    ccdSlot = header.getStringValue("SENSNAME");
+                }
+                if (ccdSlot == null) {
+                    throw new IOException("Missing CCDSLOT while reading " + name);
+                }
+                if (expId != 0) { // Crude way to test if this is a DM file
+                    nSegments = 1;
+                    isDMFile = true;
+                } else if (ccdSlot.startsWith("SW")) {
+                    nSegments = 8;
+                }
+                boolean isGuiderFile = header.containsKey("N_STAMPS");
+                if (isGuiderFile) {
+                    LOG.log(Level.INFO, "skipping guider file {0}", name);
+                    break;
+                }
+            }
+            if (i > 0) {
+                if (isDMFile) {
+                    // This is correct for a single CCD (e.g. AuxTel)
+                    // Will need more work for the general case
+                    wcsLetter = 'D';
+                    Map<String, Object> dmWCSOverride = new HashMap<>();
+                    boolean isCompressed = header.getBooleanValue("ZIMAGE");
+                    int naxis1, naxis2;
+                    if (isCompressed) {
+                        naxis1 = header.getIntValue("ZNAXIS1");
+                        naxis2 = header.getIntValue("ZNAXIS2");
                     } else {
-                        String extName = header.getStringValue("EXTNAME");
-                        String wcsKey = String.format("%s/%s/%s", raftBay, ccdSlot, extName.substring(7, 9));
-                        Segment segment = new Segment(header, file, bf, raftBay, ccdSlot, wcsLetter, wcsOverride == null ? null : wcsOverride.get(wcsKey));
-                        result.add(segment);
+                        naxis1 = header.getIntValue("NAXIS1");
+                        naxis2 = header.getIntValue("NAXIS2");
                     }
+                    dmWCSOverride.put("DATASEC", String.format("[1:%d,1:%d]", naxis1, naxis2));
+                    dmWCSOverride.put("PC1_1D", 1.0);
+                    dmWCSOverride.put("PC1_2D", 0.0);
+                    dmWCSOverride.put("PC2_1D", 0.0);
+                    dmWCSOverride.put("PC2_2D", 1.0);
+                    dmWCSOverride.put("CRVAL1D", 0);
+                    dmWCSOverride.put("CRVAL2D", 0);
+                    Segment segment = new Segment(header, file, remote, fileIdentity, header.getDataPosition(), raftBay, ccdSlot, wcsLetter, dmWCSOverride);
+                    result.add(segment);
+                } else {
+                    String extName = header.getStringValue("EXTNAME");
+                    String wcsKey = String.format("%s/%s/%s", raftBay, ccdSlot, extName.substring(7, 9));
+                    Segment segment = new Segment(header, file, remote, fileIdentity, header.getDataPosition(), raftBay, ccdSlot, wcsLetter, wcsOverride == null ? null : wcsOverride.get(wcsKey));
+                    result.add(segment);
                 }
             }
+            header.skipData();
         }
         return result;
     }
 
+    /**
+     * Rendered segment images hold 8 bit indexes into the color map, which is
+     * applied when they are drawn. This is a holder class because
+     * CameraImageReader creates its CachingReader before its default color map.
+     */
+    private static class SegmentImageType {
+
+        private static final ImageTypeSpecifier INSTANCE = create();
+
+        private static ImageTypeSpecifier create() {
+            IndexColorModel colorModel = CameraImageReader.DEFAULT_COLOR_MAP.getColorModel();
+            return new ImageTypeSpecifier(colorModel, colorModel.createCompatibleSampleModel(1, 1));
+        }
+    }
+
+    /**
+     * View a rendered segment image with the given color map. The pixels are
+     * shared with the original image, only the color model is replaced.
+     */
+    private static BufferedImage withColorMap(BufferedImage image, RGBColorMap cmap) {
+        IndexColorModel colorModel = cmap.getColorModel();
+        return image.getColorModel() == colorModel ? image : new BufferedImage(colorModel, image.getRaster(), false, null);
+    }
+
+    /**
+     * The number of bytes used by the pixels of an image.
+     */
+    private static int imageBytes(BufferedImage image) {
+        DataBuffer db = image.getRaster().getDataBuffer();
+        return (int) Math.min(Integer.MAX_VALUE, (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8);
+    }
+
     private static BufferedImage createBufferedImage(RawData<FloatBuffer> rawData) {
         FloatBuffer floatBuffer = rawData.getBuffer();
 
-        EnhancedScalingUtils esu = new EnhancedScalingUtils(floatBuffer, CameraImageReader.DEFAULT_COLOR_MAP);
+        // EnhancedScalingUtils reads the data relative to its position, so must not be given the shared buffer
+        EnhancedScalingUtils esu = new EnhancedScalingUtils(floatBuffer.duplicate(), CameraImageReader.DEFAULT_COLOR_MAP);
         Segment segment = rawData.getSegment();
         Rectangle datasec = segment.getDataSec();
 
-        BufferedImage image = CameraImageReader.IMAGE_TYPE.createBufferedImage(segment.getNAxis1(), segment.getNAxis2());
+        BufferedImage image = SegmentImageType.INSTANCE.createBufferedImage(segment.getNAxis1(), segment.getNAxis2());
         WritableRaster raster = image.getRaster();
         DataBuffer db = raster.getDataBuffer();
 
@@ -446,21 +1090,31 @@ public class CachingReader {
             int p = datasec.x + y * segment.getNAxis1();
             for (int x = datasec.x; x < datasec.width + datasec.x; x++) {
                 float f = floatBuffer.get(p);
-                db.setElem(p, esu.getRGB(f));
+                db.setElem(p, esu.getIndex(f));
                 p++;
             }
         }
         return image;
     }
 
-    private static BufferedImage createBufferedImage(RawData<IntBuffer> rawData, CorrectionFactors factors, long[] globalScale) {
-        IntBuffer intBuffer = rawData.getBuffer();
+    private static BufferedImage createBufferedImage(RawData<IntBuffer> rawData, CorrectionFactors factors, GlobalScale globalScale) {
         Segment segment = rawData.getSegment();
+        return createBufferedImage(segment, rawData.getBuffer(), factors, globalScale, 0, segment.getNAxis2());
+    }
+
+    /**
+     * Create an image for a range of rows of a segment. The resulting image
+     * is the full width of the segment, but only contains the requested rows.
+     * The buffer contains the data starting with <code>firstRow</code>, a
+     * histogram can only be computed (when there is no global scale) if it
+     * contains the full segment.
+     */
+    private static BufferedImage createBufferedImage(Segment segment, IntBuffer intBuffer, CorrectionFactors factors, GlobalScale globalScale, int firstRow, int lastRow) {
         Rectangle datasec = segment.getDataSec();
         // Apply bias correction
         ScalingUtils su;
         if (globalScale != null) {
-            su = new ScalingUtils(globalScale);
+            su = new ScalingUtils(globalScale.counts());
             LOG.log(Level.FINE, "Global scale max {0}", su.getHighestOccupiedBin());
         } else {
             su = histogram(datasec, intBuffer, segment, factors);
@@ -471,11 +1125,11 @@ public class CachingReader {
         int range = cdf[max];
         range = 1 + range / 256;
         for (int i = su.getLowestOccupiedBin(); i <= max; i++) {
-            cdf[i] = CameraImageReader.DEFAULT_COLOR_MAP.getRGB(cdf[i] / range);
+            cdf[i] = cdf[i] / range;
         }
 
         // Scale data 
-        BufferedImage image = CameraImageReader.IMAGE_TYPE.createBufferedImage(segment.getNAxis1(), segment.getNAxis2());
+        BufferedImage image = SegmentImageType.INSTANCE.createBufferedImage(segment.getNAxis1(), lastRow - firstRow);
         WritableRaster raster = image.getRaster();
         DataBuffer db = raster.getDataBuffer();
 //        Used for testing bias region
@@ -486,24 +1140,25 @@ public class CachingReader {
 //        graphics.fillRect(datasec.x + datasec.width, 0, segment.getNAxis1() - datasec.x - datasec.width, segment.getNAxis2());
 //        graphics.setColor(Color.BLUE);
 //        graphics.fillRect(datasec.x, datasec.y + datasec.height, datasec.width, segment.getNAxis2());
-        copyAndScaleData(datasec, segment, cdf, intBuffer, factors, db, max);
+        copyAndScaleData(datasec, segment, cdf, intBuffer, factors, db, max, firstRow, lastRow);
         return image;
     }
 
-    private static void copyAndScaleData(Rectangle datasec, Segment segment, int[] cdf, IntBuffer intBuffer, BiasCorrection.CorrectionFactors factors, DataBuffer db, int max) {
-        for (int y = datasec.y; y < datasec.height + datasec.y; y++) {
+    private static void copyAndScaleData(Rectangle datasec, Segment segment, int[] cdf, IntBuffer intBuffer, BiasCorrection.CorrectionFactors factors, DataBuffer db, int max, int firstRow, int lastRow) {
+        final int offset = firstRow * segment.getNAxis1();
+        for (int y = Math.max(datasec.y, firstRow); y < Math.min(datasec.height + datasec.y, lastRow); y++) {
             int p = datasec.x + y * segment.getNAxis1();
             for (int x = datasec.x; x < datasec.width + datasec.x; x++) {
                 final int correctionFactor = factors.correctionFactor(x, y);
 //                if (correctionFactor < 0) {
 //                    LOG.log(Level.WARNING, "Negative correction factor for {0} {1} {2} {3}", new Object[]{segment, x, y, correctionFactor});
 //                }
-                final int bin = Math.max(intBuffer.get(p) - correctionFactor, 0);
+                final int bin = Math.max(intBuffer.get(p - offset) - correctionFactor, 0);
 //                if (bin > max) {
 //                    LOG.log(Level.WARNING, "Bin greater than max {0} {1} {2} {3} {4}", new Object[]{segment, x, y, bin, max});                    
 //                }
-                int rgb = cdf[bin];
-                db.setElem(p, rgb);
+                int index = cdf[bin];
+                db.setElem(p - offset, index);
                 p++;
             }
         }
@@ -531,36 +1186,103 @@ public class CachingReader {
         return new ScalingUtils(count);
     }
 
+    /**
+     * Load the segments, raw data, bias corrections, global scales and images
+     * for a list of lines into the caches, so they are ready when first viewed.
+     * The images loaded are those needed by the views recently requested with
+     * the same WCS letter (for example subsampled focal plane views with a
+     * global scale), or full resolution amplifier scaled images if there are
+     * none. Lines are loaded one at a time, with all of the reading and
+     * decoding done on the warm executor. Lines which cannot be loaded are
+     * logged and skipped.
+     *
+     * @param lines The file (or DAQ) lines to load
+     * @param wcsLetter The WCS letter the lines will be viewed with
+     * @param bc The bias correction to apply if no views have been recorded
+     */
+    void warm(List<String> lines, char wcsLetter, BiasCorrection bc) {
+        List<RequestedView> views = requestedViews.asMap().keySet().stream()
+                .filter((view) -> view.wcsLetter() == wcsLetter)
+                .collect(Collectors.toList());
+        if (views.isEmpty()) {
+            views = List.of(new RequestedView(wcsLetter, bc, false, 1, 1));
+        }
+        for (RequestedView view : views) {
+            GlobalScale globalScale = null;
+            if (view.globalScale()) {
+                try {
+                    SegmentListAndBiasCorrection key = new SegmentListAndBiasCorrection(getAllSegments(lines, wcsLetter, null), view.biasCorrection());
+                    globalScale = globalScalingCache.get(key, (k, e) -> loadGlobalScale(k, warmExecutor)).join();
+                } catch (CompletionException x) {
+                    LOG.log(Level.FINE, "Unable to warm global scale for " + lines, x.getCause());
+                    continue;
+                }
+            }
+            for (String line : lines) {
+                try {
+                    warm(line, view, globalScale);
+                } catch (CompletionException x) {
+                    LOG.log(Level.FINE, "Unable to warm " + line, x.getCause());
+                }
+            }
+        }
+    }
+
+    private void warm(String line, RequestedView view, GlobalScale globalScale) {
+        List<Segment> segments = decimate(getSegments(new SegmentCacheKey(line, view.wcsLetter(), null)).join(), false, view.xSubsampling(), view.ySubsampling());
+        rawDataCache.getAll(segments, (keys, e) -> loadAllRawData(keys, warmExecutor)).join();
+        List<CompletableFuture<BufferedImage>> images = new ArrayList<>();
+        for (Segment segment : segments) {
+            SegmentBiasCorrectionAndCounts key = new SegmentBiasCorrectionAndCounts(segment, view.biasCorrection(), globalScale);
+            images.add(bufferedImageCache.get(key, (k, e) -> loadBufferedImage(k, warmExecutor)));
+        }
+        CompletableFuture.allOf(images.toArray(CompletableFuture[]::new)).join();
+    }
+
     public List<Segment> readSegments(ImageInputStream in, char wcsLetter) {
         List<Segment> result = new ArrayList<>();
         List<String> lines = linesCache.get(in);
         for (String line : lines) {
-            result.addAll((List<Segment>) (segmentCache.get(new SegmentCacheKey(line, wcsLetter, null)).join()));
+            result.addAll((List<Segment>) (getSegments(new SegmentCacheKey(line, wcsLetter, null)).join()));
         }
         return result;
     }
 
+    /**
+     * Get the raw data for a segment. The data returned is always on the
+     * heap, so remains valid even after it is evicted from the cache. This
+     * copies the whole segment, so should only be used by callers which need
+     * to keep the data, otherwise use {@link #applyToRawData}.
+     *
+     * @param segment The segment
+     * @return The raw data
+     */
     public RawData getRawData(Segment segment) {
-        return rawDataCache.get(segment).join();
+        return withRawData(segment, RawData::copyToHeap).join();
+    }
+
+    /**
+     * Apply a function to the cached raw data for a segment, without copying
+     * it. The raw data (and its buffer) must not be used once the function
+     * returns, since it may be freed as soon as it is evicted.
+     *
+     * @param <R> The type of the result
+     * @param segment The segment
+     * @param function The function to apply
+     * @return The result of the function
+     */
+    public <R> R applyToRawData(Segment segment, Function<RawData, R> function) {
+        return withRawData(segment, function).join();
     }
 
-    BufferedImage getBufferedImage(Segment segment, BiasCorrection bc, long[] globalScale) {
+    BufferedImage getBufferedImage(Segment segment, BiasCorrection bc, GlobalScale globalScale) {
         final SegmentBiasCorrectionAndCounts key = new SegmentBiasCorrectionAndCounts(segment, bc, globalScale);
         CompletableFuture<BufferedImage> fi = bufferedImageCache.get(key);
         return fi.join();
     }
 
-    long[] getGlobalScale(ImageInputStream fileInput, BiasCorrection bc, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) {
-        Queue<CompletableFuture<Void>> segmentsCompletables = new ConcurrentLinkedQueue<>();
-        List<String> lines = linesCache.get(fileInput);
-        List<Segment> allSegments = new ArrayList<>();
-        lines.stream().map((line) -> segmentCache.get(new SegmentCacheKey(line, wcsLetter, wcsOverride))).forEach((CompletableFuture<List<Segment>> futureSegments) -> {
-            segmentsCompletables.add(futureSegments.thenAccept((List<Segment> segments) -> {
-                allSegments.addAll(segments);
-            }));
-        });
-        CompletableFuture.allOf(segmentsCompletables.toArray(CompletableFuture[]::new)).join();
-
+    GlobalScale getGlobalScale(ImageInputStream fileInput, BiasCorrection bc, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) {
+        List<Segment> allSegments = getAllSegments(linesCache.get(fileInput), wcsLetter, wcsOverride);
         return globalScalingCache.get(new SegmentListAndBiasCorrection(allSegments, bc)).join();
     }
 
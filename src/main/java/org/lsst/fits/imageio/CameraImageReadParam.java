@@ -24,7 +24,7 @@ public class CameraImageReadParam extends ImageReadParam {
     private final GetSetAvailable<BiasCorrection> bc;
     private final GetSetAvailable<RGBColorMap> colorMap;
     private char wcsString = ' ';
-    private long[] globalScale;
+    private GlobalScale globalScale;
     private Map<String, Map<String, Object>> wcsOverride = null;
 
     public enum Scale {
@@ -110,12 +110,38 @@ public class CameraImageReadParam extends ImageReadParam {
         return bc.getValueName();
     }
 
+    /**
+     * Get a copy of the global scale counts. Each call copies the 2MB
+     * histogram, since the interned counts are shared between requests and
+     * must not be modified.
+     *
+     * @return A copy of the counts, or <code>null</code> if there is no global
+     * scale
+     * @deprecated Use {@link #getInternedGlobalScale()}, which does not copy
+     * the counts
+     */
+    @Deprecated
     public long[] getGlobalScale() {
-        return globalScale;
+        return globalScale == null ? null : globalScale.getCounts();
     }
 
+    /**
+     * Set the global scale. The counts are copied and interned, so that
+     * requests with the same counts share cached images.
+     *
+     * @param globalScale The counts, or <code>null</code> for no global scale
+     */
     public void setGlobalScale(long[] globalScale) {
-        this.globalScale = globalScale;
+        this.globalScale = GlobalScale.of(globalScale);
+    }
+
+    /**
+     * Get the interned global scale, without copying the counts.
+     *
+     * @return The global scale, or <code>null</code> if there is none
+     */
+    public GlobalScale getInternedGlobalScale() {
+        return globalScale;
     }
 
     public Map<String, Map<String, Object>> getWCSOverride() {
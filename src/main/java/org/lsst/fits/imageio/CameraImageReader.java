@@ -6,10 +6,14 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.nio.Buffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -56,6 +60,31 @@ public class CameraImageReader extends ImageReader {
 
     static {
         FitsFactory.setUseHierarch(true);
+        String warmDirectories = System.getProperty("org.lsst.fits.imageio.warmDirectories");
+        if (warmDirectories != null && !warmDirectories.isBlank()) {
+            try {
+                List<Path> directories = new ArrayList<>();
+                for (String dir : warmDirectories.split(File.pathSeparator)) {
+                    directories.add(Paths.get(dir));
+                }
+                startCacheWarmer(directories);
+            } catch (IOException x) {
+                LOG.log(Level.WARNING, "Unable to start cache warmer", x);
+            }
+        }
+    }
+
+    /**
+     * Start watching the given directories for new exposures, and loading them
+     * into the shared cache in the background. This is done automatically if
+     * the <code>org.lsst.fits.imageio.warmDirectories</code> property is set.
+     *
+     * @param directories The directories to watch
+     * @return The cache warmer, which should be closed to stop watching
+     * @throws IOException If the directories cannot be watched
+     */
+    public static CacheWarmer startCacheWarmer(List<Path> directories) throws IOException {
+        return new CacheWarmer(READER, directories, new SerialParallelBiasCorrection());
     }
 
     public CameraImageReader(ImageReaderSpi originatingProvider) {
@@ -173,11 +202,11 @@ public class CameraImageReader extends ImageReader {
         BiasCorrection bc;
         Map<String, Map<String, Object>> wcsOverride = null;
         Rectangle sourceRegion = param == null ? null : param.getSourceRegion();
-        long[] globalScale;
+        GlobalScale globalScale;
         if (param instanceof CameraImageReadParam cameraParam) {
             cmap = cameraParam.getColorMap();
             bc = cameraParam.getBiasCorrection();
-            globalScale = cameraParam.getGlobalScale();
+            globalScale = cameraParam.getInternedGlobalScale();
             wcsOverride = cameraParam.getWCSOverride();
         } else {
             cmap = DEFAULT_COLOR_MAP;
@@ -201,9 +230,9 @@ public class CameraImageReader extends ImageReader {
         }
         try {
             if (scale == CameraImageReadParam.Scale.AMPLIFIER || globalScale != null) {
-                READER.readImage((ImageInputStream) getInput(), sourceRegion, g, cmap, bc, showBiasRegion, wcsString, globalScale, wcsOverride);
+                READER.readImage((ImageInputStream) getInput(), sourceRegion, g, cmap, bc, showBiasRegion, wcsString, globalScale, wcsOverride, xSubSampling, ySubSampling);
             } else {
-                READER.readImageWithOnTheFlyGlobalScale((ImageInputStream) getInput(), sourceRegion, g, cmap, bc, showBiasRegion, wcsString, wcsOverride);
+                READER.readImageWithOnTheFlyGlobalScale((ImageInputStream) getInput(), sourceRegion, g, cmap, bc, showBiasRegion, wcsString, wcsOverride, xSubSampling, ySubSampling);
             }
             return result;
         } finally {
@@ -224,15 +253,16 @@ public class CameraImageReader extends ImageReader {
     }
 
     public Number getPixelForSegment(Segment segment, int x, int y) {
-        RawData rawData = READER.getRawData(segment);
-        Buffer buffer = rawData.getBuffer();
         int p = segment.getDataSec().x + x + y * segment.getNAxis1();
-        return buffer instanceof IntBuffer iBuffer ? iBuffer.get(p) : buffer instanceof FloatBuffer fBuffer ? fBuffer.get(p) : 0;
+        return READER.applyToRawData(segment, (RawData rawData) -> {
+            Buffer buffer = rawData.getBuffer();
+            return buffer instanceof IntBuffer iBuffer ? iBuffer.get(p) : buffer instanceof FloatBuffer fBuffer ? fBuffer.get(p) : 0;
+        });
     }
 
     public int getRGBForSegment(Segment segment, int x, int y) {
         if (scale == CameraImageReadParam.Scale.GLOBAL) {
-            long[] globalScale = READER.getGlobalScale((ImageInputStream) getInput(), biasCorrection, wcsString, null);
+            GlobalScale globalScale = READER.getGlobalScale((ImageInputStream) getInput(), biasCorrection, wcsString, null);
             BufferedImage image = READER.getBufferedImage(segment, biasCorrection, globalScale);
             return image.getRGB(x + segment.getDataSec().x, y + segment.getDataSec().y);
         } else {
@@ -0,0 +1,164 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nom.tam.fits.FitsException;
+import org.lsst.fits.imageio.wcs.WCSReader;
+
+/**
+ * A segment source which emulates reading raw data directly from the DAQ, using
+ * whole REB payloads stored in files. This allows images to be displayed as
+ * soon as the data is available, without waiting for FITS files to be written.
+ * <p>
+ * Lines have the form <code>DAQ:partition:folder/image:raft/reb</code>, and
+ * the payload is read from
+ * <code>root/partition/folder/image/raft/reb.raw</code>, where the root is
+ * given by the <code>org.lsst.fits.imageio.daqEmulatorRoot</code> property.
+ * The payload contains the data for each CCD read by the REB in slot order,
+ * and within each CCD the data for each amplifier in segment order, each as a
+ * block of big-endian 32 bit integers. Unlike the real DAQ the pixels are not
+ * interleaved between amplifiers, so each amplifier can be read directly as a
+ * segment.
+ * <p>
+ * The geometry of each amplifier comes from a focal-plane layout in the format
+ * read by {@link WCSReader}, given by the
+ * <code>org.lsst.fits.imageio.daqLayout</code> property, or by default the
+ * corner raft layouts included with the reader.
+ *
+ * @author tonyj
+ */
+public class DAQEmulatorSegmentSource implements SegmentSource {
+
+    private static final Pattern DAQ_PATTERN = Pattern.compile("DAQ:(\\w+):(\\w+)/(\\w+):(\\w+)/(\\w+)");
+    private static final String[] DEFAULT_LAYOUTS = {
+        "keywords_itl_R00_LCA-13381B.wcs", "keywords_itl_R04_LCA-13381B.wcs",
+        "keywords_itl_R40_LCA-13381B.wcs", "keywords_itl_R44_LCA-13381B.wcs"
+    };
+
+    private final File root;
+    private final int segmentWidth;
+    private final int segmentHeight;
+    private Map<String, Map<String, Object>> layout;
+
+    public DAQEmulatorSegmentSource() {
+        this(System.getProperty("org.lsst.fits.imageio.daqEmulatorRoot") == null ? null : new File(System.getProperty("org.lsst.fits.imageio.daqEmulatorRoot")),
+                null,
+                Integer.getInteger("org.lsst.fits.imageio.daqSegmentWidth", 576),
+                Integer.getInteger("org.lsst.fits.imageio.daqSegmentHeight", 2048));
+    }
+
+    DAQEmulatorSegmentSource(File root, Map<String, Map<String, Object>> layout, int segmentWidth, int segmentHeight) {
+        this.root = root;
+        this.layout = layout;
+        this.segmentWidth = segmentWidth;
+        this.segmentHeight = segmentHeight;
+    }
+
+    @Override
+    public boolean accepts(String line) {
+        return root != null && line.startsWith("DAQ:");
+    }
+
+    @Override
+    public List<Segment> readSegments(String line, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) throws IOException, FitsException {
+        Matcher matcher = DAQ_PATTERN.matcher(line);
+        if (!matcher.matches()) {
+            throw new IOException("Illegal image segment descriptor: " + line);
+        }
+        String partition = matcher.group(1);
+        String folder = matcher.group(2);
+        String imageName = matcher.group(3);
+        String raftName = matcher.group(4);
+        String rebName = matcher.group(5);
+        File payload = new File(root, String.format("%s/%s/%s/%s/%s.raw", partition, folder, imageName, raftName, rebName));
+        FileIdentity fileIdentity = FileIdentity.of(payload);
+
+        Map<String, Map<String, Object>> geometry = getLayout();
+        List<Segment> result = new ArrayList<>();
+        long position = 0;
+        for (String ccdSlot : ccdSlotsForReb(rebName, line)) {
+            // Sort the amplifiers into segment order
+            String prefix = raftName + "/" + ccdSlot + "/";
+            Map<String, Map<String, Object>> amplifiers = new TreeMap<>();
+            geometry.forEach((key, value) -> {
+                if (key.startsWith(prefix)) {
+                    amplifiers.put(key.substring(prefix.length()), value);
+                }
+            });
+            if (amplifiers.isEmpty()) {
+                throw new IOException("No layout for " + raftName + "/" + ccdSlot + " while reading " + line);
+            }
+            for (Map.Entry<String, Map<String, Object>> amplifier : amplifiers.entrySet()) {
+                String segmentName = amplifier.getKey();
+                Map<String, Object> header = new HashMap<>();
+                header.put("ZIMAGE", Boolean.FALSE);
+                header.put("BITPIX", 32);
+                header.put("NAXIS1", segmentWidth);
+                header.put("NAXIS2", segmentHeight);
+                header.put("EXTNAME", "Segment" + segmentName);
+                header.put("CHANNEL", channel(segmentName));
+                String wcsKey = prefix + segmentName;
+                Map<String, Object> wcs = wcsOverride != null && wcsOverride.containsKey(wcsKey) ? wcsOverride.get(wcsKey) : amplifier.getValue();
+                result.add(new Segment(FitsHeaderValues.of(header), payload, fileIdentity, position, raftName, ccdSlot, wcsLetter, wcs));
+                position += 4L * segmentWidth * segmentHeight;
+            }
+        }
+        if (payload.length() != position) {
+            throw new IOException(String.format("Unexpected payload size %d (expected %d) for %s", payload.length(), position, line));
+        }
+        return result;
+    }
+
+    private static List<String> ccdSlotsForReb(String rebName, String line) throws IOException {
+        return switch (rebName) {
+            case "RebG" ->
+                List.of("SG0", "SG1");
+            case "RebW" ->
+                List.of("SW0", "SW1");
+            case "Reb0", "Reb1", "Reb2" -> {
+                char row = rebName.charAt(3);
+                yield List.of("S" + row + "0", "S" + row + "1", "S" + row + "2");
+            }
+            default ->
+                throw new IOException("Unknown REB " + rebName + " while reading " + line);
+        };
+    }
+
+    /**
+     * Convert a segment name to a channel number, using the camera convention
+     * that segments 10-17 are channels 1-8 and segments 07-00 are channels
+     * 9-16.
+     */
+    private static int channel(String segmentName) {
+        int amp = segmentName.charAt(1) - '0';
+        return segmentName.charAt(0) == '1' ? amp + 1 : 16 - amp;
+    }
+
+    private synchronized Map<String, Map<String, Object>> getLayout() throws IOException {
+        if (layout == null) {
+            String layoutFile = System.getProperty("org.lsst.fits.imageio.daqLayout");
+            if (layoutFile != null) {
+                layout = new WCSReader(new File(layoutFile)).getWCSInfo();
+            } else {
+                Map<String, Map<String, Object>> result = new HashMap<>();
+                for (String resource : DEFAULT_LAYOUTS) {
+                    InputStream in = WCSReader.class.getResourceAsStream(resource);
+                    if (in == null) {
+                        throw new IOException("Missing layout resource " + resource);
+                    }
+                    result.putAll(new WCSReader(in).getWCSInfo());
+                }
+                layout = result;
+            }
+        }
+        return layout;
+    }
+}
@@ -0,0 +1,118 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of direct byte buffers used for transient reads, such as the
+ * compressed data for a segment which is discarded as soon as it has been
+ * decoded. Buffers are grouped into power of two size classes, and released
+ * buffers are kept for reuse as long as the total size of idle buffers stays
+ * below the configured limit. Without this direct memory is only reclaimed
+ * when the garbage collector happens to run, which under heavy load can lead
+ * to running out of direct memory long before the heap is under pressure.
+ *
+ * @author tonyj
+ */
+class DirectBufferPool {
+
+    private static final int MIN_CLASS = 16; // 64kB
+    private static final int MAX_CLASS = 30; // 1GB
+    private static final DirectBufferPool INSTANCE = new DirectBufferPool(Long.getLong("org.lsst.fits.imageio.directBufferPoolBytes", 500_000_000L));
+
+    private final long maxIdleBytes;
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<ByteBuffer>[] idle = new ArrayDeque[MAX_CLASS + 1];
+    private long idleBytes;
+    private long allocations;
+    private long reuses;
+    private long discards;
+
+    DirectBufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+        for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+            idle[i] = new ArrayDeque<>();
+        }
+    }
+
+    static DirectBufferPool instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a big-endian direct buffer with at least the requested size. The
+     * buffer's limit is set to the requested size, its capacity may be larger.
+     *
+     * @param size The required size
+     * @return The buffer
+     */
+    ByteBuffer acquire(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer bb = null;
+        synchronized (this) {
+            if (sizeClass <= MAX_CLASS) {
+                bb = idle[sizeClass].pollFirst();
+            }
+            if (bb != null) {
+                idleBytes -= bb.capacity();
+                reuses++;
+            } else {
+                allocations++;
+            }
+        }
+        if (bb == null) {
+            bb = ByteBuffer.allocateDirect(sizeClass <= MAX_CLASS ? 1 << sizeClass : size);
+        }
+        bb.clear().limit(size);
+        bb.order(ByteOrder.BIG_ENDIAN);
+        return bb;
+    }
+
+    /**
+     * Return a buffer previously obtained from {@link #acquire(int)} to the
+     * pool. The caller must not use the buffer (or any views of it) after this
+     * call.
+     *
+     * @param bb The buffer to return
+     */
+    synchronized void release(ByteBuffer bb) {
+        int capacity = bb.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass > MAX_CLASS || 1 << sizeClass != capacity || idleBytes + capacity > maxIdleBytes) {
+            discards++;
+        } else {
+            idle[sizeClass].addFirst(bb);
+            idleBytes += capacity;
+        }
+    }
+
+    private static int sizeClass(int size) {
+        return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+
+    long getMaxIdleBytes() {
+        return maxIdleBytes;
+    }
+
+    synchronized long getIdleBytes() {
+        return idleBytes;
+    }
+
+    synchronized long getAllocationCount() {
+        return allocations;
+    }
+
+    synchronized long getReuseCount() {
+        return reuses;
+    }
+
+    synchronized long getDiscardCount() {
+        return discards;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DirectBufferPool{" + "idleBytes=" + idleBytes + ", maxIdleBytes=" + maxIdleBytes + ", allocations=" + allocations + ", reuses=" + reuses + ", discards=" + discards + '}';
+    }
+}
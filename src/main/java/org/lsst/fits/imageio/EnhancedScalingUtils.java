@@ -22,11 +22,16 @@ public class EnhancedScalingUtils {
     private float binSize;
     private final int[] histogram;
     private int nEntries;
+    private final int[] index;
     private final int[] rgb;
 
     EnhancedScalingUtils(FloatBuffer data, RGBColorMap colorMap) {
         histogram = fillHistogram(MAX_BINS, data);
-        rgb = computeCDF(histogram, nEntries, colorMap);
+        index = computeCDF(histogram, nEntries, colorMap);
+        rgb = new int[index.length];
+        for (int i = 0; i < index.length; i++) {
+            rgb[i] = colorMap.getRGB(index[i]);
+        }
     }
 
     private int[] fillHistogram(int bins, FloatBuffer data) {
@@ -93,7 +98,7 @@ public class EnhancedScalingUtils {
         float cum = 0;
         for (int i = 0; i < histogram.length; i++) {
             cum += histogram[i];
-            cdf[i] = colorMap.getRGB((int) Math.floor(size * cum / nEntries));
+            cdf[i] = (int) Math.floor(size * cum / nEntries);
         }
         return cdf;
     }
@@ -126,6 +131,16 @@ public class EnhancedScalingUtils {
         return rgb[binFor(min, binSize, value)];
     }
 
+    /**
+     * Get the index into the color map for a value.
+     *
+     * @param value The value
+     * @return The color map index
+     */
+    int getIndex(float value) {
+        return index[binFor(min, binSize, value)];
+    }
+
     @Override
     public String toString() {
         return "EnhancedScalingUtils{" + "min=" + min + ", max=" + max + ", binSize=" + binSize + ", nEntries=" + nEntries + 
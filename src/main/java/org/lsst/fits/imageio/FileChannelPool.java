@@ -0,0 +1,239 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of open file channels, keyed by file. All of the segments in a single
+ * FITS file share one channel, rather than each segment opening and closing
+ * the file for itself. Channels are reference counted, and are only closed
+ * once they are no longer in use and the pool has grown beyond its maximum
+ * size, in which case the least recently used channels are closed first.
+ * <p>
+ * Files are opened without holding the pool's lock, so a slow open (for
+ * example on NFS) only delays other requests for the same file. The lock is
+ * held just while the map and reference counts are updated.
+ * <p>
+ * Each channel remembers the {@link FileIdentity} it was opened for. If a
+ * file is replaced (for example by renaming a new file over it) a request
+ * for the new identity retires the old channel rather than reading stale data
+ * through it, and {@link #invalidate(File)} retires the channel as soon as the
+ * change is noticed, so that deleted files are not kept open.
+ *
+ * @author tonyj
+ */
+class FileChannelPool {
+
+    private static final Logger LOG = Logger.getLogger(FileChannelPool.class.getName());
+    private static final FileChannelPool INSTANCE = new FileChannelPool(Integer.getInteger("org.lsst.fits.imageio.channelPoolSize", 256));
+
+    private final int maxOpen;
+    // Access ordered, so iteration starts with the least recently used channel
+    private final LinkedHashMap<File, PooledChannel> channels = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long opens;
+    private long closes;
+
+    FileChannelPool(int maxOpen) {
+        this.maxOpen = maxOpen;
+    }
+
+    static FileChannelPool instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a channel for the given file, opening it if necessary. The returned
+     * lease must be closed when the caller has finished with the channel.
+     *
+     * @param file The file to open
+     * @param identity The version of the file the caller expects, or
+     * <code>null</code> if not known
+     * @return A lease holding the open channel
+     * @throws IOException If the file cannot be opened
+     */
+    Lease acquire(File file, FileIdentity identity) throws IOException {
+        PooledChannel pc;
+        boolean opener = false;
+        synchronized (this) {
+            pc = channels.get(file);
+            if (pc != null && pc.isClosed()) {
+                // Channel was closed underneath us (for example by an interrupt)
+                channels.remove(file);
+                pc = null;
+            } else if (pc != null && identity != null && !identity.equals(pc.identity)) {
+                // The file has been replaced since the channel was opened
+                retire(pc);
+                pc = null;
+            }
+            if (pc == null) {
+                pc = new PooledChannel(file, identity);
+                channels.put(file, pc);
+                opens++;
+                opener = true;
+            } else {
+                hits++;
+            }
+            pc.refCount++;
+            if (opener) {
+                trim();
+            }
+        }
+        if (opener) {
+            try {
+                pc.channel.complete(AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ));
+            } catch (IOException | RuntimeException x) {
+                pc.channel.completeExceptionally(x);
+            }
+        }
+        try {
+            return new Lease(pc, pc.channel.join());
+        } catch (CompletionException x) {
+            synchronized (this) {
+                pc.refCount--;
+                if (channels.get(file) == pc) {
+                    channels.remove(file);
+                }
+            }
+            Throwable cause = x.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("Error opening " + file, cause);
+        }
+    }
+
+    /**
+     * Stop using the current channel for a file, for example because the file
+     * has been modified or replaced. The channel is closed once any reads in
+     * progress have finished.
+     *
+     * @param file The file
+     */
+    synchronized void invalidate(File file) {
+        PooledChannel pc = channels.get(file);
+        if (pc != null) {
+            retire(pc);
+        }
+    }
+
+    private void retire(PooledChannel pc) {
+        channels.remove(pc.file);
+        if (pc.refCount == 0) {
+            close(pc);
+        }
+    }
+
+    private synchronized void release(PooledChannel pc) {
+        pc.refCount--;
+        if (pc.refCount == 0 && channels.get(pc.file) != pc) {
+            close(pc);
+        }
+        trim();
+    }
+
+    /**
+     * Close idle channels until we are within the size limit. Channels which
+     * are in use are never closed, so the pool may temporarily exceed its
+     * limit.
+     */
+    private void trim() {
+        Iterator<PooledChannel> iterator = channels.values().iterator();
+        while (channels.size() > maxOpen && iterator.hasNext()) {
+            PooledChannel pc = iterator.next();
+            if (pc.refCount == 0) {
+                iterator.remove();
+                close(pc);
+            }
+        }
+    }
+
+    private void close(PooledChannel pc) {
+        // Only channels with no users are closed, and these have always finished opening
+        if (pc.channel.isCompletedExceptionally()) {
+            return;
+        }
+        try {
+            pc.channel.join().close();
+            closes++;
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Error closing " + pc.file, x);
+        }
+    }
+
+    synchronized int getOpenCount() {
+        return channels.size();
+    }
+
+    synchronized long getHitCount() {
+        return hits;
+    }
+
+    synchronized long getOpenedCount() {
+        return opens;
+    }
+
+    synchronized long getClosedCount() {
+        return closes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FileChannelPool{" + "open=" + channels.size() + ", max=" + maxOpen + ", hits=" + hits + ", opens=" + opens + ", closes=" + closes + '}';
+    }
+
+    private static class PooledChannel {
+
+        private final File file;
+        private final FileIdentity identity;
+        // Completed by the thread which opens the file
+        private final CompletableFuture<AsynchronousFileChannel> channel = new CompletableFuture<>();
+        private int refCount;
+
+        PooledChannel(File file, FileIdentity identity) {
+            this.file = file;
+            this.identity = identity;
+        }
+
+        boolean isClosed() {
+            AsynchronousFileChannel open = channel.getNow(null);
+            return open != null && !open.isOpen();
+        }
+    }
+
+    /**
+     * A reference to a pooled channel. Closing the lease returns the channel
+     * to the pool, it does not close the channel itself.
+     */
+    class Lease implements AutoCloseable {
+
+        private final PooledChannel pc;
+        private final AsynchronousFileChannel channel;
+        private boolean released;
+
+        private Lease(PooledChannel pc, AsynchronousFileChannel channel) {
+            this.pc = pc;
+            this.channel = channel;
+        }
+
+        AsynchronousFileChannel channel() {
+            return channel;
+        }
+
+        @Override
+        public void close() {
+            synchronized (FileChannelPool.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            release(pc);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Identifies a particular version of a file, so that cached data can be
+ * discarded if the file is rewritten. The file key (the inode on Unix) is
+ * included where the file system provides one, so that a file which is
+ * replaced by renaming a new file over it is detected even if the size and
+ * modification time happen to match.
+ *
+ * @author tonyj
+ */
+record FileIdentity(long size, long lastModified, Object fileKey) {
+
+    static FileIdentity of(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return new FileIdentity(attributes.size(), attributes.lastModifiedTime().toMillis(), attributes.fileKey());
+    }
+
+    /**
+     * Test if the file still matches this identity.
+     *
+     * @param file The file to check
+     * @return <code>true</code> if the file has not changed, <code>false</code>
+     * if it has been modified, replaced or can no longer be read.
+     */
+    boolean matches(File file) {
+        try {
+            return equals(of(file));
+        } catch (IOException x) {
+            return false;
+        }
+    }
+}
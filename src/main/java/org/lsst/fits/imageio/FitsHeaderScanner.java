@@ -0,0 +1,353 @@
+package org.lsst.fits.imageio;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletionException;
+import nom.tam.fits.TruncatedFileException;
+
+/**
+ * A lightweight scanner for FITS headers. Rather than building a full
+ * nom.tam.fits Header, with objects for every card, the scanner reads the
+ * 2880 byte header blocks into a reusable buffer and only parses the values
+ * of keywords which are actually asked for. It also computes the size of the
+ * data following each header so that it can be skipped without reading it.
+ * Headers can be read either from a local file, or from a
+ * {@link ByteRangeSource}, in which case data is fetched a few blocks at a time
+ * to reduce the number of requests.
+ *
+ * @author tonyj
+ */
+class FitsHeaderScanner implements FitsHeaderValues, Closeable {
+
+    static final int BLOCK_SIZE = 2880;
+    private static final int CARD_SIZE = 80;
+    private static final int KEYWORD_SIZE = 8;
+    private static final int VALUE_START = 10;
+
+    private static final int REMOTE_READ_AHEAD = BLOCK_SIZE * 8;
+
+    private final String name;
+    private final BlockReader reader;
+    private byte[] header = new byte[BLOCK_SIZE * 4];
+    private ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+    private int nCards;
+    private long position;
+    private long headerPosition;
+    private long dataPosition;
+
+    FitsHeaderScanner(File file) throws IOException {
+        this.name = file.toString();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.reader = new BlockReader() {
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                return channel.read(dst, position);
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Create a scanner which reads headers from a remote source.
+     *
+     * @param source The source to read from
+     * @param size The total size of the remote object
+     * @param name The name of the remote object, used in error messages
+     */
+    FitsHeaderScanner(ByteRangeSource source, long size, String name) {
+        this.name = name;
+        this.reader = new BlockReader() {
+            private ByteBuffer chunk;
+            private long chunkPosition;
+
+            @Override
+            public int read(ByteBuffer dst, long position) throws IOException {
+                if (position >= size) {
+                    return -1;
+                }
+                if (chunk == null || position < chunkPosition || position >= chunkPosition + chunk.limit()) {
+                    try {
+                        chunk = source.read(position, (int) Math.min(REMOTE_READ_AHEAD, size - position)).join();
+                        chunkPosition = position;
+                    } catch (CompletionException x) {
+                        throw x.getCause() instanceof IOException io ? io : new IOException("Error reading " + name, x.getCause());
+                    }
+                }
+                ByteBuffer src = chunk.duplicate();
+                src.position((int) (position - chunkPosition));
+                int n = Math.min(src.remaining(), dst.remaining());
+                src.limit(src.position() + n);
+                dst.put(src);
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Read the next header in the file. Any data following the previous header
+     * must have been skipped using {@link #skipData()}.
+     *
+     * @return <code>false</code> if the end of file has been reached
+     * @throws IOException If an IO error occurs
+     * @throws TruncatedFileException If the file ends part way through a
+     * header
+     */
+    boolean nextHeader() throws IOException, TruncatedFileException {
+        headerPosition = position;
+        int headerLength = 0;
+        for (;;) {
+            if (headerLength + BLOCK_SIZE > header.length) {
+                byte[] newHeader = new byte[header.length * 2];
+                System.arraycopy(header, 0, newHeader, 0, headerLength);
+                header = newHeader;
+                headerBuffer = ByteBuffer.wrap(header);
+            }
+            headerBuffer.limit(headerLength + BLOCK_SIZE).position(headerLength);
+            while (headerBuffer.hasRemaining()) {
+                if (reader.read(headerBuffer, headerPosition + headerBuffer.position()) < 0) {
+                    break;
+                }
+            }
+            if (headerBuffer.hasRemaining()) {
+                if (headerLength == 0 && headerBuffer.position() == 0) {
+                    return false;
+                }
+                throw new TruncatedFileException("Unexpected end of file while reading header at " + headerPosition + " in " + name);
+            }
+            int blockEnd = headerLength + BLOCK_SIZE;
+            for (int card = headerLength; card < blockEnd; card += CARD_SIZE) {
+                if (keywordMatches(card, "END")) {
+                    nCards = card / CARD_SIZE;
+                    dataPosition = headerPosition + blockEnd;
+                    position = dataPosition;
+                    return true;
+                }
+            }
+            headerLength = blockEnd;
+        }
+    }
+
+    /**
+     * Skip over the data following the current header.
+     */
+    void skipData() {
+        long size = getDataSize();
+        position = dataPosition + size + padding(size);
+    }
+
+    /**
+     * The position in the file of the start of the current header
+     *
+     * @return The header position
+     */
+    long getHeaderPosition() {
+        return headerPosition;
+    }
+
+    /**
+     * The position in the file of the data following the current header
+     *
+     * @return The data position
+     */
+    long getDataPosition() {
+        return dataPosition;
+    }
+
+    /**
+     * Compute the size of the data following the current header, excluding
+     * any padding.
+     *
+     * @return The data size in bytes
+     */
+    long getDataSize() {
+        int naxis = getIntValue("NAXIS");
+        if (naxis == 0) {
+            return 0;
+        }
+        long size = 1;
+        for (int i = 1; i <= naxis; i++) {
+            size *= getLongValue("NAXIS" + i);
+        }
+        long gcount = containsKey("GCOUNT") ? getLongValue("GCOUNT") : 1;
+        return Math.abs(getIntValue("BITPIX")) / 8 * gcount * (getLongValue("PCOUNT") + size);
+    }
+
+    static long padding(long size) {
+        long remainder = size % BLOCK_SIZE;
+        return remainder == 0 ? 0 : BLOCK_SIZE - remainder;
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return findCard(key) >= 0;
+    }
+
+    @Override
+    public String getStringValue(String key) {
+        int card = findValueCard(key);
+        if (card < 0) {
+            return null;
+        }
+        int p = skipSpaces(card + VALUE_START, card + CARD_SIZE);
+        int end = card + CARD_SIZE;
+        if (p >= end || header[p] != '\'') {
+            return null;
+        }
+        StringBuilder result = new StringBuilder(CARD_SIZE);
+        for (p++; p < end; p++) {
+            if (header[p] == '\'') {
+                // A doubled quote represents a single quote within the string
+                if (p + 1 < end && header[p + 1] == '\'') {
+                    p++;
+                } else {
+                    break;
+                }
+            }
+            result.append((char) header[p]);
+        }
+        int length = result.length();
+        while (length > 0 && result.charAt(length - 1) == ' ') {
+            length--;
+        }
+        result.setLength(length);
+        return result.toString();
+    }
+
+    @Override
+    public int getIntValue(String key) {
+        return (int) getLongValue(key);
+    }
+
+    @Override
+    public long getLongValue(String key) {
+        int card = findValueCard(key);
+        if (card < 0) {
+            return 0;
+        }
+        int end = card + CARD_SIZE;
+        int p = skipSpaces(card + VALUE_START, end);
+        boolean negative = false;
+        if (p < end && (header[p] == '-' || header[p] == '+')) {
+            negative = header[p] == '-';
+            p++;
+        }
+        long result = 0;
+        for (; p < end; p++) {
+            byte b = header[p];
+            if (b >= '0' && b <= '9') {
+                result = result * 10 + (b - '0');
+            } else if (b == '.' || b == 'E' || b == 'e' || b == 'D' || b == 'd') {
+                // Not actually an integer, fall back to parsing as a double
+                return (long) getDoubleValue(key);
+            } else {
+                break;
+            }
+        }
+        return negative ? -result : result;
+    }
+
+    @Override
+    public double getDoubleValue(String key) {
+        int card = findValueCard(key);
+        if (card < 0) {
+            return 0;
+        }
+        int end = card + CARD_SIZE;
+        int start = skipSpaces(card + VALUE_START, end);
+        int p = start;
+        while (p < end && header[p] != ' ' && header[p] != '/') {
+            p++;
+        }
+        if (p == start) {
+            return 0;
+        }
+        String value = new String(header, start, p - start, StandardCharsets.US_ASCII);
+        try {
+            return Double.parseDouble(value.replace('D', 'E').replace('d', 'e'));
+        } catch (NumberFormatException x) {
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean getBooleanValue(String key) {
+        int card = findValueCard(key);
+        if (card < 0) {
+            return false;
+        }
+        int p = skipSpaces(card + VALUE_START, card + CARD_SIZE);
+        return p < card + CARD_SIZE && header[p] == 'T';
+    }
+
+    private int skipSpaces(int p, int end) {
+        while (p < end && header[p] == ' ') {
+            p++;
+        }
+        return p;
+    }
+
+    /**
+     * Find the card with the given keyword.
+     *
+     * @param key The keyword
+     * @return The offset of the card in the header buffer, or -1 if not found
+     */
+    private int findCard(String key) {
+        if (key.length() > KEYWORD_SIZE) {
+            return -1;
+        }
+        for (int i = 0; i < nCards; i++) {
+            int card = i * CARD_SIZE;
+            if (keywordMatches(card, key)) {
+                return card;
+            }
+        }
+        return -1;
+    }
+
+    private int findValueCard(String key) {
+        int card = findCard(key);
+        if (card >= 0 && header[card + KEYWORD_SIZE] == '=' && header[card + KEYWORD_SIZE + 1] == ' ') {
+            return card;
+        }
+        return -1;
+    }
+
+    private boolean keywordMatches(int card, String key) {
+        int length = key.length();
+        for (int i = 0; i < length; i++) {
+            if (header[card + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        for (int i = length; i < KEYWORD_SIZE; i++) {
+            if (header[card + i] != ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private interface BlockReader extends Closeable {
+
+        int read(ByteBuffer dst, long position) throws IOException;
+    }
+}
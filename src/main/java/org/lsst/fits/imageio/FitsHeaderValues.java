@@ -0,0 +1,98 @@
+package org.lsst.fits.imageio;
+
+import java.util.Map;
+import nom.tam.fits.Header;
+
+/**
+ * The subset of FITS header access needed to build segments. This allows
+ * segments to be created either from a full nom.tam.fits {@link Header}, or
+ * from the lightweight {@link FitsHeaderScanner}, or for non-FITS
+ * {@link SegmentSource}s from a map of values. As with nom.tam.fits,
+ * missing numeric and boolean values are returned as zero/false, and missing
+ * string values as <code>null</code>.
+ *
+ * @author tonyj
+ */
+public interface FitsHeaderValues {
+
+    boolean containsKey(String key);
+
+    String getStringValue(String key);
+
+    int getIntValue(String key);
+
+    long getLongValue(String key);
+
+    double getDoubleValue(String key);
+
+    boolean getBooleanValue(String key);
+
+    static FitsHeaderValues of(Header header) {
+        return new FitsHeaderValues() {
+            @Override
+            public boolean containsKey(String key) {
+                return header.containsKey(key);
+            }
+
+            @Override
+            public String getStringValue(String key) {
+                return header.getStringValue(key);
+            }
+
+            @Override
+            public int getIntValue(String key) {
+                return header.getIntValue(key);
+            }
+
+            @Override
+            public long getLongValue(String key) {
+                return header.getLongValue(key);
+            }
+
+            @Override
+            public double getDoubleValue(String key) {
+                return header.getDoubleValue(key);
+            }
+
+            @Override
+            public boolean getBooleanValue(String key) {
+                return header.getBooleanValue(key);
+            }
+        };
+    }
+
+    static FitsHeaderValues of(Map<String, Object> values) {
+        return new FitsHeaderValues() {
+            @Override
+            public boolean containsKey(String key) {
+                return values.containsKey(key);
+            }
+
+            @Override
+            public String getStringValue(String key) {
+                Object value = values.get(key);
+                return value == null ? null : value.toString();
+            }
+
+            @Override
+            public int getIntValue(String key) {
+                return (int) getLongValue(key);
+            }
+
+            @Override
+            public long getLongValue(String key) {
+                return values.get(key) instanceof Number number ? number.longValue() : 0;
+            }
+
+            @Override
+            public double getDoubleValue(String key) {
+                return values.get(key) instanceof Number number ? number.doubleValue() : 0;
+            }
+
+            @Override
+            public boolean getBooleanValue(String key) {
+                return Boolean.TRUE.equals(values.get(key));
+            }
+        };
+    }
+}
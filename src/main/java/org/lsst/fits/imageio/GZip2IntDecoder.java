@@ -0,0 +1,118 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletionException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A decoder for GZIP_2 compressed tiles of 32 bit integers. This does the
+ * same job as nom.tam's <code>GZip2Compressor.IntGZip2Compressor</code>, but
+ * without allocating anything per tile. The gzip header is skipped in place,
+ * the deflated data is inflated directly from the (possibly direct) compressed
+ * buffer into a scratch array, and the bytes are unshuffled straight into the
+ * destination array (using {@link PixelKernels}). The Inflater and scratch array are kept per thread, so a
+ * single instance can be shared by all threads.
+ * <p>
+ * Since the per thread Inflaters are never ended their native memory is only
+ * released when the thread exits, which is fine for the bounded thread pools
+ * used for decoding.
+ *
+ * @author tonyj
+ */
+public class GZip2IntDecoder implements TileDecompressor<IntBuffer> {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final GZip2IntDecoder INSTANCE = new GZip2IntDecoder();
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+    private static class State {
+
+        private final Inflater inflater = new Inflater(true);
+        private byte[] scratch = new byte[0];
+
+        byte[] scratch(int size) {
+            if (scratch.length < size) {
+                scratch = new byte[size];
+            }
+            return scratch;
+        }
+    }
+
+    public static GZip2IntDecoder instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Decode a single tile.
+     *
+     * @param compressed The compressed tile, from its position to its limit.
+     * The position is advanced past the data consumed.
+     * @param out The buffer to receive the decoded values, which is filled
+     * from its position to its limit. The position is not changed.
+     */
+    @Override
+    public void decompress(ByteBuffer compressed, IntBuffer out) {
+        int n = out.remaining();
+        int length = n * 4;
+        State state = STATE.get();
+        byte[] bytes = state.scratch(length);
+        Inflater inflater = state.inflater;
+        inflater.reset();
+        skipHeader(compressed);
+        inflater.setInput(compressed);
+        try {
+            int p = 0;
+            while (p < length && !inflater.finished()) {
+                int l = inflater.inflate(bytes, p, length - p);
+                if (l == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new CompletionException(new DataFormatException("Truncated GZIP_2 tile"));
+                }
+                p += l;
+            }
+        } catch (DataFormatException x) {
+            throw new CompletionException("Error decompressing image", x);
+        }
+        unshuffle(bytes, n, out);
+    }
+
+    private static void skipHeader(ByteBuffer bb) {
+        int start = bb.position();
+        if ((bb.get(start) & 0xff) != 0x1f || (bb.get(start + 1) & 0xff) != 0x8b || bb.get(start + 2) != 8) {
+            throw new CompletionException(new DataFormatException("Invalid GZIP header"));
+        }
+        int flags = bb.get(start + 3);
+        int p = start + 10;
+        if ((flags & FEXTRA) != 0) {
+            p += 2 + ((bb.get(p) & 0xff) | (bb.get(p + 1) & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            while (bb.get(p++) != 0);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (bb.get(p++) != 0);
+        }
+        if ((flags & FHCRC) != 0) {
+            p += 2;
+        }
+        bb.position(p);
+    }
+
+    // The bytes of each value are stored shuffled, all of the most significant
+    // bytes first, then all of the next most significant bytes and so on.
+    private static void unshuffle(byte[] in, int n, IntBuffer out) {
+        if (out.hasArray()) {
+            PixelKernels.instance().unshuffle(in, n, out.array(), out.arrayOffset() + out.position());
+        } else {
+            int position = out.position();
+            for (int i = 0; i < n; i++) {
+                out.put(position + i, ((0xff & in[i]) << 24) | ((0xff & in[i + n]) << 16) | ((0xff & in[i + 2 * n]) << 8) | (0xff & in[i + 3 * n]));
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.lsst.fits.imageio;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable histogram of pixel counts used to scale all of the segments of
+ * an image consistently. Instances are interned, so that the same counts
+ * supplied on different requests give the same object, and carry a
+ * precomputed 64 bit fingerprint of their contents, so they can be used
+ * cheaply in cache keys (unlike a <code>long[]</code>, whose equality is
+ * identity, and whose hash would require scanning all 2<sup>18</sup> bins).
+ *
+ * @author tonyj
+ */
+public final class GlobalScale {
+
+    private static final ConcurrentHashMap<Long, Interned> INTERNED = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<GlobalScale> QUEUE = new ReferenceQueue<>();
+
+    private final long[] counts;
+    private final long fingerprint;
+
+    private static class Interned extends WeakReference<GlobalScale> {
+
+        private final long fingerprint;
+
+        Interned(GlobalScale scale) {
+            super(scale, QUEUE);
+            this.fingerprint = scale.fingerprint;
+        }
+    }
+
+    private GlobalScale(long[] counts, long fingerprint) {
+        this.counts = counts;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Get the global scale for the given counts.
+     *
+     * @param counts The counts, which are copied so may be modified afterwards
+     * @return The interned global scale, or <code>null</code> if counts is
+     * <code>null</code>
+     */
+    public static GlobalScale of(long[] counts) {
+        return counts == null ? null : intern(counts.clone());
+    }
+
+    /**
+     * Get the global scale for counts which will not be modified, avoiding the
+     * copy made by {@link #of(long[])}.
+     */
+    static GlobalScale wrap(long[] counts) {
+        return intern(counts);
+    }
+
+    private static GlobalScale intern(long[] counts) {
+        expungeStaleEntries();
+        GlobalScale scale = new GlobalScale(counts, fingerprint(counts));
+        for (;;) {
+            Interned existing = INTERNED.putIfAbsent(scale.fingerprint, new Interned(scale));
+            if (existing == null) {
+                return scale;
+            }
+            GlobalScale other = existing.get();
+            if (other == null) {
+                INTERNED.remove(scale.fingerprint, existing);
+            } else {
+                // In the (very unlikely) event of a fingerprint collision the new scale is not interned
+                return Arrays.equals(other.counts, counts) ? other : scale;
+            }
+        }
+    }
+
+    private static void expungeStaleEntries() {
+        for (Interned stale; (stale = (Interned) QUEUE.poll()) != null;) {
+            INTERNED.remove(stale.fingerprint, stale);
+        }
+    }
+
+    /**
+     * A 64 bit hash of the counts, in which every bit of every count affects
+     * every bit of the result.
+     */
+    static long fingerprint(long[] counts) {
+        long hash = counts.length;
+        for (long count : counts) {
+            // Mix each count (as in SplitMix64) so every bit affects the result
+            long z = count * 0x9e3779b97f4a7c15L;
+            z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+            hash = Long.rotateLeft(hash, 23) * 31 + (z ^ (z >>> 31));
+        }
+        return hash;
+    }
+
+    /**
+     * The 64 bit fingerprint of the counts.
+     *
+     * @return The fingerprint
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Get a copy of the counts.
+     *
+     * @return The counts
+     */
+    public long[] getCounts() {
+        return counts.clone();
+    }
+
+    /**
+     * The counts, which must not be modified.
+     */
+    long[] counts() {
+        return counts;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(fingerprint);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof GlobalScale other)) {
+            return false;
+        }
+        return fingerprint == other.fingerprint && Arrays.equals(counts, other.counts);
+    }
+
+    @Override
+    public String toString() {
+        return "GlobalScale{" + "fingerprint=" + Long.toHexString(fingerprint) + '}';
+    }
+}
@@ -0,0 +1,493 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletionException;
+import nom.tam.fits.FitsException;
+
+/**
+ * A decoder for HCOMPRESS_1 compressed tiles, following the algorithm used by
+ * cfitsio. The quadtree coded bit planes are decoded, scaled, and the
+ * H-transform inverted. Smoothing (<code>SMOOTH</code> &ne; 0) is a display
+ * hint which is ignored, so the result is always the unsmoothed image. The
+ * scratch arrays are reused from tile to tile, so instances are not thread
+ * safe.
+ *
+ * @author tonyj
+ */
+class HCompressDecoder implements TileDecompressor<IntBuffer> {
+
+    private byte[] input = new byte[0];
+    private int[] image = new int[0];
+    private byte[] quads = new byte[0];
+    private int[] tmp = new int[0];
+    // Bit reader state
+    private int nextChar;
+    private int buffer;
+    private int bitsToGo;
+
+    @Override
+    public void decompress(ByteBuffer compressed, IntBuffer out) {
+        int length = compressed.remaining();
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        compressed.get(input, 0, length);
+        try {
+            if ((input[0] & 0xff) != 0xdd || (input[1] & 0xff) != 0x99) {
+                throw new FitsException("Invalid HCOMPRESS_1 tile");
+            }
+            nextChar = 2;
+            int nx = readInt();
+            int ny = readInt();
+            int scale = readInt();
+            long sumAll = readLong();
+            int nel = nx * ny;
+            if (nel != out.remaining()) {
+                throw new FitsException("HCOMPRESS_1 tile size " + nx + "x" + ny + " does not match expected " + out.remaining());
+            }
+            int[] nbitplanes = {input[nextChar++] & 0xff, input[nextChar++] & 0xff, input[nextChar++] & 0xff};
+            if (image.length < nel) {
+                image = new int[nel];
+            }
+            int[] a = image;
+            decode(a, nx, ny, nbitplanes);
+            a[0] = (int) sumAll;
+            if (scale > 1) {
+                for (int i = 0; i < nel; i++) {
+                    a[i] *= scale;
+                }
+            }
+            hinv(a, nx, ny);
+            out.duplicate().put(a, 0, nel);
+        } catch (FitsException | ArrayIndexOutOfBoundsException x) {
+            throw new CompletionException("Error decoding HCOMPRESS_1 tile", x);
+        }
+    }
+
+    private int readInt() {
+        int a = 0;
+        for (int i = 0; i < 4; i++) {
+            a = (a << 8) | (input[nextChar++] & 0xff);
+        }
+        return a;
+    }
+
+    private long readLong() {
+        long a = 0;
+        for (int i = 0; i < 8; i++) {
+            a = (a << 8) | (input[nextChar++] & 0xff);
+        }
+        return a;
+    }
+
+    private void decode(int[] a, int nx, int ny, int[] nbitplanes) throws FitsException {
+        int nel = nx * ny;
+        int nx2 = (nx + 1) / 2;
+        int ny2 = (ny + 1) / 2;
+        Arrays.fill(a, 0, nel, 0);
+        bitsToGo = 0;
+        // Read the bit planes for each quadrant
+        qtreeDecode(a, 0, ny, nx2, ny2, nbitplanes[0]);
+        qtreeDecode(a, ny2, ny, nx2, ny / 2, nbitplanes[1]);
+        qtreeDecode(a, ny * nx2, ny, nx / 2, ny2, nbitplanes[1]);
+        qtreeDecode(a, ny * nx2 + ny2, ny, nx / 2, ny / 2, nbitplanes[2]);
+        if (inputNybble() != 0) {
+            throw new FitsException("HCOMPRESS_1 tile missing end of data marker");
+        }
+        // Now read the sign bits
+        bitsToGo = 0;
+        for (int i = 0; i < nel; i++) {
+            if (a[i] != 0 && inputBit() != 0) {
+                a[i] = -a[i];
+            }
+        }
+    }
+
+    private void qtreeDecode(int[] a, int offset, int n, int nqx, int nqy, int nbitplanes) throws FitsException {
+        int nqmax = Math.max(nqx, nqy);
+        int log2n = log2(nqmax);
+        int nqx2 = (nqx + 1) / 2;
+        int nqy2 = (nqy + 1) / 2;
+        if (quads.length < nqx2 * nqy2) {
+            quads = new byte[nqx2 * nqy2];
+        }
+        byte[] scratch = quads;
+        for (int bit = nbitplanes - 1; bit >= 0; bit--) {
+            int b = inputNybble();
+            if (b == 0) {
+                // Bit map was written directly, 4 pixels per nybble
+                for (int i = 0; i < nqx2 * nqy2; i++) {
+                    scratch[i] = (byte) inputNybble();
+                }
+            } else if (b != 0xf) {
+                throw new FitsException("Bad HCOMPRESS_1 quadtree format code");
+            } else {
+                // Bit map was quadtree coded, do log2n expansions
+                scratch[0] = (byte) inputHuffman();
+                int nx = 1;
+                int ny = 1;
+                int nfx = nqx;
+                int nfy = nqy;
+                int c = 1 << log2n;
+                for (int k = 1; k < log2n; k++) {
+                    // Generates the sequence n[k-1] = (n[k]+1)/2 where n[log2n] = nqx or nqy
+                    c >>= 1;
+                    nx <<= 1;
+                    ny <<= 1;
+                    if (nfx <= c) {
+                        nx -= 1;
+                    } else {
+                        nfx -= c;
+                    }
+                    if (nfy <= c) {
+                        ny -= 1;
+                    } else {
+                        nfy -= c;
+                    }
+                    qtreeExpand(scratch, nx, ny);
+                }
+            }
+            qtreeBitins(scratch, nqx, nqy, a, offset, n, bit);
+        }
+    }
+
+    private void qtreeExpand(byte[] b, int nx, int ny) {
+        qtreeCopy(b, nx, ny, ny);
+        // Read new 4-bit values for each non-zero element
+        for (int i = nx * ny - 1; i >= 0; i--) {
+            if (b[i] != 0) {
+                b[i] = (byte) inputHuffman();
+            }
+        }
+    }
+
+    /**
+     * Copy 4-bit values from b[(nx+1)/2,(ny+1)/2] to b[nx,ny], expanding each
+     * value to 2x2 pixels.
+     */
+    private static void qtreeCopy(byte[] b, int nx, int ny, int n) {
+        int nx2 = (nx + 1) / 2;
+        int ny2 = (ny + 1) / 2;
+        // Start at end since the source and destination are the same array
+        int k = ny2 * (nx2 - 1) + ny2 - 1;
+        for (int i = nx2 - 1; i >= 0; i--) {
+            int s00 = 2 * (n * i + ny2 - 1);
+            for (int j = ny2 - 1; j >= 0; j--) {
+                b[s00] = b[k];
+                k -= 1;
+                s00 -= 2;
+            }
+        }
+        int i;
+        for (i = 0; i < nx - 1; i += 2) {
+            int s00 = n * i;
+            int s10 = s00 + n;
+            int j;
+            for (j = 0; j < ny - 1; j += 2) {
+                int v = b[s00];
+                b[s10 + 1] = (byte) (v & 1);
+                b[s10] = (byte) ((v >> 1) & 1);
+                b[s00 + 1] = (byte) ((v >> 2) & 1);
+                b[s00] = (byte) ((v >> 3) & 1);
+                s00 += 2;
+                s10 += 2;
+            }
+            if (j < ny) {
+                // Row size is odd, do last element in row
+                b[s10] = (byte) ((b[s00] >> 1) & 1);
+                b[s00] = (byte) ((b[s00] >> 3) & 1);
+            }
+        }
+        if (i < nx) {
+            // Column size is odd, do last row
+            int s00 = n * i;
+            int j;
+            for (j = 0; j < ny - 1; j += 2) {
+                b[s00 + 1] = (byte) ((b[s00] >> 2) & 1);
+                b[s00] = (byte) ((b[s00] >> 3) & 1);
+                s00 += 2;
+            }
+            if (j < ny) {
+                b[s00] = (byte) ((b[s00] >> 3) & 1);
+            }
+        }
+    }
+
+    /**
+     * Insert the 4-bit values in a[(nx+1)/2,(ny+1)/2] into bit plane bit of
+     * b[nx,ny].
+     */
+    private static void qtreeBitins(byte[] a, int nx, int ny, int[] b, int offset, int n, int bit) {
+        int planeVal = 1 << bit;
+        int k = 0;
+        int i;
+        for (i = 0; i < nx - 1; i += 2) {
+            int s00 = offset + n * i;
+            int j;
+            for (j = 0; j < ny - 1; j += 2) {
+                int v = a[k];
+                if ((v & 1) != 0) {
+                    b[s00 + n + 1] |= planeVal;
+                }
+                if ((v & 2) != 0) {
+                    b[s00 + n] |= planeVal;
+                }
+                if ((v & 4) != 0) {
+                    b[s00 + 1] |= planeVal;
+                }
+                if ((v & 8) != 0) {
+                    b[s00] |= planeVal;
+                }
+                s00 += 2;
+                k += 1;
+            }
+            if (j < ny) {
+                // Row size is odd, do last element in row
+                if ((a[k] & 2) != 0) {
+                    b[s00 + n] |= planeVal;
+                }
+                if ((a[k] & 8) != 0) {
+                    b[s00] |= planeVal;
+                }
+                k += 1;
+            }
+        }
+        if (i < nx) {
+            // Column size is odd, do last row
+            int s00 = offset + n * i;
+            int j;
+            for (j = 0; j < ny - 1; j += 2) {
+                if ((a[k] & 4) != 0) {
+                    b[s00 + 1] |= planeVal;
+                }
+                if ((a[k] & 8) != 0) {
+                    b[s00] |= planeVal;
+                }
+                s00 += 2;
+                k += 1;
+            }
+            if (j < ny && (a[k] & 8) != 0) {
+                b[s00] |= planeVal;
+            }
+        }
+    }
+
+    /**
+     * Invert the H-transform, in place.
+     */
+    private void hinv(int[] a, int nx, int ny) {
+        int nmax = Math.max(nx, ny);
+        int log2n = log2(nmax);
+        if (tmp.length < (nmax + 1) / 2) {
+            tmp = new int[(nmax + 1) / 2];
+        }
+        int shift = 1;
+        int bit0 = 1 << (log2n - 1);
+        int bit1 = bit0 << 1;
+        int mask0 = -bit0;
+        int mask1 = mask0 << 1;
+        int mask2 = mask0 << 2;
+        int prnd0 = bit0 >> 1;
+        int prnd1 = bit1 >> 1;
+        int prnd2 = bit1;
+        int nrnd0 = prnd0 - 1;
+        int nrnd1 = prnd1 - 1;
+        int nrnd2 = prnd2 - 1;
+        // Round h0 to multiple of bit2
+        a[0] = (a[0] + ((a[0] >= 0) ? prnd2 : nrnd2)) & mask2;
+        int nxtop = 1;
+        int nytop = 1;
+        int nxf = nx;
+        int nyf = ny;
+        int c = 1 << log2n;
+        for (int k = log2n - 1; k >= 0; k--) {
+            c >>= 1;
+            nxtop <<= 1;
+            nytop <<= 1;
+            if (nxf <= c) {
+                nxtop -= 1;
+            } else {
+                nxf -= c;
+            }
+            if (nyf <= c) {
+                nytop -= 1;
+            } else {
+                nyf -= c;
+            }
+            // Double shift and fix nrnd0 (because prnd0=0) on last pass
+            if (k == 0) {
+                nrnd0 = 0;
+                shift = 2;
+            }
+            // Unshuffle in each dimension to interleave coefficients
+            for (int i = 0; i < nxtop; i++) {
+                unshuffle(a, ny * i, nytop, 1);
+            }
+            for (int j = 0; j < nytop; j++) {
+                unshuffle(a, j, nxtop, ny);
+            }
+            int oddx = nxtop % 2;
+            int oddy = nytop % 2;
+            int i;
+            for (i = 0; i < nxtop - oddx; i += 2) {
+                int s00 = ny * i;
+                int s10 = s00 + ny;
+                for (int j = 0; j < nytop - oddy; j += 2) {
+                    int h0 = a[s00];
+                    int hx = a[s10];
+                    int hy = a[s00 + 1];
+                    int hc = a[s10 + 1];
+                    // Round hx and hy to multiple of bit1, hc to multiple of bit0
+                    hx = (hx + ((hx >= 0) ? prnd1 : nrnd1)) & mask1;
+                    hy = (hy + ((hy >= 0) ? prnd1 : nrnd1)) & mask1;
+                    hc = (hc + ((hc >= 0) ? prnd0 : nrnd0)) & mask0;
+                    // Propagate bit0 of hc to hx,hy
+                    int lowbit0 = hc & bit0;
+                    hx = (hx >= 0) ? (hx - lowbit0) : (hx + lowbit0);
+                    hy = (hy >= 0) ? (hy - lowbit0) : (hy + lowbit0);
+                    // Propagate bits 0 and 1 of hc,hx,hy to h0
+                    int lowbit1 = (hc ^ hx ^ hy) & bit1;
+                    h0 = (h0 >= 0) ? (h0 + lowbit0 - lowbit1) : (h0 + ((lowbit0 == 0) ? lowbit1 : (lowbit0 - lowbit1)));
+                    a[s10 + 1] = (h0 + hx + hy + hc) >> shift;
+                    a[s10] = (h0 + hx - hy - hc) >> shift;
+                    a[s00 + 1] = (h0 - hx + hy - hc) >> shift;
+                    a[s00] = (h0 - hx - hy + hc) >> shift;
+                    s00 += 2;
+                    s10 += 2;
+                }
+                if (oddy != 0) {
+                    // Do last element in row if row length is odd
+                    int h0 = a[s00];
+                    int hx = a[s10];
+                    hx = ((hx >= 0) ? (hx + prnd1) : (hx + nrnd1)) & mask1;
+                    int lowbit1 = hx & bit1;
+                    h0 = (h0 >= 0) ? (h0 - lowbit1) : (h0 + lowbit1);
+                    a[s10] = (h0 + hx) >> shift;
+                    a[s00] = (h0 - hx) >> shift;
+                }
+            }
+            if (oddx != 0) {
+                // Do last row if column length is odd
+                int s00 = ny * i;
+                for (int j = 0; j < nytop - oddy; j += 2) {
+                    int h0 = a[s00];
+                    int hy = a[s00 + 1];
+                    hy = ((hy >= 0) ? (hy + prnd1) : (hy + nrnd1)) & mask1;
+                    int lowbit1 = hy & bit1;
+                    h0 = (h0 >= 0) ? (h0 - lowbit1) : (h0 + lowbit1);
+                    a[s00 + 1] = (h0 + hy) >> shift;
+                    a[s00] = (h0 - hy) >> shift;
+                    s00 += 2;
+                }
+                if (oddy != 0) {
+                    // Do corner element if both row and column lengths are odd
+                    a[s00] = a[s00] >> shift;
+                }
+            }
+            // Divide all the masks and rounding values by 2
+            bit1 = bit0;
+            bit0 = bit0 >> 1;
+            mask1 = mask0;
+            mask0 = mask0 >> 1;
+            prnd1 = prnd0;
+            prnd0 = prnd0 >> 1;
+            nrnd1 = nrnd0;
+            nrnd0 = prnd0 - 1;
+        }
+    }
+
+    /**
+     * Interleave the first and second halves of the n elements of a starting
+     * at offset with stride n2.
+     */
+    private void unshuffle(int[] a, int offset, int n, int n2) {
+        int nhalf = (n + 1) >> 1;
+        // Copy 2nd half of array to tmp
+        for (int i = nhalf, p1 = offset + n2 * nhalf, pt = 0; i < n; i++, p1 += n2, pt++) {
+            tmp[pt] = a[p1];
+        }
+        // Distribute 1st half of array to even elements
+        for (int i = nhalf - 1, p2 = offset + n2 * (nhalf - 1), p1 = offset + ((n2 * (nhalf - 1)) << 1); i >= 0; i--, p2 -= n2, p1 -= n2 + n2) {
+            a[p1] = a[p2];
+        }
+        // Distribute 2nd half of array (in tmp) to odd elements
+        for (int i = 1, p1 = offset + n2, pt = 0; i < n; i += 2, p1 += n2 + n2, pt++) {
+            a[p1] = tmp[pt];
+        }
+    }
+
+    private static int log2(int n) {
+        int log2n = (int) (Math.log(n) / Math.log(2.0) + 0.5);
+        if (n > (1 << log2n)) {
+            log2n += 1;
+        }
+        return log2n;
+    }
+
+    private int inputBit() {
+        if (bitsToGo == 0) {
+            buffer = input[nextChar++] & 0xff;
+            bitsToGo = 8;
+        }
+        bitsToGo -= 1;
+        return (buffer >> bitsToGo) & 1;
+    }
+
+    private int inputNbits(int n) {
+        if (bitsToGo < n) {
+            buffer = (buffer << 8) | (input[nextChar++] & 0xff);
+            bitsToGo += 8;
+        }
+        bitsToGo -= n;
+        return (buffer >> bitsToGo) & ((1 << n) - 1);
+    }
+
+    private int inputNybble() {
+        return inputNbits(4);
+    }
+
+    /**
+     * Huffman decoding for fixed codes. Coded values range from 0-15. Codes
+     * are 3 to 6 bits long.
+     */
+    private int inputHuffman() {
+        int c = inputNbits(3);
+        if (c < 4) {
+            return 1 << c;
+        }
+        c = inputBit() | (c << 1);
+        if (c < 13) {
+            switch (c) {
+                case 8:
+                    return 3;
+                case 9:
+                    return 5;
+                case 10:
+                    return 10;
+                case 11:
+                    return 12;
+                default:
+                    return 15;
+            }
+        }
+        c = inputBit() | (c << 1);
+        if (c < 31) {
+            switch (c) {
+                case 26:
+                    return 6;
+                case 27:
+                    return 7;
+                case 28:
+                    return 9;
+                case 29:
+                    return 11;
+                default:
+                    return 13;
+            }
+        }
+        c = inputBit() | (c << 1);
+        return c == 62 ? 0 : 14;
+    }
+}
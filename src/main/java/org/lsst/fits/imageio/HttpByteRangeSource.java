@@ -0,0 +1,153 @@
+package org.lsst.fits.imageio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads byte ranges from an object accessed over HTTP, for example from an S3
+ * compatible object store, using range requests. Connections time out after
+ * <code>org.lsst.fits.imageio.httpConnectTimeoutMillis</code>, and requests
+ * (including reading the response body) after
+ * <code>org.lsst.fits.imageio.httpRequestTimeoutMillis</code>, so a stalled
+ * server results in an IOException rather than a hang.
+ *
+ * @author tonyj
+ */
+class HttpByteRangeSource implements ByteRangeSource {
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofMillis(Long.getLong("org.lsst.fits.imageio.httpConnectTimeoutMillis", 10_000L));
+    private static final Duration REQUEST_TIMEOUT = Duration.ofMillis(Long.getLong("org.lsst.fits.imageio.httpRequestTimeoutMillis", 60_000L));
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    private static final AtomicLong REQUESTS = new AtomicLong();
+
+    private final URI uri;
+
+    HttpByteRangeSource(URI uri) {
+        this.uri = uri;
+    }
+
+    URI getURI() {
+        return uri;
+    }
+
+    @Override
+    public CompletableFuture<ByteBuffer> read(long position, int length) {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Range", "bytes=" + position + "-" + (position + length - 1))
+                .timeout(REQUEST_TIMEOUT)
+                .GET()
+                .build();
+        REQUESTS.incrementAndGet();
+        CompletableFuture<ByteBuffer> read = CLIENT.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).thenApply((response) -> {
+            try (InputStream in = response.body()) {
+                if (response.statusCode() == 200) {
+                    // Server ignored the range, and is sending the whole object, so skip to the start of the range
+                    in.skipNBytes(position);
+                } else if (response.statusCode() != 206) {
+                    throw new IOException("HTTP status " + response.statusCode() + " reading " + uri);
+                }
+                byte[] body = in.readNBytes(length);
+                if (body.length < length) {
+                    throw new EOFException();
+                }
+                return ByteBuffer.wrap(body).order(ByteOrder.BIG_ENDIAN);
+            } catch (EOFException x) {
+                throw new CompletionException(new IOException("Short response reading " + length + " bytes at " + position + " from " + uri, x));
+            } catch (IOException x) {
+                throw new CompletionException(x);
+            }
+        });
+        // The request timeout only covers receiving the headers, so the whole read is also limited
+        return read.orTimeout(REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).handle((bb, x) -> {
+            if (x == null) {
+                return bb;
+            }
+            Throwable cause = x instanceof CompletionException && x.getCause() != null ? x.getCause() : x;
+            if (cause instanceof TimeoutException || cause instanceof HttpTimeoutException) {
+                throw new CompletionException(new IOException("Timed out reading " + length + " bytes at " + position + " from " + uri, cause));
+            }
+            throw x instanceof CompletionException completion ? completion : new CompletionException(x);
+        });
+    }
+
+    /**
+     * Get the current identity of the object, using a HEAD request. The ETag
+     * is used in place of the file key.
+     *
+     * @return The identity
+     * @throws IOException If the object cannot be accessed
+     */
+    FileIdentity identity() throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .timeout(REQUEST_TIMEOUT)
+                .build();
+        REQUESTS.incrementAndGet();
+        try {
+            HttpResponse<Void> response = CLIENT.send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP status " + response.statusCode() + " reading " + uri);
+            }
+            long size = response.headers().firstValueAsLong("Content-Length").orElseThrow(() -> new IOException("Missing Content-Length for " + uri));
+            long lastModified = 0;
+            String lastModifiedString = response.headers().firstValue("Last-Modified").orElse(null);
+            if (lastModifiedString != null) {
+                try {
+                    lastModified = ZonedDateTime.parse(lastModifiedString, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                } catch (DateTimeParseException x) {
+                    // Treat as unknown
+                }
+            }
+            return new FileIdentity(size, lastModified, response.headers().firstValue("ETag").orElse(null));
+        } catch (HttpTimeoutException x) {
+            throw new IOException("Timed out reading " + uri, x);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + uri, x);
+        }
+    }
+
+    /**
+     * The total number of requests made, used for monitoring.
+     *
+     * @return The number of requests
+     */
+    static long getRequestCount() {
+        return REQUESTS.get();
+    }
+
+    @Override
+    public int hashCode() {
+        return uri.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof HttpByteRangeSource other && uri.equals(other.uri);
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
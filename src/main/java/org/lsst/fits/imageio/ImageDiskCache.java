@@ -0,0 +1,422 @@
+package org.lsst.fits.imageio;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import javax.imageio.ImageTypeSpecifier;
+
+/**
+ * A second level cache of rendered images, stored in a local directory
+ * (ideally on an SSD) so that they survive eviction from the in memory cache
+ * and restarts. Each image is stored in its own file, named from a hash of a
+ * descriptor of everything the image depends on. The file contains the
+ * descriptor, the image size and the raw pixel data, with a CRC so that
+ * truncated or corrupted files are detected (and deleted) rather than being
+ * displayed. When the total size exceeds the limit the least recently used
+ * files which are not being read are deleted. Images are written on a single
+ * background thread, and if it falls behind further writes are dropped rather
+ * than holding on to the images.
+ *
+ * @author tonyj
+ */
+class ImageDiskCache {
+
+    private static final Logger LOG = Logger.getLogger(ImageDiskCache.class.getName());
+    private static final int MAGIC = 0x4c534943;
+    private static final int VERSION = 3;
+    private static final int MAX_DESCRIPTOR_BYTES = 1 << 20;
+    // Pixels are copied to and from the file in chunks of this size, so a CRC can be computed on the way
+    private static final int CHUNK_BYTES = 1 << 16;
+    private static final String SUFFIX = ".img";
+    private static final int WRITE_QUEUE_SIZE = Integer.getInteger("org.lsst.fits.imageio.imageDiskCacheWriteQueueSize", 100);
+
+    private final Path directory;
+    private final long maxBytes;
+    // Access ordered, so iteration starts with the least recently used file
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ThreadPoolExecutor writer;
+    private long totalBytes;
+    private long hits;
+    private long misses;
+    private long writes;
+    private long evictions;
+    private long corrupt;
+    private long dropped;
+
+    private static class Entry {
+
+        private final long size;
+        // The number of reads in progress, the file is not deleted to free space while this is non zero
+        private int readers;
+
+        Entry(long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * Create a cache using the given directory. Files already in the directory
+     * are kept, with the most recently modified treated as most recently used.
+     *
+     * @param directory The directory, which is created if necessary
+     * @param maxBytes The maximum total size of the files
+     * @throws IOException If the directory cannot be created or read
+     */
+    ImageDiskCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.writer = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new ArrayBlockingQueue<>(WRITE_QUEUE_SIZE), (Runnable r) -> {
+            Thread thread = new Thread(r, "ImageDiskCacheWriter");
+            thread.setDaemon(true);
+            return thread;
+        }, (Runnable r, ThreadPoolExecutor executor) -> {
+            synchronized (this) {
+                dropped++;
+            }
+        });
+        writer.allowCoreThreadTimeOut(true);
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.collect(Collectors.toList());
+        }
+        files.sort(Comparator.comparing(ImageDiskCache::lastModified));
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(SUFFIX)) {
+                long size = Files.size(file);
+                entries.put(name, new Entry(size));
+                totalBytes += size;
+            } else if (name.endsWith(".tmp")) {
+                // Left over from an interrupted write
+                Files.deleteIfExists(file);
+            }
+        }
+        synchronized (this) {
+            trim();
+        }
+    }
+
+    /**
+     * Create the cache configured by the
+     * <code>org.lsst.fits.imageio.imageDiskCacheDir</code> and
+     * <code>org.lsst.fits.imageio.imageDiskCacheSizeBytes</code> properties.
+     *
+     * @return The cache, or <code>null</code> if no directory is configured or
+     * it cannot be used
+     */
+    static ImageDiskCache create() {
+        String dir = System.getProperty("org.lsst.fits.imageio.imageDiskCacheDir");
+        if (dir == null || dir.isBlank()) {
+            return null;
+        }
+        try {
+            return new ImageDiskCache(Paths.get(dir), Long.getLong("org.lsst.fits.imageio.imageDiskCacheSizeBytes", 10_000_000_000L));
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Unable to use image disk cache " + dir, x);
+            return null;
+        }
+    }
+
+    /**
+     * Read an image from the cache.
+     *
+     * @param descriptor Describes the image
+     * @param type The type of image to create
+     * @return The image, or <code>null</code> if it is not in the cache
+     */
+    BufferedImage read(String descriptor, ImageTypeSpecifier type) {
+        String name = fileName(descriptor);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(name);
+            if (entry == null) {
+                misses++;
+                return null;
+            }
+            entry.readers++;
+        }
+        Path file = directory.resolve(name);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer prefix = readFully(channel, ByteBuffer.allocate(12)).flip();
+            int descriptorLength = prefix.getInt(8);
+            if (prefix.getInt(0) != MAGIC || prefix.getInt(4) != VERSION || descriptorLength < 0 || descriptorLength > MAX_DESCRIPTOR_BYTES) {
+                throw new IOException("Header mismatch");
+            }
+            ByteBuffer header = readFully(channel, ByteBuffer.allocate(descriptorLength + 12)).flip();
+            if (!descriptor.equals(StandardCharsets.UTF_8.decode(header.slice(0, descriptorLength)).toString())) {
+                throw new IOException("Header mismatch");
+            }
+            int width = header.getInt(descriptorLength);
+            int height = header.getInt(descriptorLength + 4);
+            int dataType = header.getInt(descriptorLength + 8);
+            BufferedImage image = type.createBufferedImage(width, height);
+            Object data = dataArray(image.getRaster());
+            if (data == null || image.getRaster().getTransferType() != dataType) {
+                throw new IOException("Image type mismatch");
+            }
+            long dataBytes = (long) width * height * DataBuffer.getDataTypeSize(dataType) / 8;
+            if (channel.size() != channel.position() + dataBytes + 8) {
+                throw new IOException("File size mismatch");
+            }
+            CRC32 crc = new CRC32();
+            if (data instanceof byte[]) {
+                byte[] bytes = (byte[]) data;
+                for (int offset = 0; offset < bytes.length; offset += CHUNK_BYTES) {
+                    int n = Math.min(CHUNK_BYTES, bytes.length - offset);
+                    readFully(channel, ByteBuffer.wrap(bytes, offset, n));
+                    crc.update(bytes, offset, n);
+                }
+            } else {
+                int[] ints = (int[]) data;
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+                for (int offset = 0; offset < ints.length; offset += CHUNK_BYTES / 4) {
+                    int n = Math.min(CHUNK_BYTES / 4, ints.length - offset);
+                    readFully(channel, chunk.clear().limit(n * 4)).flip();
+                    chunk.asIntBuffer().get(ints, offset, n);
+                    crc.update(chunk);
+                }
+            }
+            if (readFully(channel, ByteBuffer.allocate(8)).getLong(0) != crc.getValue()) {
+                throw new IOException("CRC mismatch");
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            synchronized (this) {
+                hits++;
+            }
+            return image;
+        } catch (IOException | RuntimeException x) {
+            LOG.log(Level.WARNING, "Discarding unreadable cached image " + file, x);
+            synchronized (this) {
+                corrupt++;
+                misses++;
+                // Only discard the file which was read, not one which has since replaced it
+                if (entries.get(name) == entry) {
+                    remove(name);
+                }
+            }
+            return null;
+        } finally {
+            synchronized (this) {
+                entry.readers--;
+            }
+        }
+    }
+
+    /**
+     * Write an image to the cache on the writer thread.
+     *
+     * @param descriptor Describes the image
+     * @param image The image, which must not be modified afterwards
+     * @see #write(java.lang.String, java.awt.image.BufferedImage)
+     */
+    void writeAsync(String descriptor, BufferedImage image) {
+        writer.execute(() -> write(descriptor, image));
+    }
+
+    /**
+     * Write an image to the cache, if it is not already present. Images
+     * which are not stored as a plain array of byte or int pixels are ignored.
+     *
+     * @param descriptor Describes the image
+     * @param image The image
+     */
+    void write(String descriptor, BufferedImage image) {
+        String name = fileName(descriptor);
+        synchronized (this) {
+            if (entries.containsKey(name)) {
+                return;
+            }
+        }
+        WritableRaster raster = image.getRaster();
+        Object data = dataArray(raster);
+        if (data == null) {
+            return;
+        }
+        Path file = directory.resolve(name);
+        Path temp = directory.resolve(name + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                byte[] descriptorBytes = descriptor.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer header = ByteBuffer.allocate(descriptorBytes.length + 24);
+                header.putInt(MAGIC).putInt(VERSION).putInt(descriptorBytes.length).put(descriptorBytes);
+                header.putInt(raster.getWidth()).putInt(raster.getHeight()).putInt(raster.getTransferType());
+                writeFully(channel, header.flip());
+                // The pixels are written straight from the raster, and the CRC follows them
+                CRC32 crc = new CRC32();
+                if (data instanceof byte[]) {
+                    byte[] bytes = (byte[]) data;
+                    for (int offset = 0; offset < bytes.length; offset += CHUNK_BYTES) {
+                        int n = Math.min(CHUNK_BYTES, bytes.length - offset);
+                        crc.update(bytes, offset, n);
+                        writeFully(channel, ByteBuffer.wrap(bytes, offset, n));
+                    }
+                } else {
+                    int[] ints = (int[]) data;
+                    ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+                    for (int offset = 0; offset < ints.length; offset += CHUNK_BYTES / 4) {
+                        int n = Math.min(CHUNK_BYTES / 4, ints.length - offset);
+                        chunk.clear().asIntBuffer().put(ints, offset, n);
+                        chunk.limit(n * 4);
+                        crc.update(chunk.duplicate());
+                        writeFully(channel, chunk);
+                    }
+                }
+                writeFully(channel, ByteBuffer.allocate(8).putLong(0, crc.getValue()));
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException x) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            long size = Files.size(file);
+            synchronized (this) {
+                Entry old = entries.put(name, new Entry(size));
+                totalBytes += size - (old == null ? 0 : old.size);
+                writes++;
+                trim();
+            }
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Unable to write cached image " + file, x);
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException xx) {
+                // Ignore
+            }
+        }
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (eldest.getValue().readers > 0) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= eldest.getValue().size;
+            evictions++;
+            delete(eldest.getKey());
+        }
+    }
+
+    private void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+        delete(name);
+    }
+
+    private void delete(String name) {
+        try {
+            Files.deleteIfExists(directory.resolve(name));
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Unable to delete cached image " + name, x);
+        }
+    }
+
+    private static String fileName(String descriptor) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(descriptor.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                builder.append(String.format("%02x", digest[i]));
+            }
+            return builder.append(SUFFIX).toString();
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException("SHA-256 not available", x);
+        }
+    }
+
+    /**
+     * The array backing a raster, if the raster holds exactly its own pixels
+     * with one byte or int per pixel, in row order.
+     *
+     * @param raster The raster
+     * @return The <code>byte[]</code> or <code>int[]</code>, or <code>null</code>
+     * if the raster has any other layout
+     */
+    private static Object dataArray(WritableRaster raster) {
+        DataBuffer buffer = raster.getDataBuffer();
+        SampleModel sampleModel = raster.getSampleModel();
+        int width = raster.getWidth();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0 || buffer.getSize() != width * raster.getHeight()
+                || raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0 || raster.getNumDataElements() != 1) {
+            return null;
+        }
+        if (buffer instanceof DataBufferByte && sampleModel instanceof ComponentSampleModel
+                && ((ComponentSampleModel) sampleModel).getPixelStride() == 1 && ((ComponentSampleModel) sampleModel).getScanlineStride() == width) {
+            return ((DataBufferByte) buffer).getData();
+        }
+        if (buffer instanceof DataBufferInt && sampleModel instanceof SinglePixelPackedSampleModel
+                && ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride() == width) {
+            return ((DataBufferInt) buffer).getData();
+        }
+        return null;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException x) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImageDiskCache{" + "directory=" + directory + ", entries=" + entries.size() + ", totalBytes=" + totalBytes + ", maxBytes=" + maxBytes + ", hits=" + hits + ", misses=" + misses + ", writes=" + writes + ", evictions=" + evictions + ", corrupt=" + corrupt + ", dropped=" + dropped + '}';
+    }
+}
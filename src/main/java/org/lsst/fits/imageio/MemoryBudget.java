@@ -0,0 +1,272 @@
+package org.lsst.fits.imageio;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Policy;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares a single memory budget between the weighted caches used by the
+ * {@link CachingReader}. The budget is initially split in proportion to each
+ * cache's requested size, and is then periodically rebalanced by moving
+ * memory from the cache getting the fewest hits per byte to a full cache
+ * which is missing. Caches holding direct memory are limited to what
+ * <code>-XX:MaxDirectMemorySize</code> allows, and caches on the heap to a
+ * fraction of the maximum heap size, so the budget cannot be set larger than
+ * the JVM can actually provide.
+ *
+ * @author tonyj
+ */
+class MemoryBudget {
+
+    private static final Logger LOG = Logger.getLogger(MemoryBudget.class.getName());
+    // No cache is shrunk below this fraction of the budget
+    private static final double MIN_SHARE = 0.05;
+    // The fraction of the budget moved by each rebalance
+    private static final double STEP = 0.05;
+    // Only this fraction of the heap or direct memory is used for caches
+    private static final double MAX_MEMORY_FRACTION = 0.75;
+
+    enum Pool {
+        HEAP, DIRECT
+    }
+
+    /**
+     * A cache whose size is managed by the budget.
+     */
+    interface Tier {
+
+        String name();
+
+        Pool pool();
+
+        long hitCount();
+
+        long missCount();
+
+        long weightedSize();
+
+        long getMaximum();
+
+        void setMaximum(long maximum);
+    }
+
+    private static class TierState {
+
+        private final Tier tier;
+        private final long requested;
+        private long lastHits;
+        private long lastMisses;
+        private long hits;
+        private long misses;
+
+        TierState(Tier tier, long requested) {
+            this.tier = tier;
+            this.requested = requested;
+        }
+
+        void update() {
+            long hitCount = tier.hitCount();
+            long missCount = tier.missCount();
+            hits = hitCount - lastHits;
+            misses = missCount - lastMisses;
+            lastHits = hitCount;
+            lastMisses = missCount;
+        }
+    }
+
+    private final long budget;
+    private final long heapLimit;
+    private final long directLimit;
+    private final List<TierState> tiers = new ArrayList<>();
+
+    /**
+     * Create a budget.
+     *
+     * @param budget The total number of bytes to share between the caches
+     * @param heapLimit The maximum number of bytes for caches on the heap
+     * @param directLimit The maximum number of bytes for caches using direct
+     * memory
+     */
+    MemoryBudget(long budget, long heapLimit, long directLimit) {
+        this.budget = budget;
+        this.heapLimit = heapLimit;
+        this.directLimit = directLimit;
+    }
+
+    /**
+     * Create a budget configured from system properties. The total is set by
+     * <code>org.lsst.fits.imageio.memoryBudgetBytes</code>, and defaults to
+     * the sum of the sizes requested for the individual caches.
+     *
+     * @param requested The sum of the sizes requested for the caches
+     * @return The budget
+     */
+    static MemoryBudget create(long requested) {
+        long budget = Long.getLong("org.lsst.fits.imageio.memoryBudgetBytes", requested);
+        long heapLimit = (long) (Runtime.getRuntime().maxMemory() * MAX_MEMORY_FRACTION);
+        // Leave room for the transient reads using the direct buffer pool
+        long directLimit = (long) (maxDirectMemory() * MAX_MEMORY_FRACTION) - DirectBufferPool.instance().getMaxIdleBytes();
+        return new MemoryBudget(budget, heapLimit, Math.max(0, directLimit));
+    }
+
+    /**
+     * Create a tier for a weighted Caffeine cache. The cache must be built
+     * with <code>recordStats()</code>.
+     *
+     * @param name The name used when reporting
+     * @param pool Where the cache's values are stored
+     * @param cache The cache
+     * @return The tier
+     */
+    static Tier tier(String name, Pool pool, Cache<?, ?> cache) {
+        Policy.Eviction<?, ?> eviction = cache.policy().eviction().orElseThrow(() -> new IllegalArgumentException("Cache is not bounded: " + name));
+        return new Tier() {
+            @Override
+            public String name() {
+                return name;
+            }
+
+            @Override
+            public Pool pool() {
+                return pool;
+            }
+
+            @Override
+            public long hitCount() {
+                return cache.stats().hitCount();
+            }
+
+            @Override
+            public long missCount() {
+                return cache.stats().missCount();
+            }
+
+            @Override
+            public long weightedSize() {
+                return eviction.weightedSize().orElse(0);
+            }
+
+            @Override
+            public long getMaximum() {
+                return eviction.getMaximum();
+            }
+
+            @Override
+            public void setMaximum(long maximum) {
+                eviction.setMaximum(maximum);
+            }
+        };
+    }
+
+    /**
+     * Add a cache to the budget. Once all caches have been added
+     * {@link #allocate()} must be called.
+     *
+     * @param tier The cache
+     * @param requested The size requested for the cache, which determines its
+     * initial share of the budget
+     */
+    synchronized void add(Tier tier, long requested) {
+        tiers.add(new TierState(tier, requested));
+    }
+
+    /**
+     * Split the budget between the caches in proportion to their requested
+     * sizes, scaling down the caches in each pool if necessary to fit within
+     * the pool's limit.
+     */
+    synchronized void allocate() {
+        double requested = tiers.stream().mapToLong(t -> t.requested).sum();
+        for (Pool pool : Pool.values()) {
+            double poolRequested = tiers.stream().filter(t -> t.tier.pool() == pool).mapToLong(t -> t.requested).sum();
+            double scale = budget / requested;
+            if (scale * poolRequested > limit(pool)) {
+                scale = limit(pool) / poolRequested;
+                LOG.log(Level.WARNING, "Cache memory budget reduced to fit {0} limit of {1} bytes", new Object[]{pool, limit(pool)});
+            }
+            for (TierState state : tiers) {
+                if (state.tier.pool() == pool) {
+                    state.tier.setMaximum((long) (state.requested * scale));
+                }
+            }
+        }
+        LOG.log(Level.INFO, "Cache memory budget {0}", this);
+    }
+
+    /**
+     * Move part of the budget from the cache with the fewest hits per byte
+     * since the last call to the full cache with the most misses, provided the
+     * misses per byte of the full cache exceed the hits per byte of the other.
+     *
+     * @return <code>true</code> if the budget was changed
+     */
+    synchronized boolean rebalance() {
+        tiers.forEach(TierState::update);
+        TierState receiver = null;
+        for (TierState state : tiers) {
+            long maximum = state.tier.getMaximum();
+            if (state.misses > 0 && state.tier.weightedSize() >= maximum * 0.9 && (receiver == null || state.misses > receiver.misses)) {
+                receiver = state;
+            }
+        }
+        if (receiver == null) {
+            return false;
+        }
+        long minimum = (long) (budget * MIN_SHARE);
+        long step = (long) (budget * STEP);
+        TierState donor = null;
+        for (TierState state : tiers) {
+            if (state != receiver && state.tier.getMaximum() > minimum && (donor == null || hitDensity(state) < hitDensity(donor))) {
+                donor = state;
+            }
+        }
+        if (donor == null || hitDensity(donor) >= (double) receiver.misses / Math.max(1, receiver.tier.getMaximum())) {
+            return false;
+        }
+        step = Math.min(step, donor.tier.getMaximum() - minimum);
+        Pool pool = receiver.tier.pool();
+        if (donor.tier.pool() != pool) {
+            step = Math.min(step, limit(pool) - tiers.stream().filter(t -> t.tier.pool() == pool).mapToLong(t -> t.tier.getMaximum()).sum());
+        }
+        if (step <= 0) {
+            return false;
+        }
+        donor.tier.setMaximum(donor.tier.getMaximum() - step);
+        receiver.tier.setMaximum(receiver.tier.getMaximum() + step);
+        LOG.log(Level.FINE, "Moved {0} bytes from {1} to {2}", new Object[]{step, donor.tier.name(), receiver.tier.name()});
+        return true;
+    }
+
+    private static double hitDensity(TierState state) {
+        return (double) state.hits / Math.max(1, state.tier.getMaximum());
+    }
+
+    private long limit(Pool pool) {
+        return pool == Pool.HEAP ? heapLimit : directLimit;
+    }
+
+    private static long maxDirectMemory() {
+        try {
+            HotSpotDiagnosticMXBean bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long max = Long.parseLong(bean.getVMOption("MaxDirectMemorySize").getValue());
+            // Zero means the default, which is the maximum heap size
+            return max > 0 ? max : Runtime.getRuntime().maxMemory();
+        } catch (RuntimeException | LinkageError x) {
+            return Runtime.getRuntime().maxMemory();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("MemoryBudget{budget=").append(budget).append(", heapLimit=").append(heapLimit).append(", directLimit=").append(directLimit);
+        for (TierState state : tiers) {
+            builder.append(", ").append(state.tier.name()).append('=').append(state.tier.weightedSize()).append('/').append(state.tier.getMaximum());
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,78 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import nom.tam.fits.FitsException;
+
+/**
+ * A segment source for FITS files stored in an object store, and accessed
+ * over HTTP using range requests. Lines can either be <code>http://</code> or
+ * <code>https://</code> URLs, or <code>s3://bucket/key</code> names, which are
+ * converted to path style URLs using the endpoint given by the
+ * <code>org.lsst.fits.imageio.s3Endpoint</code> property.
+ * <p>
+ * The headers are read a few blocks at a time, and the resulting segments are
+ * saved in a local {@link SegmentIndex}, so the headers only need to be
+ * fetched once. Data for adjacent segments is fetched with a single range
+ * request when several segments are read together. Objects are assumed not to
+ * change once written, but the index is still revalidated against the size
+ * and modification time of the object.
+ *
+ * @author tonyj
+ */
+public class ObjectStoreSegmentSource implements SegmentSource {
+
+    private final String s3Endpoint;
+    // The directory for the local index, or null if no index is used
+    private final File indexDir;
+
+    public ObjectStoreSegmentSource() {
+        this(System.getProperty("org.lsst.fits.imageio.s3Endpoint"), "false".equals(System.getProperty("org.lsst.fits.imageio.remoteSegmentIndex")) ? null : SegmentIndex.remoteIndexDir());
+    }
+
+    ObjectStoreSegmentSource(String s3Endpoint, File indexDir) {
+        this.s3Endpoint = s3Endpoint;
+        this.indexDir = indexDir;
+    }
+
+    @Override
+    public boolean accepts(String line) {
+        return line.startsWith("http://") || line.startsWith("https://") || (s3Endpoint != null && line.startsWith("s3://"));
+    }
+
+    @Override
+    public List<Segment> readSegments(String line, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) throws IOException, FitsException {
+        URI uri = toURI(line);
+        HttpByteRangeSource remote = new HttpByteRangeSource(uri);
+        String name = uri.toString();
+        FileIdentity fileIdentity = remote.identity();
+        // As for local files, the index is only used for the WCS stored in the file itself
+        boolean indexed = indexDir != null && wcsOverride == null;
+        if (indexed) {
+            List<Segment> result = SegmentIndex.read(indexDir, remote, name, fileIdentity, wcsLetter);
+            if (result != null) {
+                return result;
+            }
+        }
+        List<Segment> result;
+        try ( FitsHeaderScanner header = new FitsHeaderScanner(remote, fileIdentity.size(), name)) {
+            result = CachingReader.parseSegments(header, name, null, remote, fileIdentity, wcsLetter, wcsOverride, false);
+        }
+        if (indexed) {
+            SegmentIndex.write(indexDir, remote, name, fileIdentity, wcsLetter, result);
+        }
+        return result;
+    }
+
+    private URI toURI(String line) {
+        if (line.startsWith("s3://")) {
+            String endpoint = s3Endpoint.endsWith("/") ? s3Endpoint : s3Endpoint + "/";
+            return URI.create(endpoint + line.substring("s3://".length()));
+        } else {
+            return URI.create(line);
+        }
+    }
+}
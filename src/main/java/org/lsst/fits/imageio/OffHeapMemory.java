@@ -0,0 +1,86 @@
+package org.lsst.fits.imageio;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Allocates direct memory which can be freed explicitly, rather than waiting
+ * for the garbage collector to notice that the buffer is unreachable. Where
+ * the JVM does not allow buffers to be freed explicitly {@link #free} does
+ * nothing and the memory is reclaimed by the garbage collector as usual.
+ *
+ * @author tonyj
+ */
+class OffHeapMemory {
+
+    private static final Logger LOG = Logger.getLogger(OffHeapMemory.class.getName());
+    private static final Cleaner CLEANER = createCleaner();
+    private static final AtomicLong ALLOCATED_BYTES = new AtomicLong();
+
+    private interface Cleaner {
+
+        void free(ByteBuffer bb) throws ReflectiveOperationException;
+    }
+
+    private OffHeapMemory() {
+    }
+
+    /**
+     * Allocate a direct buffer in the platform's native byte order, so that
+     * views of it can be read without swapping bytes.
+     *
+     * @param size The size in bytes
+     * @return The buffer
+     */
+    static ByteBuffer allocate(int size) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        ALLOCATED_BYTES.addAndGet(size);
+        return bb;
+    }
+
+    /**
+     * Free a buffer obtained from {@link #allocate(int)}. The caller must
+     * ensure that neither the buffer nor any views of it are used after this
+     * call, since doing so may crash the JVM.
+     *
+     * @param bb The buffer to free
+     */
+    static void free(ByteBuffer bb) {
+        ALLOCATED_BYTES.addAndGet(-bb.capacity());
+        if (CLEANER != null) {
+            try {
+                CLEANER.free(bb);
+            } catch (ReflectiveOperationException x) {
+                LOG.log(Level.WARNING, "Unable to free direct buffer", x);
+            }
+        }
+    }
+
+    /**
+     * The number of bytes currently allocated and not yet freed.
+     *
+     * @return The number of bytes
+     */
+    static long getAllocatedBytes() {
+        return ALLOCATED_BYTES.get();
+    }
+
+    private static Cleaner createCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            Object unsafe = field.get(null);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return (ByteBuffer bb) -> invokeCleaner.invoke(unsafe, bb);
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            LOG.log(Level.INFO, "Direct buffers will be freed by the garbage collector", x);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.lsst.fits.imageio;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Raw data whose pixels are stored outside of the Java heap, so that large
+ * caches of pixel data do not need to be traced or copied by the garbage
+ * collector. The memory is freed explicitly once the last reference is
+ * released, so users must bracket any access to the buffer with
+ * {@link #retain()} and {@link #release()}. The buffer is a read-only view.
+ *
+ * @author tonyj
+ * @param <T> The type of buffer
+ */
+class OffHeapRawData<T extends Buffer> extends RawData<T> {
+
+    private final ByteBuffer memory;
+    // The owner (normally the cache) holds the initial reference
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private OffHeapRawData(Segment segment, T buffer, ByteBuffer memory) {
+        super(segment, buffer);
+        this.memory = memory;
+    }
+
+    /**
+     * Copy heap raw data off heap. Data which is not backed by a heap array
+     * (e.g. memory mapped data) is returned unchanged.
+     *
+     * @param rawData The data to copy
+     * @return The off heap copy
+     */
+    static RawData<?> of(RawData<?> rawData) {
+        Buffer buffer = rawData.getBuffer();
+        if (!buffer.hasArray()) {
+            return rawData;
+        }
+        ByteBuffer memory = OffHeapMemory.allocate(buffer.capacity() * 4);
+        if (buffer instanceof IntBuffer intBuffer) {
+            IntBuffer copy = memory.asIntBuffer();
+            copy.put(0, intBuffer, 0, intBuffer.capacity());
+            return new OffHeapRawData<>(rawData.getSegment(), copy.asReadOnlyBuffer(), memory);
+        } else if (buffer instanceof FloatBuffer floatBuffer) {
+            FloatBuffer copy = memory.asFloatBuffer();
+            copy.put(0, floatBuffer, 0, floatBuffer.capacity());
+            return new OffHeapRawData<>(rawData.getSegment(), copy.asReadOnlyBuffer(), memory);
+        } else {
+            OffHeapMemory.free(memory);
+            return rawData;
+        }
+    }
+
+    /**
+     * Copy big endian pixels, as read from disk, directly off heap.
+     *
+     * @param segment The segment the pixels belong to
+     * @param bb The pixels, which may be reused once this returns
+     * @return The off heap data
+     */
+    static RawData<IntBuffer> ofBigEndianInts(Segment segment, ByteBuffer bb) {
+        IntBuffer source = bb.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        ByteBuffer memory = OffHeapMemory.allocate(source.remaining() * 4);
+        IntBuffer copy = memory.asIntBuffer();
+        // Swaps the bytes if the native order is not big endian
+        copy.put(0, source, 0, source.remaining());
+        return new OffHeapRawData<>(segment, copy.asReadOnlyBuffer(), memory);
+    }
+
+    @Override
+    long getMemorySize() {
+        return memory.capacity();
+    }
+
+    @Override
+    boolean retain() {
+        for (;;) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            } else if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            OffHeapMemory.free(memory);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    RawData<T> copyToHeap() {
+        T buffer = getBuffer();
+        if (buffer instanceof IntBuffer intBuffer) {
+            return new RawData<>(getSegment(), (T) IntBuffer.allocate(intBuffer.capacity()).put(0, intBuffer, 0, intBuffer.capacity()));
+        } else {
+            FloatBuffer floatBuffer = (FloatBuffer) buffer;
+            return new RawData<>(getSegment(), (T) FloatBuffer.allocate(floatBuffer.capacity()).put(0, floatBuffer, 0, floatBuffer.capacity()));
+        }
+    }
+}
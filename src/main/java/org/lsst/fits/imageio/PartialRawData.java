@@ -0,0 +1,216 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Raw data for a segment which is read a range of rows at a time, as needed to
+ * satisfy region of interest requests. For uncompressed segments only the
+ * required rows are read from disk, for compressed segments the compressed
+ * data is read once and kept until only the tiles covering the required rows
+ * have been decoded. Once every row has been read the data can be used as the
+ * full raw data for the segment.
+ * <p>
+ * Rows are managed in fixed size blocks (a multiple of the compressed tile
+ * height). Memory is only allocated for the blocks which are read, and each
+ * block records the (possibly still pending) read which fills it, so
+ * concurrent overlapping requests wait for the same read rather than reading
+ * the rows again. Adjacent missing blocks are read together into a single
+ * buffer. Compressed tiles are decoded on an executor, never while holding
+ * the lock (which is also needed to weigh the cache entry).
+ *
+ * @author tonyj
+ */
+class PartialRawData {
+
+    private static final int BLOCK_ROWS = Integer.getInteger("org.lsst.fits.imageio.partialRawDataBlockRows", 64);
+
+    private final Segment segment;
+    private final Function<Segment, CompletableFuture<ByteBuffer>> compressedDataLoader;
+    private final Executor executor;
+    private final int nAxis1;
+    private final int nAxis2;
+    private final int blockRows;
+    // Filled in as reads complete, each block is a slice of the buffer it was read into
+    private final IntBuffer[] blocks;
+    // The read which fills each block, or null if it has not been requested
+    private final CompletableFuture<?>[] reads;
+    private int loadedBlocks;
+    private long allocatedBytes;
+    // Only used for compressed segments, and released once all rows are decoded
+    private CompletableFuture<ByteBuffer> compressedData;
+
+    PartialRawData(Segment segment) {
+        this(segment, Segment::readCompressedDataAsync, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create partial raw data for a segment.
+     *
+     * @param segment The segment
+     * @param compressedDataLoader Used to get the compressed data for a
+     * compressed segment, so that it can be shared with other caches
+     * @param executor The executor used to decode compressed tiles
+     */
+    PartialRawData(Segment segment, Function<Segment, CompletableFuture<ByteBuffer>> compressedDataLoader, Executor executor) {
+        this.segment = segment;
+        this.compressedDataLoader = compressedDataLoader;
+        this.executor = executor;
+        this.nAxis1 = segment.getNAxis1();
+        this.nAxis2 = segment.getNAxis2();
+        int rowsPerTile = segment.getRowsPerTile();
+        this.blockRows = rowsPerTile * Math.max(1, (BLOCK_ROWS + rowsPerTile - 1) / rowsPerTile);
+        int nBlocks = (nAxis2 + blockRows - 1) / blockRows;
+        this.blocks = new IntBuffer[nBlocks];
+        this.reads = new CompletableFuture<?>[nBlocks];
+    }
+
+    /**
+     * Ensure the given rows have been read.
+     *
+     * @param firstRow The first row required
+     * @param lastRow The row after the last row required
+     * @return A future which completes when the rows are available
+     */
+    synchronized CompletableFuture<Void> readRowsAsync(int firstRow, int lastRow) {
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        int lastBlock = (lastRow - 1) / blockRows;
+        for (int block = firstRow / blockRows; block <= lastBlock;) {
+            if (needsRead(block)) {
+                int runStart = block;
+                while (block <= lastBlock && needsRead(block)) {
+                    block++;
+                }
+                CompletableFuture<Void> read = readBlocks(runStart, block);
+                for (int i = runStart; i < block; i++) {
+                    reads[i] = read;
+                }
+                pending.add(read);
+            } else {
+                pending.add(reads[block]);
+                block++;
+            }
+        }
+        return CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new));
+    }
+
+    private boolean needsRead(int block) {
+        return reads[block] == null || reads[block].isCompletedExceptionally();
+    }
+
+    /**
+     * Start reading a run of adjacent blocks into a single buffer. Must be
+     * called while holding the lock.
+     */
+    private CompletableFuture<Void> readBlocks(int firstBlock, int lastBlock) {
+        int firstRow = firstBlock * blockRows;
+        int lastRow = Math.min(nAxis2, lastBlock * blockRows);
+        IntBuffer buffer = IntBuffer.allocate((lastRow - firstRow) * nAxis1);
+        allocatedBytes += buffer.capacity() * 4L;
+        CompletableFuture<Void> read;
+        if (segment.isCompressed()) {
+            if (compressedData == null || compressedData.isCompletedExceptionally()) {
+                compressedData = compressedDataLoader.apply(segment);
+            }
+            // Once the compressed data is available this would otherwise run on the calling thread, holding the lock
+            read = compressedData.thenAcceptAsync((bb) -> segment.decodeRows(bb, firstRow, lastRow, buffer), executor);
+        } else {
+            read = segment.readRowsAsync(firstRow, lastRow, buffer);
+        }
+        return read.whenComplete((v, x) -> {
+            synchronized (this) {
+                if (x != null) {
+                    allocatedBytes -= buffer.capacity() * 4L;
+                    return;
+                }
+                for (int block = firstBlock; block < lastBlock; block++) {
+                    int start = (block - firstBlock) * blockRows * nAxis1;
+                    blocks[block] = buffer.slice(start, Math.min(blockRows * nAxis1, buffer.capacity() - start));
+                }
+                loadedBlocks += lastBlock - firstBlock;
+                if (loadedBlocks == blocks.length) {
+                    compressedData = null;
+                }
+            }
+        });
+    }
+
+    synchronized boolean isComplete() {
+        return loadedBlocks == blocks.length;
+    }
+
+    Segment getSegment() {
+        return segment;
+    }
+
+    /**
+     * Get the data for a range of rows which have already been read. If the
+     * rows were all read together the result shares the data, otherwise the
+     * rows are copied into a new buffer.
+     *
+     * @param firstRow The first row
+     * @param lastRow The row after the last row
+     * @return A buffer containing the rows, starting with
+     * <code>firstRow</code>
+     */
+    synchronized IntBuffer getRows(int firstRow, int lastRow) {
+        int firstBlock = firstRow / blockRows;
+        int lastBlock = (lastRow - 1) / blockRows;
+        int length = (lastRow - firstRow) * nAxis1;
+        IntBuffer first = blocks[firstBlock];
+        int start = first.arrayOffset() + (firstRow - firstBlock * blockRows) * nAxis1;
+        if (isContiguous(firstBlock, lastBlock)) {
+            return IntBuffer.wrap(first.array(), start, length).slice();
+        }
+        IntBuffer result = IntBuffer.allocate(length);
+        for (int row = firstRow; row < lastRow;) {
+            int block = row / blockRows;
+            int rowInBlock = row - block * blockRows;
+            int rows = Math.min(lastRow - row, blockRows - rowInBlock);
+            result.put((row - firstRow) * nAxis1, blocks[block], rowInBlock * nAxis1, rows * nAxis1);
+            row += rows;
+        }
+        return result;
+    }
+
+    /**
+     * Test if a range of blocks were read into the same buffer.
+     */
+    private boolean isContiguous(int firstBlock, int lastBlock) {
+        IntBuffer first = blocks[firstBlock];
+        for (int block = firstBlock + 1; block <= lastBlock; block++) {
+            IntBuffer next = blocks[block];
+            if (next.array() != first.array() || next.arrayOffset() != first.arrayOffset() + (block - firstBlock) * blockRows * nAxis1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The memory currently used, including the compressed data while it is
+     * held for decoding. This changes as rows are read, so the cache entry
+     * must be re-weighed after each read.
+     *
+     * @return The size in bytes
+     */
+    synchronized int getWeight() {
+        return (int) Math.min(Integer.MAX_VALUE, allocatedBytes + (compressedData != null ? segment.getDataSize() : 0));
+    }
+
+    /**
+     * Convert to full raw data. Should only be called once
+     * {@link #isComplete()} returns <code>true</code>.
+     *
+     * @return The raw data
+     */
+    RawData<IntBuffer> toRawData() {
+        return new RawData<>(segment, getRows(0, nAxis2));
+    }
+}
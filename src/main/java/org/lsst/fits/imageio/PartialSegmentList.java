@@ -0,0 +1,101 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The segments which are currently available from a FITS file which is still
+ * being written. Only segments whose data is completely on disk are included.
+ * The file is re-probed (by checking its size) at most once per follow
+ * interval, and re-read only if it has grown. Files are only followed while
+ * they have been modified within the follow window, once a file stops growing
+ * before it is complete it is treated as truncated.
+ *
+ * @author tonyj
+ */
+class PartialSegmentList extends ArrayList<Segment> {
+
+    private static final long FOLLOW_INTERVAL = Long.getLong("org.lsst.fits.imageio.followIntervalMillis", 500L);
+    private static final long FOLLOW_WINDOW = Long.getLong("org.lsst.fits.imageio.followWindowMillis", 60_000L);
+
+    private final File file;
+    private final long probedSize;
+    private volatile long lastProbe;
+    private volatile boolean abandoned;
+
+    PartialSegmentList(List<Segment> segments, File file, long probedSize) {
+        super(segments);
+        this.file = file;
+        this.probedSize = probedSize;
+        this.lastProbe = System.currentTimeMillis();
+    }
+
+    /**
+     * Test if a file which ends before all of its segments have been read
+     * should be followed, rather than treated as truncated.
+     *
+     * @param identity The identity of the file
+     * @return <code>true</code> if the file was modified recently enough that
+     * it may still be being written
+     */
+    static boolean isFollowable(FileIdentity identity) {
+        return System.currentTimeMillis() - identity.lastModified() < FOLLOW_WINDOW;
+    }
+
+    /**
+     * Test if the file should be re-read. This is cheap, and can be called
+     * every time the segments are used.
+     *
+     * @return <code>true</code> if the file has grown since it was last read,
+     * or has been abandoned (see {@link #isAbandoned()})
+     */
+    boolean shouldReload() {
+        long now = System.currentTimeMillis();
+        if (now - lastProbe < FOLLOW_INTERVAL) {
+            return false;
+        }
+        lastProbe = now;
+        if (file.length() != probedSize) {
+            return true;
+        }
+        abandoned = now - file.lastModified() >= FOLLOW_WINDOW;
+        return abandoned;
+    }
+
+    /**
+     * Test if the file was found to have stopped growing before it was
+     * complete, by the last call to {@link #shouldReload()}. Such a file
+     * should be read again without following, so that it fails as truncated.
+     *
+     * @return <code>true</code> if the file is no longer being written
+     */
+    boolean isAbandoned() {
+        return abandoned;
+    }
+
+    /**
+     * Match the segments of the newly read list with those of this one. The
+     * newly read segments carry the file's new identity, so they replace the
+     * existing ones, but the bytes of a segment which was already complete do
+     * not change as the file grows, so anything read for an existing segment
+     * can be carried over to its replacement.
+     *
+     * @param newSegments The newly read segments
+     * @param carryOver Called with each existing segment and the newly read
+     * segment at the same position
+     * @return The newly read list
+     */
+    List<Segment> merge(List<Segment> newSegments, BiConsumer<Segment, Segment> carryOver) {
+        for (Segment segment : newSegments) {
+            for (Segment old : this) {
+                if (old.getSeekPosition() == segment.getSeekPosition()) {
+                    carryOver.accept(old, segment);
+                    break;
+                }
+            }
+        }
+        return newSegments;
+    }
+}
@@ -0,0 +1,78 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Data parallel kernels used when decoding pixel data. If the JVM is started
+ * with <code>--add-modules jdk.incubator.vector</code> implementations using
+ * the Vector API are used, otherwise (or if
+ * <code>org.lsst.fits.imageio.vectorKernels</code> is set to false) plain
+ * scalar loops are used.
+ *
+ * @author tonyj
+ */
+abstract class PixelKernels {
+
+    private static final Logger LOG = Logger.getLogger(PixelKernels.class.getName());
+    private static final PixelKernels INSTANCE = create();
+
+    static PixelKernels instance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Unshuffle GZIP_2 data. The input holds all of the most significant
+     * bytes of the values first, then all of the next most significant bytes
+     * and so on.
+     *
+     * @param in The shuffled bytes
+     * @param n The number of values
+     * @param out The array to receive the values
+     * @param offset The position in out of the first value
+     */
+    abstract void unshuffle(byte[] in, int n, int[] out, int offset);
+
+    /**
+     * Convert big-endian 32 bit integers to ints.
+     *
+     * @param in The input data, starting at its position. The position is not
+     * changed.
+     * @param out The array to receive the values
+     * @param offset The position in out of the first value
+     * @param n The number of values
+     */
+    abstract void bigEndianToInts(ByteBuffer in, int[] out, int offset, int n);
+
+    static class Scalar extends PixelKernels {
+
+        @Override
+        void unshuffle(byte[] in, int n, int[] out, int offset) {
+            for (int i = 0; i < n; i++) {
+                out[offset + i] = ((0xff & in[i]) << 24) | ((0xff & in[i + n]) << 16) | ((0xff & in[i + 2 * n]) << 8) | (0xff & in[i + 3 * n]);
+            }
+        }
+
+        @Override
+        void bigEndianToInts(ByteBuffer in, int[] out, int offset, int n) {
+            // Bulk gets from a buffer with non-native order are already an intrinsic
+            in.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(out, offset, n);
+        }
+    }
+
+    private static PixelKernels create() {
+        boolean enabled = !"false".equals(System.getProperty("org.lsst.fits.imageio.vectorKernels"));
+        if (enabled && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                PixelKernels kernels = (PixelKernels) Class.forName(PixelKernels.class.getPackageName() + ".VectorPixelKernels").getDeclaredConstructor().newInstance();
+                LOG.log(Level.INFO, "Using vector pixel kernels: {0}", kernels);
+                return kernels;
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException x) {
+                LOG.log(Level.WARNING, "Unable to use vector pixel kernels", x);
+            }
+        }
+        return new Scalar();
+    }
+}
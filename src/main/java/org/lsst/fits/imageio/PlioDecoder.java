@@ -0,0 +1,108 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A decoder for PLIO_1 compressed tiles, which are IRAF pixel list line
+ * lists, following the algorithm used by cfitsio. The scratch array is reused
+ * from tile to tile, so instances are not thread safe.
+ *
+ * @author tonyj
+ */
+class PlioDecoder implements TileDecompressor<IntBuffer> {
+
+    private short[] lineList = new short[0];
+
+    @Override
+    public void decompress(ByteBuffer compressed, IntBuffer out) {
+        ShortBuffer shorts = compressed.asShortBuffer();
+        int length = shorts.remaining();
+        if (lineList.length < length) {
+            lineList = new short[length];
+        }
+        shorts.get(lineList, 0, length);
+        compressed.position(compressed.position() + length * 2);
+        try {
+            decode(lineList, out);
+        } catch (ArrayIndexOutOfBoundsException x) {
+            throw new CompletionException("Error decoding PLIO_1 tile", x);
+        }
+    }
+
+    private static void decode(short[] ll, IntBuffer out) {
+        int npix = out.remaining();
+        int position = out.position();
+        int lllen;
+        int llfirt;
+        // The header is either the old 3 word or new 7 word format
+        if (ll[2] > 0) {
+            lllen = ll[2];
+            llfirt = 3;
+        } else {
+            lllen = (ll[4] << 15) + ll[3];
+            llfirt = ll[1];
+        }
+        // Positions in the line are 1 based, as in the original
+        int xs = 1;
+        int xe = xs + npix - 1;
+        int op = 0;
+        int x1 = 1;
+        int pv = 1;
+        for (int ip = llfirt; ip < lllen; ip++) {
+            int opcode = (ll[ip] & 0xffff) >> 12;
+            int data = ll[ip] & 0xfff;
+            switch (opcode) {
+                case 0:
+                case 4:
+                case 5:
+                    // Zeros, or a run of the current value, with opcode 5 setting the last pixel
+                    int x2 = x1 + data - 1;
+                    int i1 = Math.max(x1, xs);
+                    int i2 = Math.min(x2, xe);
+                    int np = i2 - i1 + 1;
+                    if (np > 0) {
+                        int otop = op + np - 1;
+                        int value = opcode == 4 ? pv : 0;
+                        for (int i = op; i <= otop; i++) {
+                            out.put(position + i, value);
+                        }
+                        if (opcode == 5 && i2 == x2) {
+                            out.put(position + otop, pv);
+                        }
+                        op = otop + 1;
+                    }
+                    x1 = x2 + 1;
+                    break;
+                case 1:
+                    // Set the high value, taking the next word as well
+                    pv = ((ll[ip + 1] & 0xffff) << 12) + data;
+                    ip++;
+                    break;
+                case 2:
+                    pv += data;
+                    break;
+                case 3:
+                    pv -= data;
+                    break;
+                case 6:
+                case 7:
+                    // Increment or decrement the value and output a single pixel
+                    pv += opcode == 6 ? data : -data;
+                    if (x1 >= xs && x1 <= xe) {
+                        out.put(position + op, pv);
+                        op++;
+                    }
+                    x1++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        for (int i = op; i < npix; i++) {
+            out.put(position + i, 0);
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package org.lsst.fits.imageio;
 
 import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
 import java.util.Objects;
 
 /**
@@ -31,6 +36,55 @@ public class RawData<T extends Buffer> {
         return segment;
     }
 
+    /**
+     * The number of bytes of memory used by the pixel data.
+     *
+     * @return The size in bytes
+     */
+    long getMemorySize() {
+        return (long) buffer.capacity() * bytesPerElement(buffer);
+    }
+
+    static int bytesPerElement(Buffer buffer) {
+        if (buffer instanceof ByteBuffer) {
+            return 1;
+        } else if (buffer instanceof ShortBuffer || buffer instanceof CharBuffer) {
+            return 2;
+        } else if (buffer instanceof LongBuffer || buffer instanceof DoubleBuffer) {
+            return 8;
+        } else {
+            return 4;
+        }
+    }
+
+    /**
+     * Take a reference to the data, which must be released once the buffer
+     * is no longer being used.
+     *
+     * @return <code>false</code> if the data has already been freed, in which
+     * case it must not be used and should not be released.
+     * @see OffHeapRawData
+     */
+    boolean retain() {
+        return true;
+    }
+
+    /**
+     * Release a reference taken by {@link #retain()}.
+     */
+    void release() {
+    }
+
+    /**
+     * Get a copy of this data which remains valid however long it is kept.
+     * Must only be called while holding a reference.
+     *
+     * @return The data, which may be this object if it is already on the heap
+     */
+    RawData<T> copyToHeap() {
+        return this;
+    }
+
     @Override
     public String toString() {
         return "RawData{" + "segment=" + segment + '}';
@@ -0,0 +1,290 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A decoder for RICE_1 compressed tiles, following the algorithm used by
+ * cfitsio. The block size and number of bytes per pixel come from the
+ * <code>ZNAMEn</code>/<code>ZVALn</code> keywords of the compressed image
+ * header, and there is a separate inner loop for each of the 1, 2 and 4 byte
+ * pixel sizes. Each tile is copied into a per thread scratch array, and the
+ * bit reader state is kept in local variables, so nothing is allocated per
+ * tile. Decoded values are widened into the destination int buffer (unsigned
+ * for 1 byte pixels, signed otherwise). Instances are immutable and can be
+ * shared by all threads.
+ *
+ * @author tonyj
+ */
+class RiceDecoder implements TileDecompressor<IntBuffer> {
+
+    static final int DEFAULT_BLOCK_SIZE = 32;
+    static final int DEFAULT_BYTE_PIX = 4;
+
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[1][0]);
+    private static final RiceDecoder DEFAULT = new RiceDecoder(DEFAULT_BLOCK_SIZE, DEFAULT_BYTE_PIX);
+
+    private final int blockSize;
+    private final int bytePix;
+    private final int fsBits;
+    private final int fsMax;
+
+    private RiceDecoder(int blockSize, int bytePix) {
+        this.blockSize = blockSize;
+        this.bytePix = bytePix;
+        switch (bytePix) {
+            case 1:
+                fsBits = 3;
+                fsMax = 6;
+                break;
+            case 2:
+                fsBits = 4;
+                fsMax = 14;
+                break;
+            case 4:
+                fsBits = 5;
+                fsMax = 25;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported RICE_1 BYTEPIX: " + bytePix);
+        }
+    }
+
+    /**
+     * Get a decoder for the given parameters.
+     *
+     * @param blockSize The number of pixels in each block
+     * @param bytePix The number of bytes per pixel (1, 2 or 4)
+     * @return The decoder
+     */
+    static RiceDecoder of(int blockSize, int bytePix) {
+        return blockSize == DEFAULT_BLOCK_SIZE && bytePix == DEFAULT_BYTE_PIX ? DEFAULT : new RiceDecoder(blockSize, bytePix);
+    }
+
+    /**
+     * Decode a single tile.
+     *
+     * @param compressed The compressed tile, from its position to its limit.
+     * The position is advanced to the limit.
+     * @param out The buffer to receive the decoded values, which is filled
+     * from its position to its limit. The position is not changed.
+     */
+    @Override
+    public void decompress(ByteBuffer compressed, IntBuffer out) {
+        int length = compressed.remaining();
+        byte[][] scratch = SCRATCH.get();
+        if (scratch[0].length < length) {
+            scratch[0] = new byte[length];
+        }
+        byte[] in = scratch[0];
+        compressed.get(in, 0, length);
+        try {
+            switch (bytePix) {
+                case 1:
+                    decode8(in, out);
+                    break;
+                case 2:
+                    decode16(in, out);
+                    break;
+                default:
+                    decode32(in, out);
+            }
+        } catch (ArrayIndexOutOfBoundsException x) {
+            throw new CompletionException("Truncated RICE_1 tile", x);
+        }
+    }
+
+    private void decode32(byte[] in, IntBuffer out) {
+        int n = out.remaining();
+        int position = out.position();
+        int p = 0;
+        int lastPix = ((in[0] & 0xff) << 24) | ((in[1] & 0xff) << 16) | ((in[2] & 0xff) << 8) | (in[3] & 0xff);
+        p += 4;
+        int b = in[p++] & 0xff;
+        int nbits = 8;
+        for (int i = 0; i < n;) {
+            nbits -= fsBits;
+            while (nbits < 0) {
+                b = (b << 8) | (in[p++] & 0xff);
+                nbits += 8;
+            }
+            int fs = (b >>> nbits) - 1;
+            b &= (1 << nbits) - 1;
+            int imax = Math.min(i + blockSize, n);
+            if (fs < 0) {
+                // Low entropy block, all differences are zero
+                for (; i < imax; i++) {
+                    out.put(position + i, lastPix);
+                }
+            } else if (fs == fsMax) {
+                // High entropy block, differences are stored directly
+                for (; i < imax; i++) {
+                    int k = 32 - nbits;
+                    int diff = k < 32 ? b << k : 0;
+                    for (k -= 8; k >= 0; k -= 8) {
+                        b = in[p++] & 0xff;
+                        diff |= b << k;
+                    }
+                    if (nbits > 0) {
+                        b = in[p++] & 0xff;
+                        diff |= b >>> (-k);
+                        b &= (1 << nbits) - 1;
+                    } else {
+                        b = 0;
+                    }
+                    lastPix += unmap(diff);
+                    out.put(position + i, lastPix);
+                }
+            } else {
+                for (; i < imax; i++) {
+                    while (b == 0) {
+                        nbits += 8;
+                        b = in[p++] & 0xff;
+                    }
+                    int nzero = nbits - (32 - Integer.numberOfLeadingZeros(b));
+                    nbits -= nzero + 1;
+                    b ^= 1 << nbits;
+                    nbits -= fs;
+                    while (nbits < 0) {
+                        b = (b << 8) | (in[p++] & 0xff);
+                        nbits += 8;
+                    }
+                    int diff = (nzero << fs) | (b >>> nbits);
+                    b &= (1 << nbits) - 1;
+                    lastPix += unmap(diff);
+                    out.put(position + i, lastPix);
+                }
+            }
+        }
+    }
+
+    private void decode16(byte[] in, IntBuffer out) {
+        int n = out.remaining();
+        int position = out.position();
+        int p = 0;
+        short lastPix = (short) (((in[0] & 0xff) << 8) | (in[1] & 0xff));
+        p += 2;
+        int b = in[p++] & 0xff;
+        int nbits = 8;
+        for (int i = 0; i < n;) {
+            nbits -= fsBits;
+            while (nbits < 0) {
+                b = (b << 8) | (in[p++] & 0xff);
+                nbits += 8;
+            }
+            int fs = (b >>> nbits) - 1;
+            b &= (1 << nbits) - 1;
+            int imax = Math.min(i + blockSize, n);
+            if (fs < 0) {
+                for (; i < imax; i++) {
+                    out.put(position + i, lastPix);
+                }
+            } else if (fs == fsMax) {
+                for (; i < imax; i++) {
+                    int k = 16 - nbits;
+                    int diff = b << k;
+                    for (k -= 8; k >= 0; k -= 8) {
+                        b = in[p++] & 0xff;
+                        diff |= b << k;
+                    }
+                    if (nbits > 0) {
+                        b = in[p++] & 0xff;
+                        diff |= b >>> (-k);
+                        b &= (1 << nbits) - 1;
+                    } else {
+                        b = 0;
+                    }
+                    lastPix += unmap(diff & 0xffff);
+                    out.put(position + i, lastPix);
+                }
+            } else {
+                for (; i < imax; i++) {
+                    while (b == 0) {
+                        nbits += 8;
+                        b = in[p++] & 0xff;
+                    }
+                    int nzero = nbits - (32 - Integer.numberOfLeadingZeros(b));
+                    nbits -= nzero + 1;
+                    b ^= 1 << nbits;
+                    nbits -= fs;
+                    while (nbits < 0) {
+                        b = (b << 8) | (in[p++] & 0xff);
+                        nbits += 8;
+                    }
+                    int diff = (nzero << fs) | (b >>> nbits);
+                    b &= (1 << nbits) - 1;
+                    lastPix += unmap(diff);
+                    out.put(position + i, lastPix);
+                }
+            }
+        }
+    }
+
+    private void decode8(byte[] in, IntBuffer out) {
+        int n = out.remaining();
+        int position = out.position();
+        int p = 0;
+        int lastPix = in[p++] & 0xff;
+        int b = in[p++] & 0xff;
+        int nbits = 8;
+        for (int i = 0; i < n;) {
+            nbits -= fsBits;
+            while (nbits < 0) {
+                b = (b << 8) | (in[p++] & 0xff);
+                nbits += 8;
+            }
+            int fs = (b >>> nbits) - 1;
+            b &= (1 << nbits) - 1;
+            int imax = Math.min(i + blockSize, n);
+            if (fs < 0) {
+                for (; i < imax; i++) {
+                    out.put(position + i, lastPix);
+                }
+            } else if (fs == fsMax) {
+                for (; i < imax; i++) {
+                    int k = 8 - nbits;
+                    int diff = b << k;
+                    for (k -= 8; k >= 0; k -= 8) {
+                        b = in[p++] & 0xff;
+                        diff |= b << k;
+                    }
+                    if (nbits > 0) {
+                        b = in[p++] & 0xff;
+                        diff |= b >>> (-k);
+                        b &= (1 << nbits) - 1;
+                    } else {
+                        b = 0;
+                    }
+                    lastPix = (lastPix + unmap(diff & 0xff)) & 0xff;
+                    out.put(position + i, lastPix);
+                }
+            } else {
+                for (; i < imax; i++) {
+                    while (b == 0) {
+                        nbits += 8;
+                        b = in[p++] & 0xff;
+                    }
+                    int nzero = nbits - (32 - Integer.numberOfLeadingZeros(b));
+                    nbits -= nzero + 1;
+                    b ^= 1 << nbits;
+                    nbits -= fs;
+                    while (nbits < 0) {
+                        b = (b << 8) | (in[p++] & 0xff);
+                        nbits += 8;
+                    }
+                    int diff = (nzero << fs) | (b >>> nbits);
+                    b &= (1 << nbits) - 1;
+                    lastPix = (lastPix + unmap(diff)) & 0xff;
+                    out.put(position + i, lastPix);
+                }
+            }
+        }
+    }
+
+    // Differences are mapped to non-negative values, with even values for
+    // positive differences and odd values for negative ones
+    private static int unmap(int diff) {
+        return (diff & 1) == 0 ? diff >>> 1 : ~(diff >>> 1);
+    }
+}
@@ -3,31 +3,45 @@ package org.lsst.fits.imageio;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import nom.tam.fits.FitsException;
 import nom.tam.fits.FitsUtil;
 import nom.tam.fits.Header;
-import nom.tam.fits.compression.algorithm.api.ICompressor;
-import nom.tam.fits.compression.algorithm.gzip2.GZip2Compressor;
-import nom.tam.fits.compression.algorithm.rice.RiceCompressOption;
-import nom.tam.fits.compression.algorithm.rice.RiceCompressor.IntRiceCompressor;
-import nom.tam.fits.header.Standard;
 import nom.tam.util.BufferedFile;
 
 /**
@@ -38,8 +52,42 @@ import nom.tam.util.BufferedFile;
 public class Segment {
 
     private static final Pattern DATASET_PATTERN = Pattern.compile("\\[(\\d+):(\\d+),(\\d+):(\\d+)\\]");
+    // If true the data for each segment is memory mapped rather than read into a newly allocated buffer.
+    // Not final so that tests can compare the two modes.
+    static boolean useMappedIO = Boolean.getBoolean("org.lsst.fits.imageio.useMappedIO");
+    private static final Logger LOG = Logger.getLogger(Segment.class.getName());
+    // Segments from the same file closer than this are read with a single read
+    private static final long MAX_COALESCE_GAP = Long.getLong("org.lsst.fits.imageio.maxCoalesceGapBytes", 1_000_000L);
+    // Decimated uncompressed segments read rows separated by more than this separately
+    private static final long MAX_DECIMATED_ROW_GAP = Long.getLong("org.lsst.fits.imageio.maxDecimatedRowGapBytes", 65_536L);
+    // If true the row tiles of a compressed segment are decoded in parallel when few segments are being decoded
+    private static final boolean PARALLEL_TILE_DECODE = !"false".equals(System.getProperty("org.lsst.fits.imageio.parallelTileDecode"));
+    // Minimum number of rows decoded by each parallel task
+    private static final int MIN_ROWS_PER_DECODE_CHUNK = Integer.getInteger("org.lsst.fits.imageio.minRowsPerDecodeChunk", 128);
+    // The number of compressed segments currently being decoded
+    private static final AtomicInteger DECODES_IN_FLIGHT = new AtomicInteger();
+    // The number of threads used for decoding when few segments are in flight, including the threads which start the decodes
+    private static final int DECODE_THREADS = Math.max(1, Integer.getInteger("org.lsst.fits.imageio.tileDecodeThreads", Runtime.getRuntime().availableProcessors()));
+    // Permits for the helper threads, each splitting decode holds one per chunk it hands to the decode pool, so the
+    // decoding threads together never exceed DECODE_THREADS even when several segments split at once
+    private static final Semaphore DECODE_HELPERS = new Semaphore(DECODE_THREADS - 1);
+    // Decodes chunks of tiles in parallel. Separate from the common pool, since decoding is itself started from
+    // common pool tasks, which would otherwise wait for chunks queued behind them
+    private static final ExecutorService DECODE_POOL = Executors.newFixedThreadPool(Math.max(1, DECODE_THREADS - 1), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "TileDecode-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     private final File file;
+    private final FileIdentity fileIdentity;
+    // Only used for segments which are not stored in a local file
+    private final ByteRangeSource remote;
     private final long seekPosition;
     private final Rectangle2D.Double wcs;
     private final AffineTransform wcsTranslation;
@@ -61,19 +109,96 @@ public class Segment {
     private int channel;
 //    private BufferedFile bf;
     // Used only with compressed data
-    private final int cAxis1;
-    private final int cAxis2;
-    private final int zTile1;
-    private final int zTile2;
+    private final TileCompression compression;
     private final String segmentName;
     private final String raftBay;
     private final String ccdSlot;
-    private final String compressionType;
     private final int bitpix;
+    // Used only for decimated segments
+    private final Segment source;
+    private final int xSubsampling;
+    private final int ySubsampling;
+
+    /**
+     * Identifies the bytes stored for a segment, which are shared by all of
+     * the segments read from the same HDU (e.g. with different WCS letters or
+     * subsampling).
+     */
+    record DataKey(File file, ByteRangeSource remote, FileIdentity fileIdentity, long seekPosition) {}
 
     public Segment(Header header, File file, BufferedFile bf, String raftBay, String ccdSlot, char wcsLetter, Map<String, Object> wcsOverride) throws IOException, FitsException {
+        this(FitsHeaderValues.of(header), file, FileIdentity.of(file), bf.getFilePointer(), raftBay, ccdSlot, wcsLetter, wcsOverride);
+        // Skip the data (for now)
+        int pad = FitsUtil.padding(rawDataLength);
+        bf.skip(rawDataLength + pad);
+    }
+
+    /**
+     * Create a segment from a set of header values, for use by
+     * {@link SegmentSource}s which do not read FITS files. The data must be
+     * stored in the file starting at the seek position, in the same layout as
+     * the data for a FITS image extension.
+     *
+     * @param header The header values
+     * @param file The file containing the segment data
+     * @param seekPosition The position in the file of the segment's data
+     * @param raftBay The raft bay
+     * @param ccdSlot The ccd slot
+     * @param wcsLetter The WCS letter to use to position the segment
+     * @param wcsOverride WCS values to use instead of those in the header, or
+     * <code>null</code>
+     * @throws IOException If the header is missing required information
+     * @throws FitsException If the data format is not supported
+     */
+    public Segment(FitsHeaderValues header, File file, long seekPosition, String raftBay, String ccdSlot, char wcsLetter, Map<String, Object> wcsOverride) throws IOException, FitsException {
+        this(header, file, FileIdentity.of(file), seekPosition, raftBay, ccdSlot, wcsLetter, wcsOverride);
+    }
+
+    /**
+     * Create a segment from its header.
+     *
+     * @param header The header values
+     * @param file The file containing the segment
+     * @param fileIdentity The identity of the file when the header was read
+     * @param seekPosition The position in the file of the segment's data
+     * @param raftBay The raft bay
+     * @param ccdSlot The ccd slot
+     * @param wcsLetter The WCS letter to use to position the segment
+     * @param wcsOverride WCS values to use instead of those in the header, or
+     * <code>null</code>
+     * @throws IOException If the header is missing required information
+     * @throws FitsException If the data format is not supported
+     */
+    Segment(FitsHeaderValues header, File file, FileIdentity fileIdentity, long seekPosition, String raftBay, String ccdSlot, char wcsLetter, Map<String, Object> wcsOverride) throws IOException, FitsException {
+        this(header, file, null, fileIdentity, seekPosition, raftBay, ccdSlot, wcsLetter, wcsOverride);
+    }
+
+    /**
+     * Create a segment from its header, where the data is stored either in a
+     * local file or a remote source.
+     *
+     * @param header The header values
+     * @param file The file containing the segment, or <code>null</code> for a
+     * remote segment
+     * @param remote The remote source of the segment data, or
+     * <code>null</code> for a segment stored in a local file
+     * @param fileIdentity The identity of the file when the header was read
+     * @param seekPosition The position in the file of the segment's data
+     * @param raftBay The raft bay
+     * @param ccdSlot The ccd slot
+     * @param wcsLetter The WCS letter to use to position the segment
+     * @param wcsOverride WCS values to use instead of those in the header, or
+     * <code>null</code>
+     * @throws IOException If the header is missing required information
+     * @throws FitsException If the data format is not supported
+     */
+    Segment(FitsHeaderValues header, File file, ByteRangeSource remote, FileIdentity fileIdentity, long seekPosition, String raftBay, String ccdSlot, char wcsLetter, Map<String, Object> wcsOverride) throws IOException, FitsException {
         this.file = file;
-        this.seekPosition = bf.getFilePointer();
+        this.remote = remote;
+        this.fileIdentity = fileIdentity;
+        this.seekPosition = seekPosition;
+        this.source = null;
+        this.xSubsampling = this.ySubsampling = 1;
         this.wcsLetter = wcsLetter;
         this.raftBay = raftBay;
         this.ccdSlot = ccdSlot;
@@ -81,36 +206,22 @@ public class Segment {
         segmentName = header.getStringValue("EXTNAME");
         if (isCompressed) {
             bitpix = header.getIntValue("ZBITPIX");
-            compressionType = header.getStringValue("ZCMPTYPE");
             // Note, nom,tam.fits has support for many/all compression types, 
             // but performance for the way we are trying to use it leaves much
             // to be desired. The "deferred data reading" used by nom.tam.fits also
             // has issues with requiring files to remain open to be used later.
-            // For now we only support the GZIP_2 type used for camera data.
-            if (!"RICE_1".equals(compressionType) && !"GZIP_2".equals(header.getStringValue("ZCMPTYPE"))) {
-                throw new FitsException("Unsupported compression type: " + compressionType);
-            }
+            // Instead we decode the tiles ourselves, see TileCompression.
+            compression = TileCompression.of(header);
             nAxis1 = header.getIntValue("ZNAXIS1"); // 576
             nAxis2 = header.getIntValue("ZNAXIS2"); // 2048       
-            rawDataLength = header.getIntValue(Standard.NAXIS1) * header.getIntValue(Standard.NAXIS2) + header.getIntValue("PCOUNT");
-            // There give the size of the binary table giving the offsets into the compressed data
-            cAxis1 = header.getIntValue(Standard.NAXIS1); // 8
-            cAxis2 = header.getIntValue(Standard.NAXIS2); // 2048
-            // These give the size of the compressed "tiles"
-            zTile1 = header.getIntValue("ZTILE1"); // 576
-            zTile2 = header.getIntValue("ZTILE2"); // 1  
+            rawDataLength = header.getIntValue("NAXIS1") * header.getIntValue("NAXIS2") + header.getIntValue("PCOUNT");
         } else {
             bitpix = header.getIntValue("BITPIX");
-            nAxis1 = header.getIntValue(Standard.NAXIS1);
-            nAxis2 = header.getIntValue(Standard.NAXIS2);
+            nAxis1 = header.getIntValue("NAXIS1");
+            nAxis2 = header.getIntValue("NAXIS2");
             rawDataLength = nAxis1 * nAxis2 * 4;
-            cAxis1 = cAxis2 = zTile1 = zTile2 = 0;
-            compressionType = null;
+            compression = null;
         }
-        // Skip the data (for now)
-        int pad = FitsUtil.padding(rawDataLength);
-        bf.skip(rawDataLength + pad);
-
         if (wcsOverride != null) {
             String datasecString = wcsOverride.get("DATASEC").toString();
             datasec = computeDatasec(datasecString);
@@ -153,20 +264,318 @@ public class Segment {
         //This does not work for corner rafts!
         //ccdX = Integer.parseInt(ccdSlot.substring(1, 2));
         //ccdY = Integer.parseInt(ccdSlot.substring(2, 3));
-        wcsTranslation = new AffineTransform(pc1_1, pc2_1, pc1_2, pc2_2, crval1, crval2);
-        wcsTranslation.translate(datasec.x + 0.5, datasec.y + 0.5);
+        wcsTranslation = createWCSTranslation();
+        wcs = computeWcs(wcsTranslation);
+    }
+
+    /**
+     * Recreate a segment previously saved using {@link #write(DataOutput)}.
+     *
+     * @param file The file containing the segment, or <code>null</code> for a
+     * remote segment
+     * @param remote The remote source of the segment data, or
+     * <code>null</code> for a segment stored in a local file
+     * @param fileIdentity The identity of the file the index was built from
+     * @param in The input to read the segment description from
+     * @throws IOException If the description cannot be read
+     */
+    Segment(File file, ByteRangeSource remote, FileIdentity fileIdentity, DataInput in) throws IOException {
+        this.file = file;
+        this.remote = remote;
+        this.fileIdentity = fileIdentity;
+        this.source = null;
+        this.xSubsampling = this.ySubsampling = 1;
+        seekPosition = in.readLong();
+        wcsLetter = in.readChar();
+        raftBay = readNullableString(in);
+        ccdSlot = readNullableString(in);
+        segmentName = readNullableString(in);
+        isCompressed = in.readBoolean();
+        bitpix = in.readInt();
+        nAxis1 = in.readInt();
+        nAxis2 = in.readInt();
+        rawDataLength = in.readInt();
+        compression = isCompressed ? new TileCompression(in) : null;
+        datasec = new Rectangle(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        pc1_1 = in.readDouble();
+        pc2_2 = in.readDouble();
+        pc1_2 = in.readDouble();
+        pc2_1 = in.readDouble();
+        crval1 = in.readDouble();
+        crval2 = in.readDouble();
+        channel = in.readInt();
+        wcsTranslation = createWCSTranslation();
+        wcs = computeWcs(wcsTranslation);
+    }
+
+    /**
+     * Create a decimated view of a segment, used for subsampled reads. Only
+     * every n'th row and column of the data section is kept, but the pre and
+     * overscan regions are kept in full, so that bias corrections computed
+     * from the decimated data give the same result for the retained pixels as
+     * they would for the full segment. For compressed data only the tiles
+     * containing the rows which are needed are decoded, for uncompressed data
+     * only the rows which are needed are read, although rows which are close
+     * together are read with a single read (see
+     * <code>org.lsst.fits.imageio.maxDecimatedRowGapBytes</code>).
+     *
+     * @param source The full resolution segment
+     * @param xSubsampling The column decimation factor
+     * @param ySubsampling The row decimation factor
+     */
+    private Segment(Segment source, int xSubsampling, int ySubsampling) {
+        this.source = source;
+        this.xSubsampling = xSubsampling;
+        this.ySubsampling = ySubsampling;
+        file = source.file;
+        remote = source.remote;
+        fileIdentity = source.fileIdentity;
+        seekPosition = source.seekPosition;
+        wcsLetter = source.wcsLetter;
+        raftBay = source.raftBay;
+        ccdSlot = source.ccdSlot;
+        segmentName = source.segmentName;
+        isCompressed = source.isCompressed;
+        bitpix = source.bitpix;
+        rawDataLength = source.rawDataLength;
+        compression = source.compression;
+        channel = source.channel;
+        pc1_1 = source.pc1_1;
+        pc2_2 = source.pc2_2;
+        pc1_2 = source.pc1_2;
+        pc2_1 = source.pc2_1;
+        crval1 = source.crval1;
+        crval2 = source.crval2;
+        Rectangle sourceDatasec = source.datasec;
+        int width = (sourceDatasec.width + xSubsampling - 1) / xSubsampling;
+        int height = (sourceDatasec.height + ySubsampling - 1) / ySubsampling;
+        datasec = new Rectangle(sourceDatasec.x, sourceDatasec.y, width, height);
+        nAxis1 = source.nAxis1 - sourceDatasec.width + width;
+        nAxis2 = source.nAxis2 - sourceDatasec.height + height;
+        wcsTranslation = new AffineTransform(source.wcsTranslation);
+        wcsTranslation.scale(xSubsampling, ySubsampling);
+        wcs = source.wcs;
+    }
+
+    /**
+     * Get a decimated view of this segment.
+     *
+     * @param xSubsampling The column decimation factor
+     * @param ySubsampling The row decimation factor
+     * @return The decimated segment, or this segment if no decimation is
+     * needed
+     */
+    Segment decimated(int xSubsampling, int ySubsampling) {
+        if (source != null) {
+            return source.decimated(xSubsampling, ySubsampling);
+        } else if (xSubsampling == 1 && ySubsampling == 1) {
+            return this;
+        } else {
+            return new Segment(this, xSubsampling, ySubsampling);
+        }
+    }
+
+    boolean isDecimated() {
+        return source != null;
+    }
+
+    /**
+     * Map a row or column index in a decimated segment to the corresponding
+     * index in the source segment.
+     *
+     * @param i The index in the decimated segment
+     * @param start The start of the data section (in both segments)
+     * @param decimatedLength The length of the decimated data section
+     * @param sourceLength The length of the source data section
+     * @param factor The decimation factor
+     * @return The index in the source segment
+     */
+    static int sourceIndex(int i, int start, int decimatedLength, int sourceLength, int factor) {
+        if (i < start) {
+            return i;
+        } else if (i < start + decimatedLength) {
+            return start + (i - start) * factor;
+        } else {
+            return i - decimatedLength + sourceLength;
+        }
+    }
+
+    /**
+     * The source column for each column of a decimated segment.
+     */
+    private int[] sourceColumns() {
+        int[] columns = new int[nAxis1];
+        for (int i = 0; i < nAxis1; i++) {
+            columns[i] = sourceIndex(i, datasec.x, datasec.width, source.datasec.width, xSubsampling);
+        }
+        return columns;
+    }
+
+    /**
+     * The source row for each row of a decimated segment.
+     */
+    private int[] sourceRows() {
+        int[] rows = new int[nAxis2];
+        for (int j = 0; j < nAxis2; j++) {
+            rows[j] = sourceIndex(j, datasec.y, datasec.height, source.datasec.height, ySubsampling);
+        }
+        return rows;
+    }
+
+    private RawData decodeDecimated(ByteBuffer bb) {
+        int[] columns = sourceColumns();
+        int[] rows = sourceRows();
+        if (isCompressed) {
+            // Only decode the tiles containing the rows we need
+            Buffer result = bitpix < 0 ? FloatBuffer.allocate(nAxis1 * nAxis2) : IntBuffer.allocate(nAxis1 * nAxis2);
+            int rowsPerTile = compression.getRowsPerTile();
+            Buffer tileData = bitpix < 0 ? FloatBuffer.allocate(rowsPerTile * source.nAxis1) : IntBuffer.allocate(rowsPerTile * source.nAxis1);
+            TileCompression.Decoder decoder = compression.createDecoder();
+            int currentTile = -1;
+            for (int j = 0; j < nAxis2; j++) {
+                int tile = rows[j] / rowsPerTile;
+                if (tile != currentTile) {
+                    int tileRows = Math.min(rowsPerTile, source.nAxis2 - tile * rowsPerTile);
+                    decoder.decode(bb, tile, tileData.clear().limit(tileRows * source.nAxis1));
+                    currentTile = tile;
+                }
+                copyRow(tileData, (rows[j] - tile * rowsPerTile) * source.nAxis1, columns, result, j * nAxis1);
+            }
+            return new RawData(this, result);
+        }
+        // Only used if the full data has been read anyway, see readDecimatedRowsAsync
+        IntBuffer full = (IntBuffer) source.decode(bb).getBuffer();
+        IntBuffer result = IntBuffer.allocate(nAxis1 * nAxis2);
+        for (int j = 0; j < nAxis2; j++) {
+            copyRow(full, rows[j] * source.nAxis1, columns, result, j * nAxis1);
+        }
+        return new RawData(this, result);
+    }
+
+    private static void copyRow(Buffer from, int fromOffset, int[] columns, Buffer to, int toOffset) {
+        if (to instanceof FloatBuffer floatTo) {
+            FloatBuffer floatFrom = (FloatBuffer) from;
+            for (int i = 0; i < columns.length; i++) {
+                floatTo.put(toOffset + i, floatFrom.get(fromOffset + columns[i]));
+            }
+        } else {
+            IntBuffer intFrom = (IntBuffer) from;
+            IntBuffer intTo = (IntBuffer) to;
+            for (int i = 0; i < columns.length; i++) {
+                intTo.put(toOffset + i, intFrom.get(fromOffset + columns[i]));
+            }
+        }
+    }
+
+    /**
+     * Whether this is a decimated uncompressed segment, which reads only the
+     * rows it needs rather than all of the segment's data.
+     */
+    private boolean readsDecimatedRows() {
+        return source != null && !isCompressed;
+    }
+
+    /**
+     * Read just the rows needed by a decimated uncompressed segment. Rows
+     * which are close together are read with a single read, since the cost of
+     * a separate read outweighs that of reading a few unwanted rows.
+     */
+    private CompletableFuture<RawData> readDecimatedRowsAsync() {
+        int[] columns = sourceColumns();
+        int[] rows = sourceRows();
+        int rowBytes = source.nAxis1 * 4;
+        IntBuffer result = IntBuffer.allocate(nAxis1 * nAxis2);
+        boolean pooled = canPool();
+        List<CompletableFuture<Void>> reads = new ArrayList<>();
+        for (int j = 0; j < nAxis2;) {
+            int first = j;
+            while (j + 1 < nAxis2 && (long) (rows[j + 1] - rows[j] - 1) * rowBytes <= MAX_DECIMATED_ROW_GAP) {
+                j++;
+            }
+            int last = j++;
+            int firstSourceRow = rows[first];
+            int nSourceRows = rows[last] - firstSourceRow + 1;
+            reads.add(readBytesAsync(seekPosition + (long) firstSourceRow * rowBytes, nSourceRows * rowBytes, pooled).thenAccept((bb) -> {
+                try {
+                    IntBuffer data = bb.asIntBuffer();
+                    for (int k = first; k <= last; k++) {
+                        copyRow(data, (rows[k] - firstSourceRow) * source.nAxis1, columns, result, k * nAxis1);
+                    }
+                } finally {
+                    if (pooled) {
+                        DirectBufferPool.instance().release(bb);
+                    }
+                }
+            }));
+        }
+        return CompletableFuture.allOf(reads.toArray(CompletableFuture[]::new)).thenApply((v) -> new RawData(this, result));
+    }
+
+    /**
+     * Save everything needed to recreate this segment without reading the
+     * FITS headers again.
+     *
+     * @param out The output to write to
+     * @throws IOException If the description cannot be written
+     * @see SegmentIndex
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeLong(seekPosition);
+        out.writeChar(wcsLetter);
+        writeNullableString(out, raftBay);
+        writeNullableString(out, ccdSlot);
+        writeNullableString(out, segmentName);
+        out.writeBoolean(isCompressed);
+        out.writeInt(bitpix);
+        out.writeInt(nAxis1);
+        out.writeInt(nAxis2);
+        out.writeInt(rawDataLength);
+        if (compression != null) {
+            compression.write(out);
+        }
+        out.writeInt(datasec.x);
+        out.writeInt(datasec.y);
+        out.writeInt(datasec.width);
+        out.writeInt(datasec.height);
+        out.writeDouble(pc1_1);
+        out.writeDouble(pc2_2);
+        out.writeDouble(pc1_2);
+        out.writeDouble(pc2_1);
+        out.writeDouble(crval1);
+        out.writeDouble(crval2);
+        out.writeInt(channel);
+    }
+
+    private static String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeNullableString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private AffineTransform createWCSTranslation() {
+        AffineTransform translation = new AffineTransform(pc1_1, pc2_1, pc1_2, pc2_2, crval1, crval2);
+        translation.translate(datasec.x + 0.5, datasec.y + 0.5);
         //wcsTranslation.translate(crval1, crval2);
         //wcsTranslation.scale(pc1_1, pc2_2);
         //System.out.printf("FILE %s CCDSLOT %s\n", file, ccdSlot);
         //System.out.printf("pc1_1=%3.3g pc2_2=%3.3g pc1_2=%3.3g pc2_1=%3.3g\n", pc1_1, pc2_2, pc1_2, pc2_1);
         //System.out.printf("qcs=%s\n", wcsTranslation);
-        Point2D origin = wcsTranslation.transform(new Point(0, 0), null);
-        Point2D corner = wcsTranslation.transform(new Point(datasec.width, datasec.height), null);
+        return translation;
+    }
+
+    private Rectangle2D.Double computeWcs(AffineTransform translation) {
+        Point2D origin = translation.transform(new Point(0, 0), null);
+        Point2D corner = translation.transform(new Point(datasec.width, datasec.height), null);
         double x = Math.min(origin.getX(), corner.getX());
         double y = Math.min(origin.getY(), corner.getY());
         double width = Math.abs(origin.getX() - corner.getX());
         double height = Math.abs(origin.getY() - corner.getY());
-        wcs = new Rectangle2D.Double(x, y, width, height);
+        return new Rectangle2D.Double(x, y, width, height);
     }
 
     private Rectangle computeDatasec(String datasecString) throws IOException, NumberFormatException {
@@ -189,150 +598,501 @@ public class Segment {
         return rawDataLength;
     }
 
+    long getSeekPosition() {
+        return seekPosition;
+    }
+
+    /**
+     * The file containing this segment.
+     *
+     * @return The file, or <code>null</code> for segments which are read from
+     * a remote source
+     */
     public File getFile() {
         return file;
     }
 
-//    // Data in the compressed byte array is stored with the bytes shuffled, this routine unshuffles them
-//    private void unshuffle(byte[] in, IntBuffer out) {
-//        int length = in.length / 4;
-//        for (int i = 0; i < length; i++) {
-//            out.put(((0xff & in[i]) << 24) + ((0xff & in[i + length]) << 16) + ((0xff & in[i + 2 * length]) << 8) + ((0xff & in[i + 3 * length])));
-//        }
-//    }
-
-//    Old method no longer used, left here in case there is a performance decrease with new version
-//    private IntBuffer decodeGZIP2CompressedData(ByteBuffer bb) {
-//        // We use inflater directly since it can be reused (unlike GZIPInputStream)
-//        Inflater inflater = new Inflater(true);
-//        try {
-//            IntBuffer result = IntBuffer.allocate(nAxis1 * nAxis2);
-//            // offsets contain the length and offset of each tile
-//            int[] offsets = new int[cAxis1 * cAxis2 / 4];
-//            bb.asIntBuffer().get(offsets);
-//            bb.position(cAxis1 * cAxis2);
-//            // Note, the +1 is required by Inflater (actually zlib)
-//            byte[] decompressed = new byte[nAxis1 * 4 + 1];
-//            // We assume the compressed data will never be larger than the decompressed
-//            // data, but that might not be true.
-//            byte[] compressed = new byte[nAxis1 * 4 + 1];
-//            // Note, the format is designed to allow decompression to be parallelized
-//            // but since we are typically reading many files in parallel there is little
-//            // to be gained.
-//            for (int i = 0; i < cAxis2; i++) {
-//                // For jdk 8 we need to copy the input data into a byte array. If we
-//                // use jdk11 we can directly send the ByteBuffer to the inflater.
-//                bb.get(compressed, 0, offsets[i * 2]);
-//                inflater.reset();
-//                // 10 is to skip the gzip header
-//                inflater.setInput(compressed, 10, offsets[i * 2] - 10);
-//                int p = 0;
-//                while (!inflater.finished()) {
-//                    int l = inflater.inflate(decompressed, p, decompressed.length - p);
-//                    p += l;
-//                }
-//                unshuffle(decompressed, result);
-//            }
-//            result.flip();
-//            return result;
-//        } catch (DataFormatException x) {
-//            throw new CompletionException("Error decompressing image", x);
-//        } finally {
-//            inflater.end();
-//        }
-//    }
-    
-    private IntBuffer decodeGZIP2CompressedData(ByteBuffer bb) {
-        return this.decodeCompressedData(bb, new GZip2Compressor.IntGZip2Compressor());
+    public boolean isCompressed() {
+        return isCompressed;
     }
 
-    private FloatBuffer decodeGZIP2FloatCompressedData(ByteBuffer bb) {
-        return this.decodeCompressedFloatData(bb, new GZip2Compressor.FloatGZip2Compressor());
+    public int getBitpix() {
+        return bitpix;
     }
-    
-    private IntBuffer decodeRICECompressedData(ByteBuffer bb) {
-        final RiceCompressOption riceCompressOption = new RiceCompressOption();
-        // Why are these hardwired? -- presumably should come from headers.
-        riceCompressOption.setBlockSize(32);
-        riceCompressOption.setBytePix(4);
-        IntRiceCompressor inflater = new IntRiceCompressor(riceCompressOption);
-        return this.decodeCompressedData(bb, inflater);
+
+    /**
+     * Decode only the tiles of a compressed segment which cover the given
+     * rows. The table at the start of the compressed data gives the location
+     * of each tile in the heap, so tiles can be decoded in any order. Tiles
+     * may contain more than one row, in which case some rows outside of the
+     * requested range may also be decoded.
+     *
+     * @param compressed The compressed data for the segment, as read from the
+     * file
+     * @param firstRow The first row to decode, which must be the first row of
+     * a tile
+     * @param lastRow The row after the last row to decode
+     * @param destination The buffer into which the rows should be decoded,
+     * starting with <code>firstRow</code>. It must have room for every row of
+     * the tiles covering the range.
+     */
+    void decodeRows(ByteBuffer compressed, int firstRow, int lastRow, IntBuffer destination) {
+        TileCompression.Decoder decoder = compression.createDecoder();
+        ByteBuffer bb = compressed.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int rowsPerTile = compression.getRowsPerTile();
+        for (int tile = firstRow / rowsPerTile; tile <= (lastRow - 1) / rowsPerTile; tile++) {
+            decodeTile(bb, tile, decoder, destination, firstRow);
+        }
+    }
+
+    /**
+     * Decode a single tile into the corresponding rows of the result.
+     */
+    private void decodeTile(ByteBuffer bb, int tile, TileCompression.Decoder decoder, Buffer result) {
+        decodeTile(bb, tile, decoder, result, 0);
+    }
+
+    /**
+     * Decode a single tile into a result which starts at the given row.
+     */
+    private void decodeTile(ByteBuffer bb, int tile, TileCompression.Decoder decoder, Buffer result, int resultFirstRow) {
+        int firstRow = tile * compression.getRowsPerTile();
+        int rows = Math.min(compression.getRowsPerTile(), nAxis2 - firstRow);
+        decoder.decode(bb, tile, result.slice((firstRow - resultFirstRow) * nAxis1, rows * nAxis1));
+    }
+
+    /**
+     * The number of rows in each compressed tile, or 1 for uncompressed
+     * segments.
+     *
+     * @return The number of rows
+     */
+    int getRowsPerTile() {
+        return isCompressed ? compression.getRowsPerTile() : 1;
+    }
+
+    /**
+     * Read the compressed data for this segment, without decoding it.
+     *
+     * @return A future containing the compressed data
+     */
+    CompletableFuture<ByteBuffer> readCompressedDataAsync() {
+        return readBytesAsync(seekPosition, rawDataLength, false);
     }
     
-    // The compressed data is store as a FITS BinaryTable, where each row of the image is decompressed 
-    // independently.
-    private IntBuffer decodeCompressedData(ByteBuffer bb, ICompressor<IntBuffer> inflater) {
+    // The compressed data is store as a FITS BinaryTable, where each row of the image (or each
+    // group of rows) is compressed independently.
+    private IntBuffer decodeCompressedData(ByteBuffer bb) {
         IntBuffer result = IntBuffer.allocate(nAxis1 * nAxis2);
-        // offsets contain the length and offset of each tile
-        int[] offsets = new int[cAxis1 * cAxis2 / 4];
-        bb.asIntBuffer().get(offsets);
-        bb.position(cAxis1 * cAxis2);
-        // Note, the format is designed to allow decompression to be parallelized
-        // but since we are typically reading many files in parallel there is little
-        // to be gained.
-        for (int i = 0; i < cAxis2; i++) {
-            result.limit(result.position()+nAxis1);
-            bb.limit(bb.position()+offsets[i * 2]);
-            inflater.decompress(bb, result.slice());
-            result.position(result.position()+nAxis1);
-        }
-        result.flip();
+        decodeTiles(bb, result);
         return result;
     }
 
-    private FloatBuffer decodeCompressedFloatData(ByteBuffer bb, ICompressor<FloatBuffer> inflater) {
+    private FloatBuffer decodeCompressedFloatData(ByteBuffer bb) {
         FloatBuffer result = FloatBuffer.allocate(nAxis1 * nAxis2);
-        // offsets contain the length and offset of each tile
-        int[] offsets = new int[cAxis1 * cAxis2 / 4];
-        bb.asIntBuffer().get(offsets);
-        bb.position(cAxis1 * cAxis2);
-        // Note, the format is designed to allow decompression to be parallelized
-        // but since we are typically reading many files in parallel there is little
-        // to be gained.
-        for (int i = 0; i < cAxis2; i++) {
-            result.limit(result.position()+nAxis1);
-            bb.limit(bb.position()+offsets[i * 2]);
-            inflater.decompress(bb, result.slice());
-            result.position(result.position()+nAxis1);
-        }
-        result.flip();
+        decodeTiles(bb, result);
         return result;
     }
 
+    /**
+     * Decode all of the tiles of a compressed segment. When many segments
+     * are being decoded at once (e.g. for a focal plane view) each segment is
+     * decoded by a single thread, but when only a few are in flight (e.g. a
+     * single CCD) the tiles are split into chunks which are decoded in parallel
+     * by the calling thread and the decode pool, so that the otherwise idle
+     * cores are used. A chunk is only handed to the pool if a helper permit is
+     * available, so the CPU is not oversubscribed.
+     */
+    private void decodeTiles(ByteBuffer bb, Buffer result) {
+        DECODES_IN_FLIGHT.incrementAndGet();
+        int helpers = 0;
+        try {
+            int wanted = parallelDecodeChunks(nAxis2) - 1;
+            while (helpers < wanted && DECODE_HELPERS.tryAcquire()) {
+                helpers++;
+            }
+            decodeTiles(bb, result, helpers + 1);
+        } finally {
+            DECODE_HELPERS.release(helpers);
+            DECODES_IN_FLIGHT.decrementAndGet();
+        }
+    }
+
+    /**
+     * Decode all of the tiles of a compressed segment, split into the given
+     * number of chunks of consecutive tiles. The calling thread decodes the
+     * first chunk, the rest are decoded by the decode pool. Each chunk uses
+     * its own decoder, since they are not thread safe.
+     *
+     * @param bb The compressed data
+     * @param result The buffer to decode into
+     * @param chunks The number of chunks, 1 to decode serially
+     */
+    void decodeTiles(ByteBuffer bb, Buffer result, int chunks) {
+        int nTiles = compression.getTileCount();
+        int tilesPerChunk = (nTiles + chunks - 1) / chunks;
+        List<CompletableFuture<Void>> others = new ArrayList<>();
+        for (int firstTile = tilesPerChunk; firstTile < nTiles; firstTile += tilesPerChunk) {
+            int start = firstTile;
+            int end = Math.min(nTiles, firstTile + tilesPerChunk);
+            others.add(CompletableFuture.runAsync(() -> decodeTiles(bb, start, end, result), DECODE_POOL));
+        }
+        decodeTiles(bb, 0, Math.min(nTiles, tilesPerChunk), result);
+        CompletableFuture.allOf(others.toArray(CompletableFuture[]::new)).join();
+    }
+
+    private void decodeTiles(ByteBuffer bb, int firstTile, int lastTile, Buffer result) {
+        TileCompression.Decoder decoder = compression.createDecoder();
+        for (int tile = firstTile; tile < lastTile; tile++) {
+            decodeTile(bb, tile, decoder, result);
+        }
+    }
+
+    /**
+     * Decide how many chunks to split the decoding of a segment into, based
+     * on the number of segments currently being decoded. The segment must
+     * already be counted in <code>DECODES_IN_FLIGHT</code>, so that segments
+     * starting to decode at the same time see each other.
+     *
+     * @param rows The number of rows in the segment
+     * @return The number of chunks wanted, 1 if the segment should be decoded
+     * by the calling thread. Fewer may be used if the decode pool is busy.
+     */
+    static int parallelDecodeChunks(int rows) {
+        if (!PARALLEL_TILE_DECODE) {
+            return 1;
+        }
+        int inFlight = Math.max(1, DECODES_IN_FLIGHT.get());
+        int chunks = Math.min(DECODE_THREADS / inFlight, rows / MIN_ROWS_PER_DECODE_CHUNK);
+        return Math.max(1, chunks);
+    }
+
+    /**
+     * The executor used to decode data once it has been read. If none is given
+     * the data is decoded on the thread which completes the read.
+     */
+    private static Executor decodeExecutor(Executor executor) {
+        return executor != null ? executor : Runnable::run;
+    }
+
     public CompletableFuture<RawData> readRawDataAsync(Executor executor) {
+        return readRawDataAsync(executor, null, false);
+    }
 
-        CompletableFuture<ByteBuffer> futureByteBuffer = readByteBufferAsync();
+    /**
+     * Read and decode the raw data for this segment.
+     *
+     * @param executor The executor used to decode the data, or
+     * <code>null</code> to decode on the thread completing the read
+     * @param compressedData If not <code>null</code>, called with the bytes
+     * read before they are decoded, if the segment is compressed. The buffer
+     * is only valid for the duration of the call.
+     * @param offHeap If <code>true</code> uncompressed data is copied
+     * directly into an {@link OffHeapRawData}, rather than to the heap
+     * @return A future containing the raw data
+     */
+    CompletableFuture<RawData> readRawDataAsync(Executor executor, BiConsumer<Segment, ByteBuffer> compressedData, boolean offHeap) {
+        if (readsDecimatedRows()) {
+            return readDecimatedRowsAsync();
+        }
+        // The bytes read are always decoded or copied (see decode), so the buffer
+        // can be reused
+        boolean pooled = canPool();
+        // Decode on the given executor rather than the thread completing the read
+        return readBytesAsync(seekPosition, rawDataLength, pooled).thenApplyAsync((bb) -> {
+            try {
+                if (compressedData != null && isCompressed) {
+                    compressedData.accept(this, bb.duplicate());
+                }
+                return decode(bb, offHeap);
+            } finally {
+                if (pooled) {
+                    DirectBufferPool.instance().release(bb);
+                }
+            }
+        }, decodeExecutor(executor));
+    }
+
+    /**
+     * Read a range of rows of an uncompressed segment.
+     *
+     * @param firstRow The first row to read
+     * @param lastRow The row after the last row to read
+     * @param destination The buffer into which the rows should be copied,
+     * starting with <code>firstRow</code>
+     * @return A future which completes once the rows have been copied
+     */
+    CompletableFuture<Void> readRowsAsync(int firstRow, int lastRow, IntBuffer destination) {
         if (isCompressed) {
-            if ("GZIP_2".equals(compressionType)) {
-                switch (bitpix) {
-                    case 32:
-                        return futureByteBuffer.thenApply((bb) -> decodeGZIP2CompressedData(bb)).thenApply((ib) -> new RawData(this, ib));
-                    case -32:
-                        return futureByteBuffer.thenApply((bb) -> decodeGZIP2FloatCompressedData(bb)).thenApply((fb) -> new RawData(this, fb));
-                    default:
-                        throw new RuntimeException("Unsupported bitpix: "+bitpix);
+            throw new UnsupportedOperationException("Partial reads not supported for compressed segment " + segmentName);
+        }
+        int rowBytes = nAxis1 * 4;
+        boolean pooled = canPool();
+        return readBytesAsync(seekPosition + (long) firstRow * rowBytes, (lastRow - firstRow) * rowBytes, pooled).thenAccept((bb) -> {
+            try {
+                if (destination.hasArray()) {
+                    PixelKernels.instance().bigEndianToInts(bb, destination.array(), destination.arrayOffset(), bb.remaining() / 4);
+                } else {
+                    IntBuffer source = bb.asIntBuffer();
+                    destination.put(0, source, 0, source.remaining());
+                }
+            } finally {
+                if (pooled) {
+                    DirectBufferPool.instance().release(bb);
+                }
+            }
+        });
+    }
+
+    /**
+     * Compute the range of rows of this segment which are needed to draw the
+     * given region.
+     *
+     * @param region The region, in the same coordinates as {@link #getWcs()}
+     * @return An array containing the first row, and the row after the last
+     * row, needed.
+     */
+    int[] computeRowRange(Rectangle2D region) {
+        try {
+            Rectangle2D local = wcsTranslation.createInverse().createTransformedShape(region).getBounds2D();
+            // Allow an extra row each side for rounding when drawing
+            int first = Math.max(datasec.y, datasec.y + (int) Math.floor(local.getMinY()) - 1);
+            int last = Math.min(datasec.y + datasec.height, datasec.y + (int) Math.ceil(local.getMaxY()) + 1);
+            return new int[]{first, Math.max(first, last)};
+        } catch (NoninvertibleTransformException x) {
+            return new int[]{datasec.y, datasec.y + datasec.height};
+        }
+    }
+
+    /**
+     * Read the raw data for several segments at once. Segments which come from
+     * the same file are read with a single read spanning all of their data
+     * (including the intervening headers), which is much more efficient than
+     * reading each segment separately, especially on spinning disks and for
+     * remote sources where each read is a separate request. Segments separated
+     * by more than <code>org.lsst.fits.imageio.maxCoalesceGapBytes</code> of
+     * unwanted data are read separately. Each segment is decoded as a
+     * separate task, so segments read together are still decoded in
+     * parallel. A segment which cannot be decoded is logged and left out of
+     * the result, rather than failing the others read with it.
+     *
+     * @param segments The segments to read
+     * @param executor The executor to use
+     * @return A future containing the raw data for every requested segment
+     * which could be decoded
+     */
+    public static CompletableFuture<Map<Segment, RawData>> readRawDataAsync(Collection<? extends Segment> segments, Executor executor) {
+        return readRawDataAsync(segments, executor, null, false);
+    }
+
+    /**
+     * Read the raw data for several segments at once.
+     *
+     * @param segments The segments to read
+     * @param executor The executor used to decode the data, or
+     * <code>null</code> to decode on the thread completing the read
+     * @param compressedData If not <code>null</code>, called with the bytes
+     * read for each compressed segment before it is decoded
+     * @param offHeap If <code>true</code> uncompressed data is copied
+     * directly off heap
+     * @return A future containing the raw data for every requested segment
+     * which could be decoded
+     * @see #readRawDataAsync(java.util.concurrent.Executor, java.util.function.BiConsumer, boolean)
+     */
+    static CompletableFuture<Map<Segment, RawData>> readRawDataAsync(Collection<? extends Segment> segments, Executor executor, BiConsumer<Segment, ByteBuffer> compressedData, boolean offHeap) {
+        Map<Object, List<Segment>> segmentsByFile = segments.stream().collect(Collectors.groupingBy(Segment::getStorageKey, LinkedHashMap::new, Collectors.toList()));
+        Map<Segment, RawData> result = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (List<Segment> fileSegments : segmentsByFile.values()) {
+            fileSegments.sort(Comparator.comparingLong((Segment s) -> s.seekPosition));
+            List<Segment> run = new ArrayList<>();
+            long runEnd = 0;
+            for (Segment segment : fileSegments) {
+                if (segment.readsDecimatedRows()) {
+                    // Reading all of the data would defeat the point of decimation
+                    futures.add(readRunAsync(List.of(segment), executor, result, compressedData, offHeap));
+                    continue;
+                }
+                if (!run.isEmpty() && (segment.seekPosition - runEnd > MAX_COALESCE_GAP || segment.seekPosition + segment.rawDataLength - run.get(0).seekPosition > Integer.MAX_VALUE)) {
+                    futures.add(readRunAsync(run, executor, result, compressedData, offHeap));
+                    run = new ArrayList<>();
+                }
+                run.add(segment);
+                runEnd = Math.max(runEnd, segment.seekPosition + segment.rawDataLength);
+            }
+            if (!run.isEmpty()) {
+                futures.add(readRunAsync(run, executor, result, compressedData, offHeap));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).thenApply(v -> result);
+    }
+
+    /**
+     * Read a run of segments, sorted by position, from the same file with a
+     * single read, then decode each segment as a separate task. The buffer
+     * read into is released once the last segment has been decoded.
+     */
+    private static CompletableFuture<Void> readRunAsync(List<Segment> run, Executor executor, Map<Segment, RawData> result, BiConsumer<Segment, ByteBuffer> compressedData, boolean offHeap) {
+        if (run.size() == 1) {
+            Segment segment = run.get(0);
+            return segment.readRawDataAsync(executor, compressedData, offHeap).handle((rawData, x) -> {
+                if (x != null) {
+                    LOG.log(Level.WARNING, "Unable to read segment " + segment, x);
+                } else {
+                    result.put(segment, rawData);
                 }
+                return null;
+            });
+        }
+        Segment first = run.get(0);
+        long start = first.seekPosition;
+        long end = run.stream().mapToLong(s -> s.seekPosition + s.rawDataLength).max().getAsLong();
+        boolean pooled = first.canPool();
+        return first.readBytesAsync(start, (int) (end - start), pooled).thenCompose(bb -> {
+            AtomicInteger remaining = new AtomicInteger(run.size());
+            List<CompletableFuture<Void>> decodes = new ArrayList<>(run.size());
+            for (Segment segment : run) {
+                decodes.add(CompletableFuture.runAsync(() -> {
+                    ByteBuffer slice = sliceOf(bb, segment.seekPosition - start, segment.rawDataLength);
+                    if (compressedData != null && segment.isCompressed) {
+                        compressedData.accept(segment, slice.duplicate());
+                    }
+                    result.put(segment, segment.decode(slice, offHeap));
+                }, decodeExecutor(executor)).handle((v, x) -> {
+                    if (x != null) {
+                        LOG.log(Level.WARNING, "Unable to decode segment " + segment, x);
+                    }
+                    if (remaining.decrementAndGet() == 0 && pooled) {
+                        DirectBufferPool.instance().release(bb);
+                    }
+                    return null;
+                }));
+            }
+            return CompletableFuture.allOf(decodes.toArray(CompletableFuture[]::new));
+        });
+    }
+
+    /**
+     * The part of a buffer read for a run of segments which holds the data of
+     * one segment.
+     *
+     * @param bb The buffer read for the run
+     * @param offset The offset of the segment's data from the start of the
+     * run
+     * @param length The length of the segment's data
+     * @return A big endian buffer containing just the segment's data
+     */
+    private static ByteBuffer sliceOf(ByteBuffer bb, long offset, int length) {
+        return bb.slice((int) offset, length).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * The object identifying where this segment's data is stored, segments
+     * with the same storage key can be read together.
+     */
+    private Object getStorageKey() {
+        return remote != null ? remote : file;
+    }
+
+    /**
+     * Whether reads of this segment's data can use buffers from the
+     * {@link DirectBufferPool}.
+     */
+    private boolean canPool() {
+        return !useMappedIO && remote == null;
+    }
+
+    /**
+     * Read a range of bytes from wherever this segment is stored.
+     *
+     * @param pooled If <code>true</code> the buffer is obtained from the
+     * {@link DirectBufferPool}, and the caller is responsible for releasing it.
+     * Must only be set if {@link #canPool()} is true.
+     */
+    private CompletableFuture<ByteBuffer> readBytesAsync(long position, int length, boolean pooled) {
+        if (remote != null) {
+            return remote.read(position, length);
+        } else {
+            return readByteBufferAsync(file, fileIdentity, position, length, pooled);
+        }
+    }
+
+    /**
+     * Decode the bytes stored for this segment.
+     *
+     * @param bb The bytes, as read from the file. The buffer is not modified.
+     * @return The decoded raw data
+     */
+    RawData decode(ByteBuffer bb) {
+        return decode(bb, false);
+    }
+
+    /**
+     * Decode the bytes read for this segment.
+     *
+     * @param bb The bytes read, which may be reused once this returns
+     * @param offHeap If <code>true</code> uncompressed data is copied directly
+     * into off heap memory, rather than to the heap and then off heap
+     * @return The raw data
+     */
+    private RawData decode(ByteBuffer bb, boolean offHeap) {
+        if (source != null) {
+            return decodeDecimated(bb);
+        } else if (isCompressed) {
+            if (bitpix < 0) {
+                return new RawData(this, decodeCompressedFloatData(bb));
             } else {
-                return futureByteBuffer.thenApply((bb) -> decodeRICECompressedData(bb)).thenApply((ib) -> new RawData(this, ib));
+                return new RawData(this, decodeCompressedData(bb));
             }
+        } else if (useMappedIO) {
+            return new RawData(this, bb.asIntBuffer());
+        } else if (offHeap) {
+            return OffHeapRawData.ofBigEndianInts(this, bb);
         } else {
-            return futureByteBuffer.thenApply((bb) -> new RawData(this, bb.asIntBuffer()));
+            // Copy to the heap, so that the buffer read into can be reused
+            int[] result = new int[bb.remaining() / 4];
+            PixelKernels.instance().bigEndianToInts(bb, result, 0, result.length);
+            return new RawData(this, IntBuffer.wrap(result));
         }
     }
 
-    private CompletableFuture<ByteBuffer> readByteBufferAsync() {
+    /**
+     * Read data from a file asynchronously.
+     *
+     * @param file The file to read
+     * @param identity The version of the file expected, used to avoid reading
+     * through a pooled channel opened before the file was replaced
+     * @param position The position in the file to start reading
+     * @param length The number of bytes to read
+     * @param pooled If <code>true</code> the buffer is obtained from the
+     * {@link DirectBufferPool}, and the caller is responsible for releasing it.
+     * @return A future containing the data read
+     */
+    private static CompletableFuture<ByteBuffer> readByteBufferAsync(File file, FileIdentity identity, long position, int length, boolean pooled) {
+        if (useMappedIO) {
+            return mapByteBuffer(file, position, length);
+        }
         CompletableFuture<ByteBuffer> result = new CompletableFuture<>();
+        ByteBuffer bb = pooled ? DirectBufferPool.instance().acquire(length) : ByteBuffer.allocateDirect(length).order(ByteOrder.BIG_ENDIAN);
         try {
-            AsynchronousFileChannel asyncChannel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
-            ByteBuffer bb = ByteBuffer.allocateDirect(rawDataLength);
-            bb.order(ByteOrder.BIG_ENDIAN);
-            asyncChannel.read(bb, seekPosition, result, new CompletionHandler<Integer, CompletableFuture<ByteBuffer>>() {
+            // The channel is shared with the other segments in the same file, so
+            // rather than closing it we return it to the pool once the read is done.
+            FileChannelPool.Lease lease = FileChannelPool.instance().acquire(file, identity);
+            lease.channel().read(bb, position, result, new CompletionHandler<Integer, CompletableFuture<ByteBuffer>>() {
                 @Override
                 public void completed(Integer len, CompletableFuture<ByteBuffer> future) {
-                    try {
-                        asyncChannel.close();
-                    } catch (IOException ex) {
-                        future.completeExceptionally(ex);
+                    // Large reads are not guaranteed to complete in one go
+                    if (len >= 0 && bb.hasRemaining()) {
+                        lease.channel().read(bb, position + bb.position(), future, this);
+                        return;
+                    }
+                    lease.close();
+                    if (bb.hasRemaining()) {
+                        if (pooled) {
+                            DirectBufferPool.instance().release(bb);
+                        }
+                        future.completeExceptionally(new IOException("Unexpected end of file reading " + file));
+                        return;
                     }
                     bb.flip();
                     future.complete(bb);
@@ -340,20 +1100,44 @@ public class Segment {
 
                 @Override
                 public void failed(Throwable x, CompletableFuture<ByteBuffer> future) {
-                    try {
-                        asyncChannel.close();
-                    } catch (IOException ex) {
-                        // We already have an IO exception in progress, so ignore this additional one
+                    lease.close();
+                    if (pooled) {
+                        DirectBufferPool.instance().release(bb);
                     }
                     future.completeExceptionally(x);
                 }
             });
         } catch (IOException x) {
+            if (pooled) {
+                DirectBufferPool.instance().release(bb);
+            }
             result.completeExceptionally(x);
         }
         return result;
     }
 
+    /**
+     * Memory map the data for a segment (or several adjacent segments). For
+     * uncompressed data the resulting buffer is used directly as the pixel
+     * data, for compressed data the tiles are decoded straight from the
+     * mapping, so in neither case is the data copied into an intermediate
+     * buffer. The mapping remains valid after the channel is closed.
+     *
+     * @return A future containing the mapped data
+     */
+    private static CompletableFuture<ByteBuffer> mapByteBuffer(File file, long position, int length) {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (position + length > fileChannel.size()) {
+                throw new IOException("File " + file + " too short to read " + length + " bytes at " + position);
+            }
+            ByteBuffer bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            bb.order(ByteOrder.BIG_ENDIAN);
+            return CompletableFuture.completedFuture(bb);
+        } catch (IOException x) {
+            return CompletableFuture.failedFuture(x);
+        }
+    }
+
     public int getNAxis1() {
         return nAxis1;
     }
@@ -376,6 +1160,27 @@ public class Segment {
         }
     }
 
+    FileIdentity getFileIdentity() {
+        return fileIdentity;
+    }
+
+    DataKey getDataKey() {
+        return new DataKey(file, remote, fileIdentity, seekPosition);
+    }
+
+    /**
+     * Describes the pixels of this segment, in a form which remains valid
+     * across restarts, for use as (part of) a persistent cache key. The data
+     * section is included since it can be overridden (along with the WCS),
+     * and determines how the pixels are bias corrected and scaled. The WCS
+     * itself is not, since it only affects where the pixels are drawn.
+     *
+     * @return The description
+     */
+    String getCacheDescriptor() {
+        return getDataKey() + "/" + xSubsampling + "x" + ySubsampling + "/" + datasec.x + "," + datasec.y + "," + datasec.width + "," + datasec.height;
+    }
+
     public Rectangle getDataSec() {
         return datasec;
     }
@@ -402,7 +1207,7 @@ public class Segment {
 
     @Override
     public String toString() {
-        return "Segment{" + "file=" + file + ", name=" + segmentName + ", raftBay=" + raftBay + ", ccdSlot=" + ccdSlot + '}';
+        return "Segment{" + "file=" + (remote == null ? file : remote) + ", name=" + segmentName + ", raftBay=" + raftBay + ", ccdSlot=" + ccdSlot + (source == null ? "" : ", subsampling=" + xSubsampling + "x" + ySubsampling) + '}';
     }
 
     @Override
@@ -411,6 +1216,10 @@ public class Segment {
         hash = 71 * hash + Objects.hashCode(this.file);
         hash = 71 * hash + (int) (this.seekPosition ^ (this.seekPosition >>> 32));
         hash = 71 * hash + Objects.hashCode(this.wcsLetter);
+        hash = 71 * hash + Objects.hashCode(this.fileIdentity);
+        hash = 71 * hash + Objects.hashCode(this.remote);
+        hash = 71 * hash + this.xSubsampling;
+        hash = 71 * hash + this.ySubsampling;
         return hash;
     }
 
@@ -432,6 +1241,15 @@ public class Segment {
         if (!Objects.equals(this.wcsLetter, other.wcsLetter)) {
             return false;
         }
+        if (this.xSubsampling != other.xSubsampling || this.ySubsampling != other.ySubsampling) {
+            return false;
+        }
+        if (!Objects.equals(this.fileIdentity, other.fileIdentity)) {
+            return false;
+        }
+        if (!Objects.equals(this.remote, other.remote)) {
+            return false;
+        }
         return Objects.equals(this.file, other.file);
     }
 
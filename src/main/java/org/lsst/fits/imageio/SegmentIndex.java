@@ -0,0 +1,227 @@
+package org.lsst.fits.imageio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent index of the segments in a FITS file, so that after a restart
+ * segments can be recreated without parsing all of the FITS headers again.
+ * The index for each file holds one list of segments per WCS letter that has
+ * been requested, and is revalidated against the size and modification time
+ * of the FITS file before use. Index files are written next to the FITS file
+ * (as a hidden file) unless the
+ * <code>org.lsst.fits.imageio.segmentIndexDir</code> property is set, in which
+ * case they are written to that directory. Indexes for remote objects are
+ * always written to that directory, or to a directory in the system temporary
+ * directory if it is not set.
+ * <p>
+ * Adding an entry is a read-modify-write of the whole index file, so writes
+ * to the same index are serialized (within this JVM), otherwise concurrent
+ * writes for different WCS letters would lose one of the entries.
+ *
+ * @author tonyj
+ */
+class SegmentIndex {
+
+    private static final Logger LOG = Logger.getLogger(SegmentIndex.class.getName());
+    private static final int MAGIC = 0x53494458; // SIDX
+    private static final int VERSION = 3;
+    private static final boolean ENABLED = Boolean.getBoolean("org.lsst.fits.imageio.useSegmentIndex");
+    private static final String INDEX_DIR = System.getProperty("org.lsst.fits.imageio.segmentIndexDir");
+    // Striped, so that the number of locks is bounded however many files are indexed
+    private static final Object[] WRITE_LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < WRITE_LOCKS.length; i++) {
+            WRITE_LOCKS[i] = new Object();
+        }
+    }
+
+    private SegmentIndex() {
+    }
+
+    static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    /**
+     * Read the segments for a file from its index.
+     *
+     * @param file The FITS file
+     * @param fileIdentity The current identity of the FITS file
+     * @param wcsLetter The WCS letter requested
+     * @return The list of segments, or <code>null</code> if there is no valid
+     * index entry for this file and WCS letter.
+     */
+    static List<Segment> read(File file, FileIdentity fileIdentity, char wcsLetter) {
+        return read(indexFileFor(file), file.getAbsolutePath(), fileIdentity, wcsLetter, (in) -> new Segment(file, null, fileIdentity, in));
+    }
+
+    /**
+     * Read the segments for a remote object from its index.
+     *
+     * @param indexDir The directory containing indexes for remote objects
+     * @param remote The source of the object's data
+     * @param name The name (URI) of the object
+     * @param fileIdentity The current identity of the object
+     * @param wcsLetter The WCS letter requested
+     * @return The list of segments, or <code>null</code> if there is no valid
+     * index entry for this object and WCS letter.
+     */
+    static List<Segment> read(File indexDir, ByteRangeSource remote, String name, FileIdentity fileIdentity, char wcsLetter) {
+        return read(remoteIndexFileFor(indexDir, name), name, fileIdentity, wcsLetter, (in) -> new Segment(null, remote, fileIdentity, in));
+    }
+
+    private static List<Segment> read(File indexFile, String name, FileIdentity fileIdentity, char wcsLetter, SegmentReader reader) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            Map<Character, List<Segment>> entries = readEntries(name, fileIdentity, indexFile, reader);
+            return entries == null ? null : entries.get(wcsLetter);
+        } catch (IOException x) {
+            LOG.log(Level.FINE, "Ignoring unreadable segment index " + indexFile, x);
+            return null;
+        }
+    }
+
+    /**
+     * Add the segments for a file and WCS letter to the file's index. Failure
+     * to write the index (for example because the directory is read-only) is
+     * logged but otherwise ignored.
+     *
+     * @param file The FITS file
+     * @param fileIdentity The identity of the FITS file the segments were read
+     * from
+     * @param wcsLetter The WCS letter requested
+     * @param segments The segments read from the file
+     */
+    static void write(File file, FileIdentity fileIdentity, char wcsLetter, List<Segment> segments) {
+        write(indexFileFor(file), file.getAbsolutePath(), fileIdentity, wcsLetter, segments, (in) -> new Segment(file, null, fileIdentity, in));
+    }
+
+    /**
+     * Add the segments for a remote object and WCS letter to the object's
+     * index.
+     *
+     * @param indexDir The directory containing indexes for remote objects
+     * @param remote The source of the object's data
+     * @param name The name (URI) of the object
+     * @param fileIdentity The identity of the object the segments were read
+     * from
+     * @param wcsLetter The WCS letter requested
+     * @param segments The segments read from the object
+     */
+    static void write(File indexDir, ByteRangeSource remote, String name, FileIdentity fileIdentity, char wcsLetter, List<Segment> segments) {
+        File indexFile = remoteIndexFileFor(indexDir, name);
+        indexFile.getParentFile().mkdirs();
+        write(indexFile, name, fileIdentity, wcsLetter, segments, (in) -> new Segment(null, remote, fileIdentity, in));
+    }
+
+    private static void write(File indexFile, String name, FileIdentity fileIdentity, char wcsLetter, List<Segment> segments, SegmentReader reader) {
+        synchronized (WRITE_LOCKS[Math.floorMod(indexFile.hashCode(), WRITE_LOCKS.length)]) {
+            writeLocked(indexFile, name, fileIdentity, wcsLetter, segments, reader);
+        }
+    }
+
+    private static void writeLocked(File indexFile, String name, FileIdentity fileIdentity, char wcsLetter, List<Segment> segments, SegmentReader reader) {
+        try {
+            Map<Character, List<Segment>> entries = indexFile.exists() ? readEntries(name, fileIdentity, indexFile, reader) : null;
+            if (entries == null) {
+                entries = new LinkedHashMap<>();
+            }
+            entries.put(wcsLetter, segments);
+            // Write to a temporary file and rename, so readers never see a partial index
+            File tmpFile = File.createTempFile(indexFile.getName(), ".tmp", indexFile.getParentFile());
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(name);
+                    out.writeLong(fileIdentity.size());
+                    out.writeLong(fileIdentity.lastModified());
+                    out.writeInt(entries.size());
+                    for (Map.Entry<Character, List<Segment>> entry : entries.entrySet()) {
+                        out.writeChar(entry.getKey());
+                        out.writeInt(entry.getValue().size());
+                        for (Segment segment : entry.getValue()) {
+                            segment.write(out);
+                        }
+                    }
+                }
+                Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmpFile.toPath());
+            }
+        } catch (IOException x) {
+            LOG.log(Level.FINE, "Unable to write segment index " + indexFile, x);
+        }
+    }
+
+    private static Map<Character, List<Segment>> readEntries(String name, FileIdentity fileIdentity, File indexFile, SegmentReader reader) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (!name.equals(in.readUTF()) || fileIdentity.size() != in.readLong() || fileIdentity.lastModified() != in.readLong()) {
+                return null;
+            }
+            Map<Character, List<Segment>> entries = new LinkedHashMap<>();
+            int nEntries = in.readInt();
+            for (int i = 0; i < nEntries; i++) {
+                char wcsLetter = in.readChar();
+                int nSegments = in.readInt();
+                List<Segment> segments = new ArrayList<>(nSegments);
+                for (int j = 0; j < nSegments; j++) {
+                    segments.add(reader.read(in));
+                }
+                entries.put(wcsLetter, segments);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * The default directory for indexes of remote objects, which cannot be
+     * stored alongside the object.
+     *
+     * @return The directory
+     */
+    static File remoteIndexDir() {
+        return INDEX_DIR != null ? new File(INDEX_DIR) : new File(System.getProperty("java.io.tmpdir"), "fits-segment-index");
+    }
+
+    private static File remoteIndexFileFor(File indexDir, String name) {
+        String baseName = name.substring(name.lastIndexOf('/') + 1);
+        return new File(indexDir, baseName + "-" + Integer.toHexString(name.hashCode()) + ".segidx");
+    }
+
+    private static File indexFileFor(File file) {
+        if (INDEX_DIR != null) {
+            File absolute = file.getAbsoluteFile();
+            return new File(INDEX_DIR, absolute.getName() + "-" + Integer.toHexString(absolute.getPath().hashCode()) + ".segidx");
+        } else {
+            return new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".segidx");
+        }
+    }
+
+    private interface SegmentReader {
+
+        Segment read(DataInput in) throws IOException;
+    }
+}
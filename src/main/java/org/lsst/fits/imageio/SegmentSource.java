@@ -0,0 +1,38 @@
+package org.lsst.fits.imageio;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import nom.tam.fits.FitsException;
+
+/**
+ * A source of segments for lines which are not simple FITS file names. Segment
+ * sources are discovered using {@link java.util.ServiceLoader}, and the first
+ * source which accepts a line is used to read it. Lines which no source
+ * accepts are treated as FITS file names.
+ *
+ * @author tonyj
+ */
+public interface SegmentSource {
+
+    /**
+     * Test if this source can read the given line.
+     *
+     * @param line The line, as read from the image list
+     * @return <code>true</code> if this source should be used for the line
+     */
+    boolean accepts(String line);
+
+    /**
+     * Read the segments for a line.
+     *
+     * @param line The line, as read from the image list
+     * @param wcsLetter The WCS letter to use to position the segments
+     * @param wcsOverride WCS values to use instead of the default ones, or
+     * <code>null</code>
+     * @return The list of segments
+     * @throws IOException If the segments cannot be read
+     * @throws FitsException If the data format is not supported
+     */
+    List<Segment> readSegments(String line, char wcsLetter, Map<String, Map<String, Object>> wcsOverride) throws IOException, FitsException;
+}
@@ -0,0 +1,542 @@
+package org.lsst.fits.imageio;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.CompletionException;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.compression.algorithm.gzip2.GZip2Compressor;
+import nom.tam.fits.compression.algorithm.rice.RiceCompressOption;
+import nom.tam.fits.compression.algorithm.rice.RiceCompressor.IntRiceCompressor;
+
+/**
+ * Describes how the data of a tile compressed image (<code>ZIMAGE = T</code>)
+ * is stored. The compressed tiles are held in the heap of a binary table, with
+ * one table row per tile, and optional per tile <code>ZSCALE</code>,
+ * <code>ZZERO</code> and <code>ZBLANK</code> columns used for quantized
+ * floating point data. Tiles must span complete image rows, but may contain
+ * several rows.
+ * <p>
+ * RICE_1, GZIP_2, HCOMPRESS_1, PLIO_1 and NOCOMPRESS tiles are supported.
+ * Floating point data can either be stored losslessly (GZIP_2 or NOCOMPRESS),
+ * or quantized to integers (any algorithm) using <code>ZQUANTIZ</code> with
+ * optional subtractive dithering, as written by fpack and cfitsio.
+ *
+ * @author tonyj
+ */
+class TileCompression {
+
+    // If true GZIP_2 integer data is decoded using nom.tam rather than GZip2IntDecoder
+    private static final boolean NOM_TAM_GZIP2 = Boolean.getBoolean("org.lsst.fits.imageio.nomTamGZip2");
+    // If true RICE_1 data is decoded using nom.tam rather than RiceDecoder
+    private static final boolean NOM_TAM_RICE = Boolean.getBoolean("org.lsst.fits.imageio.nomTamRice");
+
+    private static final int N_RANDOM = 10000;
+    // Used by SUBTRACTIVE_DITHER_2 for pixels which are exactly zero
+    private static final int ZERO_VALUE = -2147483646;
+    private static final float[] RANDOM_VALUES = createRandomValues();
+
+    enum Quantization {
+        NONE, NO_DITHER, SUBTRACTIVE_DITHER_1, SUBTRACTIVE_DITHER_2
+    }
+
+    /**
+     * A column of the table holding the compressed tiles.
+     *
+     * @param offset The offset of the column within the table row
+     * @param type The FITS data type of the column
+     * @param elementType For variable length array columns, the type of the
+     * array elements
+     */
+    private record Column(int offset, char type, char elementType) {
+
+        static Column of(int offset, String tform) throws FitsException {
+            int p = 0;
+            while (p < tform.length() && Character.isDigit(tform.charAt(p))) {
+                p++;
+            }
+            if (p == tform.length()) {
+                throw new FitsException("Invalid TFORM: " + tform);
+            }
+            char type = tform.charAt(p);
+            char elementType = (type == 'P' || type == 'Q') && p + 1 < tform.length() ? tform.charAt(p + 1) : type;
+            return new Column(offset, type, elementType);
+        }
+
+        static int width(String tform) throws FitsException {
+            int p = 0;
+            while (p < tform.length() && Character.isDigit(tform.charAt(p))) {
+                p++;
+            }
+            int repeat = p == 0 ? 1 : Integer.parseInt(tform.substring(0, p));
+            char type = tform.charAt(p);
+            return type == 'X' ? (repeat + 7) / 8 : repeat * size(type);
+        }
+
+        static int size(char type) throws FitsException {
+            switch (type) {
+                case 'L':
+                case 'B':
+                case 'A':
+                    return 1;
+                case 'I':
+                    return 2;
+                case 'J':
+                case 'E':
+                    return 4;
+                case 'K':
+                case 'D':
+                case 'C':
+                case 'P':
+                    return 8;
+                case 'M':
+                case 'Q':
+                    return 16;
+                default:
+                    throw new FitsException("Unsupported TFORM type: " + type);
+            }
+        }
+
+        double readNumber(ByteBuffer table, int row) {
+            int p = row + offset;
+            switch (type) {
+                case 'D':
+                    return table.getDouble(p);
+                case 'E':
+                    return table.getFloat(p);
+                case 'K':
+                    return table.getLong(p);
+                case 'I':
+                    return table.getShort(p);
+                default:
+                    return table.getInt(p);
+            }
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(offset);
+            out.writeChar(type);
+            out.writeChar(elementType);
+        }
+
+        static Column read(DataInput in) throws IOException {
+            int offset = in.readInt();
+            return offset < 0 ? null : new Column(offset, in.readChar(), in.readChar());
+        }
+
+        static void write(DataOutput out, Column column) throws IOException {
+            if (column == null) {
+                out.writeInt(-1);
+            } else {
+                column.write(out);
+            }
+        }
+    }
+
+    private final String type;
+    private final int zbitpix;
+    private final int rowsPerTile;
+    private final int rowLength;
+    private final int nTiles;
+    private final long heapOffset;
+    private final Column compressedData;
+    private final Column uncompressedData;
+    private final Column zscaleColumn;
+    private final Column zzeroColumn;
+    private final Column zblankColumn;
+    private final Quantization quantization;
+    private final double zscale;
+    private final double zzero;
+    private final boolean hasBlank;
+    private final int zblank;
+    private final int zdither0;
+    // Only used for RICE_1
+    private final int blockSize;
+    private final int bytePix;
+
+    /**
+     * Read the compression parameters from the header of a compressed image.
+     *
+     * @param header The header
+     * @return The compression parameters
+     * @throws FitsException If the compression is not supported
+     */
+    static TileCompression of(FitsHeaderValues header) throws FitsException {
+        return new TileCompression(header);
+    }
+
+    private TileCompression(FitsHeaderValues header) throws FitsException {
+        type = header.getStringValue("ZCMPTYPE");
+        if (!"RICE_1".equals(type) && !"GZIP_2".equals(type) && !"HCOMPRESS_1".equals(type) && !"PLIO_1".equals(type) && !"NOCOMPRESS".equals(type)) {
+            throw new FitsException("Unsupported compression type: " + type);
+        }
+        zbitpix = header.getIntValue("ZBITPIX");
+        if (zbitpix != 8 && zbitpix != 16 && zbitpix != 32 && zbitpix != -32) {
+            throw new FitsException("Unsupported ZBITPIX for compressed image: " + zbitpix);
+        }
+        int nAxis1 = header.getIntValue("ZNAXIS1");
+        int nAxis2 = header.getIntValue("ZNAXIS2");
+        int zTile1 = header.containsKey("ZTILE1") ? header.getIntValue("ZTILE1") : nAxis1;
+        rowsPerTile = header.containsKey("ZTILE2") ? header.getIntValue("ZTILE2") : 1;
+        if (zTile1 != nAxis1) {
+            throw new FitsException("Only compression tiles spanning complete rows are supported");
+        }
+        // These give the size of the binary table holding the tile descriptors
+        rowLength = header.getIntValue("NAXIS1");
+        nTiles = header.getIntValue("NAXIS2");
+        if (nTiles != (nAxis2 + rowsPerTile - 1) / rowsPerTile) {
+            throw new FitsException("Unexpected number of compressed tiles: " + nTiles);
+        }
+        heapOffset = header.containsKey("THEAP") ? header.getLongValue("THEAP") : (long) rowLength * nTiles;
+
+        Column compressed = null;
+        Column uncompressed = null;
+        Column scale = null;
+        Column zero = null;
+        Column blank = null;
+        int nFields = header.getIntValue("TFIELDS");
+        int offset = 0;
+        for (int i = 1; i <= nFields; i++) {
+            String ttype = header.getStringValue("TTYPE" + i);
+            String tform = header.getStringValue("TFORM" + i).trim();
+            Column column = Column.of(offset, tform);
+            if (ttype != null) {
+                switch (ttype.trim()) {
+                    case "COMPRESSED_DATA":
+                        compressed = column;
+                        break;
+                    case "UNCOMPRESSED_DATA":
+                        uncompressed = column;
+                        break;
+                    case "ZSCALE":
+                        scale = column;
+                        break;
+                    case "ZZERO":
+                        zero = column;
+                        break;
+                    case "ZBLANK":
+                        blank = column;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            offset += Column.width(tform);
+        }
+        if (compressed == null || (compressed.type() != 'P' && compressed.type() != 'Q')) {
+            throw new FitsException("Missing COMPRESSED_DATA column");
+        }
+        compressedData = compressed;
+        uncompressedData = uncompressed;
+        zscaleColumn = scale;
+        zzeroColumn = zero;
+        zblankColumn = blank;
+
+        int riceBlockSize = RiceDecoder.DEFAULT_BLOCK_SIZE;
+        int riceBytePix = RiceDecoder.DEFAULT_BYTE_PIX;
+        for (int i = 1; header.containsKey("ZNAME" + i); i++) {
+            String name = header.getStringValue("ZNAME" + i);
+            if ("BLOCKSIZE".equals(name)) {
+                riceBlockSize = header.getIntValue("ZVAL" + i);
+            } else if ("BYTEPIX".equals(name)) {
+                riceBytePix = header.getIntValue("ZVAL" + i);
+            }
+        }
+        if ("RICE_1".equals(type) && riceBytePix != 1 && riceBytePix != 2 && riceBytePix != 4) {
+            throw new FitsException("Unsupported RICE_1 BYTEPIX: " + riceBytePix);
+        }
+        blockSize = riceBlockSize;
+        bytePix = riceBytePix;
+
+        zscale = header.containsKey("ZSCALE") ? header.getDoubleValue("ZSCALE") : 1.0;
+        zzero = header.containsKey("ZZERO") ? header.getDoubleValue("ZZERO") : 0.0;
+        hasBlank = header.containsKey("ZBLANK");
+        zblank = hasBlank ? header.getIntValue("ZBLANK") : 0;
+        zdither0 = header.containsKey("ZDITHER0") ? header.getIntValue("ZDITHER0") : 1;
+        String zquantiz = header.containsKey("ZQUANTIZ") ? header.getStringValue("ZQUANTIZ").trim() : null;
+        boolean quantized = zbitpix < 0 && (zscaleColumn != null || header.containsKey("ZSCALE")) && !"NONE".equals(zquantiz);
+        if (!quantized) {
+            quantization = Quantization.NONE;
+            if (zbitpix < 0 && !"GZIP_2".equals(type) && !"NOCOMPRESS".equals(type)) {
+                throw new FitsException("Unquantized floating point data not supported for " + type);
+            }
+        } else if (zquantiz == null || "NO_DITHER".equals(zquantiz)) {
+            quantization = Quantization.NO_DITHER;
+        } else if ("SUBTRACTIVE_DITHER_1".equals(zquantiz)) {
+            quantization = Quantization.SUBTRACTIVE_DITHER_1;
+        } else if ("SUBTRACTIVE_DITHER_2".equals(zquantiz)) {
+            quantization = Quantization.SUBTRACTIVE_DITHER_2;
+        } else {
+            throw new FitsException("Unsupported ZQUANTIZ: " + zquantiz);
+        }
+        if ("GZIP_2".equals(type) && zbitpix > 0 && zbitpix != 32) {
+            throw new FitsException("Unsupported ZBITPIX for GZIP_2: " + zbitpix);
+        }
+    }
+
+    /**
+     * Recreate compression parameters previously saved using
+     * {@link #write(DataOutput)}.
+     *
+     * @param in The input to read from
+     * @throws IOException If the parameters cannot be read
+     */
+    TileCompression(DataInput in) throws IOException {
+        type = in.readUTF();
+        zbitpix = in.readInt();
+        rowsPerTile = in.readInt();
+        rowLength = in.readInt();
+        nTiles = in.readInt();
+        heapOffset = in.readLong();
+        compressedData = Column.read(in);
+        uncompressedData = Column.read(in);
+        zscaleColumn = Column.read(in);
+        zzeroColumn = Column.read(in);
+        zblankColumn = Column.read(in);
+        quantization = Quantization.values()[in.readInt()];
+        zscale = in.readDouble();
+        zzero = in.readDouble();
+        hasBlank = in.readBoolean();
+        zblank = in.readInt();
+        zdither0 = in.readInt();
+        blockSize = in.readInt();
+        bytePix = in.readInt();
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeUTF(type);
+        out.writeInt(zbitpix);
+        out.writeInt(rowsPerTile);
+        out.writeInt(rowLength);
+        out.writeInt(nTiles);
+        out.writeLong(heapOffset);
+        Column.write(out, compressedData);
+        Column.write(out, uncompressedData);
+        Column.write(out, zscaleColumn);
+        Column.write(out, zzeroColumn);
+        Column.write(out, zblankColumn);
+        out.writeInt(quantization.ordinal());
+        out.writeDouble(zscale);
+        out.writeDouble(zzero);
+        out.writeBoolean(hasBlank);
+        out.writeInt(zblank);
+        out.writeInt(zdither0);
+        out.writeInt(blockSize);
+        out.writeInt(bytePix);
+    }
+
+    String getType() {
+        return type;
+    }
+
+    int getTileCount() {
+        return nTiles;
+    }
+
+    int getRowsPerTile() {
+        return rowsPerTile;
+    }
+
+    /**
+     * Create a decoder. Decoders are not thread safe, so each thread should
+     * use its own.
+     *
+     * @return The decoder
+     */
+    Decoder createDecoder() {
+        return new Decoder();
+    }
+
+    /**
+     * Decodes individual tiles.
+     */
+    class Decoder {
+
+        private final TileDecompressor<IntBuffer> ints = createIntDecompressor();
+        private final TileDecompressor<FloatBuffer> floats = zbitpix < 0 && quantization == Quantization.NONE && "GZIP_2".equals(type) ? TileDecompressor.of(new GZip2Compressor.FloatGZip2Compressor()) : null;
+        private IntBuffer quantized = IntBuffer.allocate(0);
+        private ByteBuffer data;
+        private ByteBuffer tile;
+
+        /**
+         * Decode a single tile.
+         *
+         * @param compressed The compressed data for the whole image, starting
+         * with the binary table
+         * @param tileIndex The index of the tile to decode
+         * @param out An int buffer (for integer data) or float buffer (for
+         * floating point data) to receive the tile, filled from its position
+         * to its limit
+         */
+        void decode(ByteBuffer compressed, int tileIndex, Buffer out) {
+            if (compressed != data) {
+                data = compressed;
+                tile = compressed.duplicate().order(ByteOrder.BIG_ENDIAN);
+            }
+            int row = tileIndex * rowLength;
+            if (!locate(compressedData, row)) {
+                // Tiles which could not be compressed are stored as they are
+                if (uncompressedData == null || !locate(uncompressedData, row)) {
+                    throw new CompletionException(new FitsException("No data for tile " + tileIndex));
+                }
+                readRaw(tile, uncompressedData.elementType(), out);
+            } else if ("NOCOMPRESS".equals(type)) {
+                readRaw(tile, zbitpix == 8 ? 'B' : zbitpix == 16 ? 'I' : zbitpix == 32 ? 'J' : 'E', out);
+            } else if (out instanceof IntBuffer intBuffer) {
+                ints.decompress(tile, intBuffer);
+            } else if (quantization == Quantization.NONE) {
+                floats.decompress(tile, (FloatBuffer) out);
+            } else {
+                int n = out.remaining();
+                if (quantized.capacity() < n) {
+                    quantized = IntBuffer.allocate(n);
+                }
+                ints.decompress(tile, quantized.clear().limit(n));
+                dequantize(tileIndex, row, (FloatBuffer) out);
+            }
+        }
+
+        /**
+         * Set the position and limit of the tile buffer to the array for the
+         * given descriptor column and table row.
+         *
+         * @return <code>false</code> if the array is empty
+         */
+        private boolean locate(Column column, int row) {
+            long count;
+            long offset;
+            int p = row + column.offset();
+            if (column.type() == 'Q') {
+                count = data.getLong(p);
+                offset = data.getLong(p + 8);
+            } else {
+                count = data.getInt(p) & 0xffffffffL;
+                offset = data.getInt(p + 4) & 0xffffffffL;
+            }
+            if (count == 0) {
+                return false;
+            }
+            try {
+                int start = (int) (heapOffset + offset);
+                tile.clear();
+                tile.position(start).limit(start + (int) (count * Column.size(column.elementType())));
+                return true;
+            } catch (FitsException x) {
+                throw new CompletionException(x);
+            }
+        }
+
+        private void dequantize(int tileIndex, int row, FloatBuffer out) {
+            double scale = zscaleColumn != null ? zscaleColumn.readNumber(data, row) : zscale;
+            double zero = zzeroColumn != null ? zzeroColumn.readNumber(data, row) : zzero;
+            boolean checkBlank = zblankColumn != null || hasBlank;
+            int blank = zblankColumn != null ? (int) zblankColumn.readNumber(data, row) : zblank;
+            int n = out.remaining();
+            int position = out.position();
+            if (quantization == Quantization.NO_DITHER) {
+                for (int i = 0; i < n; i++) {
+                    int value = quantized.get(i);
+                    out.put(position + i, checkBlank && value == blank ? Float.NaN : (float) (value * scale + zero));
+                }
+            } else {
+                // The dither sequence for each tile starts at a position determined by the tile number
+                int seed = (int) ((tileIndex + zdither0 - 1L) % N_RANDOM);
+                int nextRandom = (int) (RANDOM_VALUES[seed] * 500);
+                boolean dither2 = quantization == Quantization.SUBTRACTIVE_DITHER_2;
+                for (int i = 0; i < n; i++) {
+                    int value = quantized.get(i);
+                    float result;
+                    if (checkBlank && value == blank) {
+                        result = Float.NaN;
+                    } else if (dither2 && value == ZERO_VALUE) {
+                        result = 0.0f;
+                    } else {
+                        result = (float) ((value - RANDOM_VALUES[nextRandom] + 0.5) * scale + zero);
+                    }
+                    out.put(position + i, result);
+                    nextRandom++;
+                    if (nextRandom == N_RANDOM) {
+                        seed++;
+                        if (seed == N_RANDOM) {
+                            seed = 0;
+                        }
+                        nextRandom = (int) (RANDOM_VALUES[seed] * 500);
+                    }
+                }
+            }
+        }
+    }
+
+    private TileDecompressor<IntBuffer> createIntDecompressor() {
+        switch (type) {
+            case "GZIP_2":
+                return NOM_TAM_GZIP2 ? TileDecompressor.of(new GZip2Compressor.IntGZip2Compressor()) : GZip2IntDecoder.instance();
+            case "RICE_1":
+                if (NOM_TAM_RICE) {
+                    final RiceCompressOption riceCompressOption = new RiceCompressOption();
+                    riceCompressOption.setBlockSize(blockSize);
+                    riceCompressOption.setBytePix(bytePix);
+                    return TileDecompressor.of(new IntRiceCompressor(riceCompressOption));
+                }
+                return RiceDecoder.of(blockSize, bytePix);
+            case "HCOMPRESS_1":
+                return new HCompressDecoder();
+            case "PLIO_1":
+                return new PlioDecoder();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Copy uncompressed big-endian values into the output buffer.
+     */
+    private static void readRaw(ByteBuffer bb, char type, Buffer out) {
+        int n = out.remaining();
+        int position = out.position();
+        int p = bb.position();
+        if (out instanceof IntBuffer intBuffer) {
+            for (int i = 0; i < n; i++) {
+                int value;
+                switch (type) {
+                    case 'B':
+                        value = bb.get(p + i) & 0xff;
+                        break;
+                    case 'I':
+                        value = bb.getShort(p + 2 * i);
+                        break;
+                    default:
+                        value = bb.getInt(p + 4 * i);
+                }
+                intBuffer.put(position + i, value);
+            }
+        } else {
+            FloatBuffer floatBuffer = (FloatBuffer) out;
+            for (int i = 0; i < n; i++) {
+                floatBuffer.put(position + i, type == 'D' ? (float) bb.getDouble(p + 8 * i) : bb.getFloat(p + 4 * i));
+            }
+        }
+    }
+
+    /**
+     * The pseudo random sequence used for subtractive dithering, which must
+     * match the one used by cfitsio.
+     */
+    private static float[] createRandomValues() {
+        float[] values = new float[N_RANDOM];
+        double a = 16807.0;
+        double m = 2147483647.0;
+        double seed = 1;
+        for (int i = 0; i < N_RANDOM; i++) {
+            double temp = a * seed;
+            seed = temp - m * ((int) (temp / m));
+            values[i] = (float) (seed / m);
+        }
+        return values;
+    }
+}
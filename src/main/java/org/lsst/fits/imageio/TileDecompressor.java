@@ -0,0 +1,39 @@
+package org.lsst.fits.imageio;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import nom.tam.fits.compression.algorithm.api.ICompressor;
+
+/**
+ * Decompresses a single compressed tile. The decoders in this package only
+ * decode, so implement this rather than nom.tam's <code>ICompressor</code>,
+ * which also requires compression. nom.tam's compressors (still used when
+ * requested by the <code>org.lsst.fits.imageio.nomTam*</code> properties)
+ * are adapted using {@link #of(ICompressor)}.
+ *
+ * @param <T> The type of buffer decoded into
+ * @author tonyj
+ */
+@FunctionalInterface
+public interface TileDecompressor<T extends Buffer> {
+
+    /**
+     * Decode a single tile.
+     *
+     * @param compressed The compressed tile, from its position to its limit
+     * @param out The buffer to receive the decoded values, which is filled
+     * from its position to its limit
+     */
+    void decompress(ByteBuffer compressed, T out);
+
+    /**
+     * Adapt one of nom.tam's compressors to decode tiles.
+     *
+     * @param <T> The type of buffer decoded into
+     * @param compressor The compressor
+     * @return The decompressor
+     */
+    static <T extends Buffer> TileDecompressor<T> of(ICompressor<T> compressor) {
+        return compressor::decompress;
+    }
+}
@@ -0,0 +1,93 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Pixel kernels using the (incubating) Vector API. Only loaded by
+ * {@link PixelKernels} when the <code>jdk.incubator.vector</code> module is
+ * present, so nothing else may refer to this class directly.
+ *
+ * @author tonyj
+ */
+class VectorPixelKernels extends PixelKernels.Scalar {
+
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    // Bytes for unshuffling, converted to INTS a part at a time. There is no byte species with as few lanes as
+    // INTS on 128 bit hardware, so the narrowest (64 bit) species is used unless INTS has more lanes than that
+    private static final VectorSpecies<Byte> NARROW_BYTES = VectorSpecies.of(byte.class, VectorShape.forBitSize(Math.max(64, INTS.length() * 8)));
+    private static final int PARTS = NARROW_BYTES.length() / INTS.length();
+    // Bytes with the same size as INTS, for byte swapping
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class, INTS.vectorShape());
+    private static final VectorShuffle<Byte> SWAP = VectorShuffle.fromOp(BYTES, i -> (i & ~3) | (3 - (i & 3)));
+    private static final int CHUNK_SIZE = 16384;
+    private static final ThreadLocal<byte[]> CHUNK = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+    @Override
+    void unshuffle(byte[] in, int n, int[] out, int offset) {
+        int lanes = INTS.length();
+        int step = NARROW_BYTES.length();
+        int upper = n - n % step;
+        int i = 0;
+        for (; i < upper; i += step) {
+            ByteVector v0 = ByteVector.fromArray(NARROW_BYTES, in, i);
+            ByteVector v1 = ByteVector.fromArray(NARROW_BYTES, in, i + n);
+            ByteVector v2 = ByteVector.fromArray(NARROW_BYTES, in, i + 2 * n);
+            ByteVector v3 = ByteVector.fromArray(NARROW_BYTES, in, i + 3 * n);
+            for (int part = 0; part < PARTS; part++) {
+                IntVector b0 = (IntVector) v0.convertShape(VectorOperators.B2I, INTS, part);
+                IntVector b1 = (IntVector) v1.convertShape(VectorOperators.B2I, INTS, part);
+                IntVector b2 = (IntVector) v2.convertShape(VectorOperators.B2I, INTS, part);
+                IntVector b3 = (IntVector) v3.convertShape(VectorOperators.B2I, INTS, part);
+                b0.lanewise(VectorOperators.LSHL, 24)
+                        .or(b1.and(0xff).lanewise(VectorOperators.LSHL, 16))
+                        .or(b2.and(0xff).lanewise(VectorOperators.LSHL, 8))
+                        .or(b3.and(0xff))
+                        .intoArray(out, offset + i + part * lanes);
+            }
+        }
+        for (; i < n; i++) {
+            out[offset + i] = ((0xff & in[i]) << 24) | ((0xff & in[i + n]) << 16) | ((0xff & in[i + 2 * n]) << 8) | (0xff & in[i + 3 * n]);
+        }
+    }
+
+    @Override
+    void bigEndianToInts(ByteBuffer in, int[] out, int offset, int n) {
+        if (in.hasArray()) {
+            swap(in.array(), in.arrayOffset() + in.position(), out, offset, n);
+        } else {
+            // Copy direct buffers through a small per thread array
+            byte[] chunk = CHUNK.get();
+            int p = in.position();
+            for (int done = 0; done < n;) {
+                int count = Math.min(n - done, CHUNK_SIZE / 4);
+                in.get(p + done * 4, chunk, 0, count * 4);
+                swap(chunk, 0, out, offset + done, count);
+                done += count;
+            }
+        }
+    }
+
+    private static void swap(byte[] in, int inOffset, int[] out, int offset, int n) {
+        int lanes = INTS.length();
+        int upper = n - n % lanes;
+        int i = 0;
+        for (; i < upper; i += lanes) {
+            ByteVector.fromArray(BYTES, in, inOffset + i * 4).rearrange(SWAP).reinterpretAsInts().intoArray(out, offset + i);
+        }
+        for (; i < n; i++) {
+            int p = inOffset + i * 4;
+            out[offset + i] = ((0xff & in[p]) << 24) | ((0xff & in[p + 1]) << 16) | ((0xff & in[p + 2]) << 8) | (0xff & in[p + 3]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VectorPixelKernels{" + INTS + "}";
+    }
+}
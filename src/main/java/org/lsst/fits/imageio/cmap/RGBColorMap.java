@@ -1,6 +1,7 @@
 package org.lsst.fits.imageio.cmap;
 
 import java.awt.image.ByteLookupTable;
+import java.awt.image.IndexColorModel;
 import java.awt.image.LookupOp;
 
 /**
@@ -10,6 +11,7 @@ import java.awt.image.LookupOp;
 public abstract class RGBColorMap {
 
     private final int size;
+    private volatile IndexColorModel colorModel;
 
     public RGBColorMap(int size) {
         this.size = size;
@@ -33,4 +35,30 @@ public abstract class RGBColorMap {
         return new LookupOp(table, null);
     }
 
+    /**
+     * Get a color model which maps 8 bit indexes to the colors of this color
+     * map. Images of indexes can be drawn with any color map simply by
+     * wrapping their raster with a different color model, without copying
+     * the pixels. The color model is created once and then shared.
+     *
+     * @return The color model
+     */
+    public IndexColorModel getColorModel() {
+        IndexColorModel result = colorModel;
+        if (result == null) {
+            int n = Math.min(size, 256);
+            byte[] r = new byte[n];
+            byte[] g = new byte[n];
+            byte[] b = new byte[n];
+            for (int i = 0; i < n; i++) {
+                int rgb = getRGB(i);
+                r[i] = (byte) (rgb >> 16);
+                g[i] = (byte) (rgb >> 8);
+                b[i] = (byte) rgb;
+            }
+            result = colorModel = new IndexColorModel(8, n, r, g, b);
+        }
+        return result;
+    }
+
 }
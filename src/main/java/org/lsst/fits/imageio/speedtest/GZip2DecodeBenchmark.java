@@ -0,0 +1,80 @@
+package org.lsst.fits.imageio.speedtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+import nom.tam.fits.compression.algorithm.gzip2.GZip2Compressor;
+import org.lsst.fits.imageio.GZip2IntDecoder;
+import org.lsst.fits.imageio.TileDecompressor;
+
+/**
+ * Compares the speed of decoding a GZIP_2 compressed segment using nom.tam
+ * with the speed using {@link GZip2IntDecoder}. The segment is synthetic, with
+ * the same size and similar noise to a real amplifier.
+ *
+ * @author tonyj
+ */
+public class GZip2DecodeBenchmark {
+
+    private static final int WIDTH = 576;
+    private static final int HEIGHT = 2048;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        ByteBuffer[] tiles = createTiles();
+        int[] expected = decode(tiles, TileDecompressor.of(new GZip2Compressor.IntGZip2Compressor()));
+        if (!Arrays.equals(expected, decode(tiles, GZip2IntDecoder.instance()))) {
+            throw new IllegalStateException("Decoders disagree");
+        }
+        for (int round = 0; round < 3; round++) {
+            time("nom.tam", tiles, iterations, () -> TileDecompressor.of(new GZip2Compressor.IntGZip2Compressor()));
+            time("GZip2IntDecoder", tiles, iterations, () -> GZip2IntDecoder.instance());
+        }
+    }
+
+    private static void time(String name, ByteBuffer[] tiles, int iterations, Supplier<TileDecompressor<IntBuffer>> decoders) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // As in Segment a new decoder is created for every segment
+            decode(tiles, decoders.get());
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%s: %.2f ms/segment%n", name, elapsed / 1e6 / iterations);
+    }
+
+    private static int[] decode(ByteBuffer[] tiles, TileDecompressor<IntBuffer> decoder) {
+        IntBuffer result = IntBuffer.allocate(WIDTH * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            decoder.decompress(tiles[row].duplicate(), result.slice(row * WIDTH, WIDTH));
+        }
+        return result.array();
+    }
+
+    private static ByteBuffer[] createTiles() throws IOException {
+        Random random = new Random(1234);
+        ByteBuffer[] tiles = new ByteBuffer[HEIGHT];
+        byte[] shuffled = new byte[WIDTH * 4];
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int i = 0; i < WIDTH; i++) {
+                int value = 25000 + (int) (random.nextGaussian() * 10);
+                shuffled[i] = (byte) (value >> 24);
+                shuffled[i + WIDTH] = (byte) (value >> 16);
+                shuffled[i + 2 * WIDTH] = (byte) (value >> 8);
+                shuffled[i + 3 * WIDTH] = (byte) value;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(shuffled);
+            }
+            // Use direct buffers, as for data read from a file
+            byte[] compressed = out.toByteArray();
+            tiles[row] = ByteBuffer.allocateDirect(compressed.length).put(compressed).flip();
+        }
+        return tiles;
+    }
+}
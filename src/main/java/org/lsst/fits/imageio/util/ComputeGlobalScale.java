@@ -27,15 +27,17 @@ public class ComputeGlobalScale {
         List<Segment> segments = reader.readSegments(in, 'Q');
         long[] count = new long[1 << 18];
         for(Segment segment : segments) {
-            RawData rawData = reader.getRawData(segment);
-            IntBuffer intBuffer = (IntBuffer) rawData.getBuffer();        
-            Rectangle datasec = segment.getDataSec();
-            // Note: This is hardwired for Camera (18 bit) data
-            for (int x = datasec.x; x < datasec.width + datasec.x; x++) {
-                for (int y = datasec.y; y < datasec.height + datasec.y; y++) {
-                    count[intBuffer.get(x + y * segment.getNAxis1())]++;
+            reader.applyToRawData(segment, (RawData rawData) -> {
+                IntBuffer intBuffer = (IntBuffer) rawData.getBuffer();
+                Rectangle datasec = segment.getDataSec();
+                // Note: This is hardwired for Camera (18 bit) data
+                for (int x = datasec.x; x < datasec.width + datasec.x; x++) {
+                    for (int y = datasec.y; y < datasec.height + datasec.y; y++) {
+                        count[intBuffer.get(x + y * segment.getNAxis1())]++;
+                    }
                 }
-            }
+                return null;
+            });
         }
         try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[0]+".counts")))) {
             for (long i : count) {
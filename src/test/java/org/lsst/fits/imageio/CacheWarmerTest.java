@@ -0,0 +1,73 @@
+package org.lsst.fits.imageio;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.lsst.fits.imageio.bias.BiasCorrection;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the cache warmer notices new files in watched directories and
+ * asks the reader to load them once they have stopped changing.
+ *
+ * @author tonyj
+ */
+public class CacheWarmerTest {
+
+    private static final long SETTLE_MILLIS = 200;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BlockingQueue<String> warmed = new LinkedBlockingQueue<>();
+    private final CachingReader reader = new CachingReader() {
+        @Override
+        void warm(List<String> lines, char wcsLetter, BiasCorrection bc) {
+            warmed.add(wcsLetter + " " + lines);
+        }
+    };
+
+    @Before
+    public void setSettleTime() {
+        System.setProperty("org.lsst.fits.imageio.warmSettleMillis", String.valueOf(SETTLE_MILLIS));
+    }
+
+    @After
+    public void clearSettleTime() {
+        System.clearProperty("org.lsst.fits.imageio.warmSettleMillis");
+    }
+
+    @Test
+    public void testNewDirectory() throws IOException, InterruptedException {
+        Path root = folder.getRoot().toPath();
+        try (CacheWarmer warmer = new CacheWarmer(reader, List.of(root), null)) {
+            Path exposure = Files.createDirectory(root.resolve("exposure"));
+            Path ccd = exposure.resolve("R22_S11.fits");
+            // Written in several steps, but only warmed once it has settled
+            Files.write(ccd, new byte[2880]);
+            Files.write(ccd, new byte[2880 * 2]);
+            Files.write(exposure.resolve("notes.txt"), new byte[10]);
+            assertEquals("B [" + ccd + "]", warmed.poll(10, TimeUnit.SECONDS));
+            assertNull(warmed.poll(SETTLE_MILLIS * 3, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    public void testRaftFile() throws IOException, InterruptedException {
+        Path root = folder.getRoot().toPath();
+        try (CacheWarmer warmer = new CacheWarmer(reader, List.of(root), null)) {
+            Files.write(root.resolve("exposure.raft"), List.of("# A comment", "/data/R22_S00.fits", "/data/R22_S01.fits"));
+            assertEquals("Q [/data/R22_S00.fits, /data/R22_S01.fits]", warmed.poll(10, TimeUnit.SECONDS));
+        }
+    }
+}
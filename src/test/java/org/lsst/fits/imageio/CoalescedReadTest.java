@@ -0,0 +1,110 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests reading several segments from the same file together, with a single
+ * read for segments which are close to each other.
+ *
+ * @author tonyj
+ */
+public class CoalescedReadTest {
+
+    private static final int NAXIS1 = 20;
+    private static final int NAXIS2 = 30;
+    // The default org.lsst.fits.imageio.maxCoalesceGapBytes
+    private static final int MAX_COALESCE_GAP = 1_000_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRuns() throws IOException, FitsException {
+        File file = folder.newFile("a.fits");
+        Map<Segment, int[]> expected = new HashMap<>();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            // Segments separated by small gaps (as for the headers) are read together,
+            // the last segment is too far away so is read separately
+            expected.put(writeUncompressed(out, file, 0, "Segment10", 1), pixels(1));
+            expected.put(writeCompressed(out, file, 2880 * 2, "Segment11", 2), pixels(2));
+            expected.put(writeUncompressed(out, file, 2880 * 4, "Segment12", 3), pixels(3));
+            expected.put(writeCompressed(out, file, 2880 * 6 + MAX_COALESCE_GAP + 1, "Segment13", 4), pixels(4));
+        }
+        long before = channelAcquires();
+        Map<Segment, RawData> result = Segment.readRawDataAsync(List.copyOf(expected.keySet()), ForkJoinPool.commonPool()).join();
+        assertEquals(2, channelAcquires() - before);
+        assertEquals(expected.size(), result.size());
+        expected.forEach((segment, pixels) -> {
+            assertEquals(segment.toString(), IntBuffer.wrap(pixels), result.get(segment).getBuffer());
+        });
+    }
+
+    @Test
+    public void testBadSegment() throws IOException, FitsException {
+        File file = folder.newFile("b.fits");
+        Segment good;
+        Segment bad;
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            good = writeUncompressed(out, file, 0, "Segment10", 1);
+            bad = writeCompressed(out, file, 2880 * 2, "Segment11", 2);
+            // Point the first tile past the end of the heap
+            out.seek(2880 * 2 + 4);
+            out.writeInt(1_000_000);
+        }
+        Map<Segment, RawData> result = Segment.readRawDataAsync(List.of(good, bad), ForkJoinPool.commonPool()).join();
+        assertEquals(IntBuffer.wrap(pixels(1)), result.get(good).getBuffer());
+        assertFalse(result.containsKey(bad));
+    }
+
+    private static long channelAcquires() {
+        FileChannelPool pool = FileChannelPool.instance();
+        return pool.getOpenedCount() + pool.getHitCount();
+    }
+
+    private static int[] pixels(int seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[NAXIS1 * NAXIS2];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = seed * 100_000 + random.nextInt(1000);
+        }
+        return pixels;
+    }
+
+    private static Segment writeUncompressed(RandomAccessFile out, File file, long position, String extName, int seed) throws IOException, FitsException {
+        ByteBuffer data = ByteBuffer.allocate(NAXIS1 * NAXIS2 * 4);
+        data.asIntBuffer().put(pixels(seed));
+        out.seek(position);
+        out.write(data.array());
+        Map<String, Object> header = new HashMap<>();
+        header.put("EXTNAME", extName);
+        header.put("BITPIX", 32);
+        header.put("NAXIS1", NAXIS1);
+        header.put("NAXIS2", NAXIS2);
+        header.put("DATASEC", "[1:" + NAXIS1 + ",1:" + NAXIS2 + "]");
+        header.put("CHANNEL", 1);
+        return new Segment(FitsHeaderValues.of(header), file, FileIdentity.of(file), position, "R22", "S11", 'Q', null);
+    }
+
+    private static Segment writeCompressed(RandomAccessFile out, File file, long position, String extName, int seed) throws IOException, FitsException {
+        byte[] data = TileCompressionTest.riceData(pixels(seed), NAXIS1, 4);
+        out.seek(position);
+        out.write(data);
+        Map<String, Object> header = TileCompressionTest.riceSegmentHeader(extName, NAXIS1, NAXIS2, 4, data.length);
+        return new Segment(FitsHeaderValues.of(header), file, FileIdentity.of(file), position, "R22", "S11", 'Q', null);
+    }
+}
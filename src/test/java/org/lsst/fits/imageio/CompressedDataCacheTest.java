@@ -0,0 +1,97 @@
+package org.lsst.fits.imageio;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the compressed bytes kept by the reader are decoded, rather than
+ * the file being read again, when raw data for the same data is needed.
+ *
+ * @author tonyj
+ */
+public class CompressedDataCacheTest {
+
+    private static final int NAXIS1 = 40;
+    private static final int NAXIS2 = 60;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRawDataMissDecodesCachedBytes() throws IOException, FitsException {
+        int[] pixels = pixels();
+        File file = writeFile(pixels);
+        CachingReader reader = new CachingReader();
+        Segment segment = createSegment(file, 'Q');
+        assertEquals(IntBuffer.wrap(pixels), reader.applyToRawData(segment, RawData::getBuffer));
+
+        // The same data viewed with another WCS is a different raw data entry, but the same compressed data
+        Segment other = createSegment(file, 'E');
+        Files.delete(file.toPath());
+        long before = channelAcquires();
+        assertEquals(IntBuffer.wrap(pixels), reader.applyToRawData(other, RawData::getBuffer));
+        assertEquals(before, channelAcquires());
+    }
+
+    @Test
+    public void testDecimatedSharesEntry() throws IOException, FitsException {
+        int[] pixels = pixels();
+        File file = writeFile(pixels);
+        CachingReader reader = new CachingReader();
+        Segment segment = createSegment(file, 'Q');
+        Segment decimated = segment.decimated(4, 8);
+        assertEquals(segment.getDataKey(), decimated.getDataKey());
+        reader.applyToRawData(segment, RawData::getBuffer);
+
+        Files.delete(file.toPath());
+        long before = channelAcquires();
+        IntBuffer data = reader.applyToRawData(decimated, (RawData rawData) -> IntBuffer.allocate(rawData.getBuffer().capacity()).put((IntBuffer) rawData.getBuffer()).flip());
+        assertEquals(before, channelAcquires());
+        Rectangle datasec = decimated.getDataSec();
+        assertEquals(decimated.getNAxis1() * decimated.getNAxis2(), data.remaining());
+        for (int j = 0; j < decimated.getNAxis2(); j++) {
+            int row = Segment.sourceIndex(j, datasec.y, datasec.height, NAXIS2, 8);
+            for (int i = 0; i < decimated.getNAxis1(); i++) {
+                int col = Segment.sourceIndex(i, datasec.x, datasec.width, NAXIS1, 4);
+                assertEquals(pixels[row * NAXIS1 + col], data.get(j * decimated.getNAxis1() + i));
+            }
+        }
+    }
+
+    private static long channelAcquires() {
+        FileChannelPool pool = FileChannelPool.instance();
+        return pool.getOpenedCount() + pool.getHitCount();
+    }
+
+    private static int[] pixels() {
+        int[] pixels = new int[NAXIS1 * NAXIS2];
+        Random random = new Random(2);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 20_000 + random.nextInt(1000);
+        }
+        return pixels;
+    }
+
+    private File writeFile(int[] pixels) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), TileCompressionTest.riceData(pixels, NAXIS1, 4));
+        return file;
+    }
+
+    private static Segment createSegment(File file, char wcsLetter) throws IOException, FitsException {
+        Map<String, Object> header = TileCompressionTest.riceSegmentHeader("Segment10", NAXIS1, NAXIS2, 4, (int) file.length());
+        header.put("PC1_1E", 1.0);
+        header.put("PC2_2E", 1.0);
+        return new Segment(FitsHeaderValues.of(header), file, FileIdentity.of(file), 0, null, "S11", wcsLetter, null);
+    }
+}
@@ -0,0 +1,59 @@
+package org.lsst.fits.imageio;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author tonyj
+ */
+public class DAQEmulatorSegmentSourceTest {
+
+    @Test
+    public void testReadReb() throws IOException, FitsException {
+        int width = 4;
+        int height = 3;
+        File root = Files.createTempDirectory("daq").toFile();
+        File rebDir = new File(root, "camera/raw/MC_C_20210206_000109/R00");
+        assertTrue(rebDir.mkdirs());
+        File payload = new File(rebDir, "RebW.raw");
+        payload.deleteOnExit();
+        // Two wavefront CCDs with 8 amplifiers each, each pixel set to its amplifier number
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(payload))) {
+            for (int amp = 0; amp < 16; amp++) {
+                for (int i = 0; i < width * height; i++) {
+                    out.writeInt(amp);
+                }
+            }
+        }
+
+        DAQEmulatorSegmentSource source = new DAQEmulatorSegmentSource(root, null, width, height);
+        String line = "DAQ:camera:raw/MC_C_20210206_000109:R00/RebW";
+        assertTrue(source.accepts(line));
+        assertFalse(source.accepts(payload.getPath()));
+
+        List<Segment> segments = source.readSegments(line, 'E', null);
+        assertEquals(16, segments.size());
+        Segment segment = segments.get(9);
+        assertEquals("SW1", segment.getCcdSlot());
+        assertEquals("Segment11", segment.getSegmentName());
+        assertEquals(width, segment.getNAxis1());
+        assertEquals(height, segment.getNAxis2());
+
+        IntBuffer data = (IntBuffer) segment.readRawDataAsync(ForkJoinPool.commonPool()).join().getBuffer();
+        assertEquals(width * height, data.remaining());
+        assertEquals(9, data.get(0));
+        assertEquals(9, data.get(width * height - 1));
+    }
+}
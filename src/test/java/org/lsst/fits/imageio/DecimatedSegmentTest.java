@@ -0,0 +1,123 @@
+package org.lsst.fits.imageio;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests decimated views of segments, used for subsampled reads.
+ *
+ * @author tonyj
+ */
+public class DecimatedSegmentTest {
+
+    private static final int NAXIS1 = 2000;
+    private static final int NAXIS2 = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSourceIndex() {
+        // Prescan of 3, data section of 16 decimated by 4, then overscan
+        assertEquals(0, Segment.sourceIndex(0, 3, 4, 16, 4));
+        assertEquals(2, Segment.sourceIndex(2, 3, 4, 16, 4));
+        assertEquals(3, Segment.sourceIndex(3, 3, 4, 16, 4));
+        assertEquals(7, Segment.sourceIndex(4, 3, 4, 16, 4));
+        assertEquals(15, Segment.sourceIndex(6, 3, 4, 16, 4));
+        assertEquals(19, Segment.sourceIndex(7, 3, 4, 16, 4));
+        assertEquals(20, Segment.sourceIndex(8, 3, 4, 16, 4));
+    }
+
+    @Test
+    public void testWcsTranslation() throws IOException, FitsException {
+        Segment segment = createSegment();
+        Segment decimated = segment.decimated(4, 50);
+        Rectangle datasec = decimated.getDataSec();
+        assertEquals(segment.getDataSec().x, datasec.x);
+        assertEquals((segment.getDataSec().width + 3) / 4, datasec.width);
+        assertEquals((segment.getDataSec().height + 49) / 50, datasec.height);
+        // Each decimated pixel is drawn where the source pixel it was taken from would be
+        AffineTransform source = segment.getWCSTranslation(false);
+        AffineTransform scaled = decimated.getWCSTranslation(false);
+        for (int v = 0; v < datasec.height; v++) {
+            for (int u = 0; u < datasec.width; u += 37) {
+                Point2D expected = source.transform(new Point2D.Double(u * 4, v * 50), null);
+                Point2D actual = scaled.transform(new Point2D.Double(u, v), null);
+                assertEquals(0, expected.distance(actual), 1e-9);
+            }
+        }
+        assertEquals(segment.getWcs(), decimated.getWcs());
+    }
+
+    @Test
+    public void testDecimatedRead() throws IOException, FitsException {
+        Segment decimated = createSegment().decimated(4, 50);
+        long before = channelAcquires();
+        Map<Segment, RawData> result = Segment.readRawDataAsync(List.of(decimated), ForkJoinPool.commonPool()).join();
+        // One read for each of the 6 decimated data rows, and one for the overscan rows
+        assertEquals(7, channelAcquires() - before);
+        IntBuffer data = (IntBuffer) result.get(decimated).getBuffer();
+        int nAxis1 = decimated.getNAxis1();
+        int nAxis2 = decimated.getNAxis2();
+        assertEquals(nAxis1 * nAxis2, data.remaining());
+        Rectangle datasec = decimated.getDataSec();
+        for (int j = 0; j < nAxis2; j++) {
+            int row = Segment.sourceIndex(j, datasec.y, datasec.height, 290, 50);
+            for (int i = 0; i < nAxis1; i++) {
+                int col = Segment.sourceIndex(i, datasec.x, datasec.width, 1990, 4);
+                assertEquals(value(row, col), data.get(j * nAxis1 + i));
+            }
+        }
+        assertTrue(nAxis2 < NAXIS2);
+    }
+
+    private static long channelAcquires() {
+        FileChannelPool pool = FileChannelPool.instance();
+        return pool.getOpenedCount() + pool.getHitCount();
+    }
+
+    private static int value(int row, int col) {
+        return row * 10000 + col;
+    }
+
+    private Segment createSegment() throws IOException, FitsException {
+        File file = folder.newFile("a.fits");
+        ByteBuffer data = ByteBuffer.allocate(NAXIS1 * NAXIS2 * 4);
+        for (int row = 0; row < NAXIS2; row++) {
+            for (int col = 0; col < NAXIS1; col++) {
+                data.putInt(value(row, col));
+            }
+        }
+        Files.write(file.toPath(), data.array());
+        Map<String, Object> header = new HashMap<>();
+        header.put("EXTNAME", "Segment10");
+        header.put("BITPIX", 32);
+        header.put("NAXIS1", NAXIS1);
+        header.put("NAXIS2", NAXIS2);
+        header.put("DATASEC", "[4:1993,1:290]");
+        header.put("CHANNEL", 1);
+        header.put("PC1_1Q", 0.0);
+        header.put("PC2_2Q", 0.0);
+        header.put("PC1_2Q", -1.0);
+        header.put("PC2_1Q", 1.0);
+        header.put("CRVAL1Q", 512.0);
+        header.put("CRVAL2Q", 4004.0);
+        return new Segment(FitsHeaderValues.of(header), file, FileIdentity.of(file), 0, "R22", "S11", 'Q', null);
+    }
+}
@@ -0,0 +1,72 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the size classes and reuse of pooled direct buffers.
+ *
+ * @author tonyj
+ */
+public class DirectBufferPoolTest {
+
+    @Test
+    public void testSizeClasses() {
+        DirectBufferPool pool = new DirectBufferPool(10_000_000);
+        // Small requests use the smallest (64kB) class
+        ByteBuffer small = pool.acquire(1);
+        assertEquals(1 << 16, small.capacity());
+        assertEquals(1, small.limit());
+        assertEquals(0, small.position());
+        assertTrue(small.isDirect());
+        assertEquals(ByteOrder.BIG_ENDIAN, small.order());
+        // Exact powers of two are not rounded up
+        assertEquals(1 << 17, pool.acquire(1 << 17).capacity());
+        assertEquals(1 << 18, pool.acquire((1 << 17) + 1).capacity());
+        assertEquals(3, pool.getAllocationCount());
+    }
+
+    @Test
+    public void testRelease() {
+        DirectBufferPool pool = new DirectBufferPool(10_000_000);
+        ByteBuffer bb = pool.acquire(100_000);
+        bb.putInt(42).order(ByteOrder.LITTLE_ENDIAN);
+        pool.release(bb);
+        assertEquals(bb.capacity(), pool.getIdleBytes());
+
+        // A request in the same size class gets the released buffer back, reset
+        ByteBuffer reused = pool.acquire(70_000);
+        assertSame(bb, reused);
+        assertEquals(0, reused.position());
+        assertEquals(70_000, reused.limit());
+        assertEquals(ByteOrder.BIG_ENDIAN, reused.order());
+        assertEquals(0, pool.getIdleBytes());
+        assertEquals(1, pool.getReuseCount());
+
+        // But not one in a different size class
+        pool.release(reused);
+        assertNotSame(bb, pool.acquire(1000));
+        assertEquals(2, pool.getAllocationCount());
+    }
+
+    @Test
+    public void testDiscard() {
+        DirectBufferPool pool = new DirectBufferPool(300_000);
+        ByteBuffer first = pool.acquire(200_000);
+        ByteBuffer second = pool.acquire(200_000);
+        pool.release(first);
+        // Keeping the second buffer would exceed the idle limit
+        pool.release(second);
+        assertEquals(first.capacity(), pool.getIdleBytes());
+        assertEquals(1, pool.getDiscardCount());
+        // Buffers which did not come from the pool are not kept
+        pool.release(ByteBuffer.allocateDirect(100_000));
+        assertEquals(2, pool.getDiscardCount());
+        assertEquals(first.capacity(), pool.getIdleBytes());
+    }
+}
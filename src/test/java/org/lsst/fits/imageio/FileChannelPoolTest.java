@@ -0,0 +1,95 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests sharing file channels between readers.
+ *
+ * @author tonyj
+ */
+public class FileChannelPoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testShared() throws IOException {
+        File file = write("a.fits", "1234");
+        FileChannelPool pool = new FileChannelPool(10);
+        FileIdentity identity = FileIdentity.of(file);
+        try (FileChannelPool.Lease first = pool.acquire(file, identity); FileChannelPool.Lease second = pool.acquire(file, identity)) {
+            assertSame(first.channel(), second.channel());
+        }
+        assertEquals(1, pool.getOpenedCount());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    @Test
+    public void testReplacedFile() throws IOException, InterruptedException, ExecutionException {
+        File file = write("a.fits", "old!");
+        FileChannelPool pool = new FileChannelPool(10);
+        FileIdentity oldIdentity = FileIdentity.of(file);
+        AsynchronousFileChannel oldChannel;
+        try (FileChannelPool.Lease lease = pool.acquire(file, oldIdentity)) {
+            oldChannel = lease.channel();
+        }
+
+        // Replace the file by renaming a new one over it
+        File replacement = write("a.fits.tmp", "new!");
+        Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        FileIdentity newIdentity = FileIdentity.of(file);
+
+        try (FileChannelPool.Lease lease = pool.acquire(file, newIdentity)) {
+            ByteBuffer bb = ByteBuffer.allocate(4);
+            lease.channel().read(bb, 0).get();
+            assertEquals("new!", new String(bb.array(), "US-ASCII"));
+        }
+        assertFalse(oldChannel.isOpen());
+        assertEquals(2, pool.getOpenedCount());
+        assertEquals(1, pool.getOpenCount());
+    }
+
+    @Test
+    public void testInvalidate() throws IOException {
+        File file = write("a.fits", "1234");
+        FileChannelPool pool = new FileChannelPool(10);
+        FileChannelPool.Lease lease = pool.acquire(file, FileIdentity.of(file));
+        pool.invalidate(file);
+        // The channel stays open until the read in progress has finished
+        assertTrue(lease.channel().isOpen());
+        assertEquals(0, pool.getOpenCount());
+        lease.close();
+        assertFalse(lease.channel().isOpen());
+        assertEquals(1, pool.getClosedCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingFile() throws IOException {
+        FileChannelPool pool = new FileChannelPool(10);
+        try {
+            pool.acquire(new File(folder.getRoot(), "missing.fits"), null);
+        } finally {
+            assertEquals(0, pool.getOpenCount());
+        }
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(folder.getRoot(), name);
+        Files.write(file.toPath(), content.getBytes("US-ASCII"));
+        return file;
+    }
+}
@@ -0,0 +1,98 @@
+package org.lsst.fits.imageio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.TruncatedFileException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ *
+ * @author tonyj
+ */
+public class FitsHeaderScannerTest {
+
+    @Test
+    public void testScan() throws IOException, FitsException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeHeader(out, "SIMPLE  =                    T", "NAXIS   =                    0", "CCDSLOT = 'S11     '           / The CCD slot", "EXPID   =                    0");
+        writeHeader(out, "XTENSION= 'IMAGE   '", "BITPIX  =                   32", "NAXIS   =                    2",
+                "NAXIS1  =                  576", "NAXIS2  =                 2048", "EXTNAME = 'Segment10'",
+                "DATASEC = '[11:522,1:2002]'", "PC1_1Q  =                 -1.0", "CRVAL1Q =   1.2345678900000D+04", "QUOTED  = 'it''s'");
+        int dataSize = 576 * 2048 * 4;
+        out.write(new byte[dataSize + (int) FitsHeaderScanner.padding(dataSize)]);
+        File file = File.createTempFile("scanner", ".fits");
+        file.deleteOnExit();
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            out.writeTo(fileOut);
+        }
+
+        try (FitsHeaderScanner scanner = new FitsHeaderScanner(file)) {
+            assertTrue(scanner.nextHeader());
+            assertEquals(0, scanner.getHeaderPosition());
+            assertEquals(2880, scanner.getDataPosition());
+            assertEquals("S11", scanner.getStringValue("CCDSLOT"));
+            assertTrue(scanner.getBooleanValue("SIMPLE"));
+            assertEquals(0, scanner.getDataSize());
+            assertFalse(scanner.containsKey("N_STAMPS"));
+            scanner.skipData();
+
+            assertTrue(scanner.nextHeader());
+            assertEquals(2880, scanner.getHeaderPosition());
+            assertEquals(5760, scanner.getDataPosition());
+            assertEquals(dataSize, scanner.getDataSize());
+            assertEquals(576, scanner.getIntValue("NAXIS1"));
+            assertEquals("Segment10", scanner.getStringValue("EXTNAME"));
+            assertEquals("[11:522,1:2002]", scanner.getStringValue("DATASEC"));
+            assertEquals(-1.0, scanner.getDoubleValue("PC1_1Q"), 0);
+            assertEquals(12345.6789, scanner.getDoubleValue("CRVAL1Q"), 1e-9);
+            assertEquals("it's", scanner.getStringValue("QUOTED"));
+            assertNull(scanner.getStringValue("MISSING"));
+            assertEquals(0, scanner.getIntValue("MISSING"));
+            scanner.skipData();
+
+            assertFalse(scanner.nextHeader());
+        }
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        File file = File.createTempFile("scanner", ".fits");
+        file.deleteOnExit();
+        try (FileOutputStream fileOut = new FileOutputStream(file)) {
+            fileOut.write(card("SIMPLE  =                    T"));
+        }
+        try (FitsHeaderScanner scanner = new FitsHeaderScanner(file)) {
+            scanner.nextHeader();
+            fail("Should have thrown TruncatedFileException");
+        } catch (TruncatedFileException x) {
+            assertTrue(x.getMessage().contains(file.getName()));
+        }
+    }
+
+    static void writeHeader(ByteArrayOutputStream out, String... cards) throws IOException {
+        int size = 0;
+        for (String card : cards) {
+            out.write(card(card));
+            size += 80;
+        }
+        out.write(card("END"));
+        size += 80;
+        while (size % 2880 != 0) {
+            out.write(' ');
+            size++;
+        }
+    }
+
+    private static byte[] card(String card) {
+        return String.format("%-80s", card).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,48 @@
+package org.lsst.fits.imageio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests decoding GZIP_2 tiles.
+ *
+ * @author tonyj
+ */
+public class GZip2IntDecoderTest {
+
+    @Test
+    public void testDecode() throws IOException {
+        int[] values = {0, 1, -1, 25000, Integer.MAX_VALUE, Integer.MIN_VALUE, 0x12345678};
+        int n = values.length;
+        byte[] shuffled = new byte[n * 4];
+        for (int i = 0; i < n; i++) {
+            shuffled[i] = (byte) (values[i] >> 24);
+            shuffled[i + n] = (byte) (values[i] >> 16);
+            shuffled[i + 2 * n] = (byte) (values[i] >> 8);
+            shuffled[i + 3 * n] = (byte) values[i];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(shuffled);
+        }
+        byte[] compressed = out.toByteArray();
+        ByteBuffer direct = ByteBuffer.allocateDirect(compressed.length).put(compressed).flip();
+
+        // Decode into the middle of a larger buffer, twice to check the inflater is reset
+        for (int pass = 0; pass < 2; pass++) {
+            IntBuffer result = IntBuffer.allocate(n + 2);
+            GZip2IntDecoder.instance().decompress(direct.duplicate(), result.slice(1, n));
+            assertEquals(0, result.get(0));
+            assertEquals(0, result.get(n + 1));
+            int[] decoded = new int[n];
+            result.get(1, decoded);
+            assertArrayEquals(values, decoded);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.lsst.fits.imageio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Tests interning of global scales.
+ *
+ * @author tonyj
+ */
+public class GlobalScaleTest {
+
+    @Test
+    public void testInterning() {
+        long[] counts = new long[1 << 18];
+        counts[100] = 5;
+        counts[200] = 7;
+        GlobalScale scale = GlobalScale.of(counts);
+        // Equal counts from a different array give the same object
+        assertSame(scale, GlobalScale.of(counts.clone()));
+
+        // The counts are copied, so modifying the array does not affect the scale
+        counts[200] = 8;
+        GlobalScale other = GlobalScale.of(counts);
+        assertFalse(scale.equals(other));
+        assertFalse(scale.getFingerprint() == other.getFingerprint());
+        assertEquals(7, scale.getCounts()[200]);
+
+        assertNull(GlobalScale.of(null));
+    }
+}
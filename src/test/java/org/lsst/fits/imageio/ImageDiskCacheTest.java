@@ -0,0 +1,126 @@
+package org.lsst.fits.imageio;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+import javax.imageio.ImageTypeSpecifier;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests storing rendered images on disk.
+ *
+ * @author tonyj
+ */
+public class ImageDiskCacheTest {
+
+    private static final ImageTypeSpecifier TYPE = ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB);
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path dir = Files.createTempDirectory("imageDiskCache");
+        ImageDiskCache cache = new ImageDiskCache(dir, 1_000_000);
+        BufferedImage image = createImage(7, 5);
+        assertNull(cache.read("a", TYPE));
+        cache.write("a", image);
+
+        // A new cache using the same directory finds the image written by the first
+        BufferedImage read = new ImageDiskCache(dir, 1_000_000).read("a", TYPE);
+        assertNotNull(read);
+        assertEquals(7, read.getWidth());
+        assertEquals(5, read.getHeight());
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 7; x++) {
+                assertEquals(image.getRGB(x, y), read.getRGB(x, y));
+            }
+        }
+        assertNull(cache.read("b", TYPE));
+    }
+
+    @Test
+    public void testIndexedRoundTrip() throws IOException {
+        Path dir = Files.createTempDirectory("imageDiskCache");
+        ImageDiskCache cache = new ImageDiskCache(dir, 1_000_000);
+        // More than one chunk of pixels
+        BufferedImage image = new BufferedImage(300, 250, BufferedImage.TYPE_BYTE_INDEXED);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        new Random(1).nextBytes(pixels);
+        cache.write("a", image);
+        BufferedImage read = cache.read("a", ImageTypeSpecifier.createFromRenderedImage(image));
+        assertNotNull(read);
+        assertArrayEquals(pixels, ((DataBufferByte) read.getRaster().getDataBuffer()).getData());
+
+        // Images which share a larger raster are not stored
+        cache.write("b", image.getSubimage(10, 10, 100, 100));
+        assertNull(cache.read("b", ImageTypeSpecifier.createFromRenderedImage(image)));
+    }
+
+    @Test
+    public void testCorruptFileIsDiscarded() throws IOException {
+        Path dir = Files.createTempDirectory("imageDiskCache");
+        ImageDiskCache cache = new ImageDiskCache(dir, 1_000_000);
+        cache.write("a", createImage(10, 10));
+        Path file = onlyFile(dir);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(file) - 1);
+        }
+        assertNull(cache.read("a", TYPE));
+        assertTrue(Files.notExists(file));
+        assertEquals(0, cache.getTotalBytes());
+    }
+
+    @Test
+    public void testEviction() throws IOException {
+        Path dir = Files.createTempDirectory("imageDiskCache");
+        ImageDiskCache cache = new ImageDiskCache(dir, 1000);
+        // Each image is just over 400 bytes, so only two fit
+        cache.write("a", createImage(10, 10));
+        cache.write("b", createImage(10, 10));
+        assertNotNull(cache.read("a", TYPE));
+        cache.write("c", createImage(10, 10));
+        assertNotNull(cache.read("a", TYPE));
+        assertNull(cache.read("b", TYPE));
+        assertNotNull(cache.read("c", TYPE));
+        assertTrue(cache.getTotalBytes() <= 1000);
+    }
+
+    @Test
+    public void testWriteAsync() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("imageDiskCache");
+        ImageDiskCache cache = new ImageDiskCache(dir, 1_000_000);
+        cache.writeAsync("a", createImage(10, 10));
+        long deadline = System.currentTimeMillis() + 10_000;
+        BufferedImage read;
+        while ((read = cache.read("a", TYPE)) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(read);
+        assertEquals(10, read.getWidth());
+    }
+
+    private static BufferedImage createImage(int width, int height) {
+        BufferedImage image = TYPE.createBufferedImage(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, x * 0x10203 + y * 0x30201);
+            }
+        }
+        return image;
+    }
+
+    private static Path onlyFile(Path dir) throws IOException {
+        try (Stream<Path> list = Files.list(dir)) {
+            return list.findFirst().orElseThrow();
+        }
+    }
+}
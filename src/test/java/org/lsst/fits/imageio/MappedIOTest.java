@@ -0,0 +1,113 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that memory mapping segment data (org.lsst.fits.imageio.useMappedIO)
+ * gives the same raw data as reading it.
+ *
+ * @author tonyj
+ */
+public class MappedIOTest {
+
+    private static final int NAXIS1 = 30;
+    private static final int NAXIS2 = 40;
+    private final boolean useMappedIO = Segment.useMappedIO;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void restore() {
+        Segment.useMappedIO = useMappedIO;
+    }
+
+    @Test
+    public void testMappedMatchesRead() throws IOException, FitsException {
+        File file = folder.newFile("a.fits");
+        int[] uncompressedPixels = pixels(1);
+        int[] compressedPixels = pixels(2);
+        Segment uncompressed;
+        Segment compressed;
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            uncompressed = writeUncompressed(out, file, 0, "Segment10", uncompressedPixels);
+            compressed = writeCompressed(out, file, 2880 * 2, "Segment11", compressedPixels);
+        }
+        List<Segment> segments = List.of(uncompressed, compressed);
+
+        Segment.useMappedIO = false;
+        Map<Segment, IntBuffer> read = readEach(segments);
+        Map<Segment, RawData> readTogether = Segment.readRawDataAsync(segments, ForkJoinPool.commonPool()).join();
+        Segment.useMappedIO = true;
+        Map<Segment, IntBuffer> mapped = readEach(segments);
+        Map<Segment, RawData> mappedTogether = Segment.readRawDataAsync(segments, ForkJoinPool.commonPool()).join();
+
+        assertEquals(IntBuffer.wrap(uncompressedPixels), read.get(uncompressed));
+        assertEquals(IntBuffer.wrap(compressedPixels), read.get(compressed));
+        // Mapped uncompressed data is used in place rather than copied to the heap
+        assertFalse(read.get(uncompressed).isDirect());
+        assertTrue(mapped.get(uncompressed).isDirect());
+        for (Segment segment : segments) {
+            assertEquals(segment.toString(), read.get(segment), mapped.get(segment));
+            assertEquals(segment.toString(), read.get(segment), readTogether.get(segment).getBuffer());
+            assertEquals(segment.toString(), read.get(segment), mappedTogether.get(segment).getBuffer());
+        }
+    }
+
+    private static Map<Segment, IntBuffer> readEach(List<Segment> segments) {
+        Map<Segment, IntBuffer> result = new HashMap<>();
+        for (Segment segment : segments) {
+            result.put(segment, (IntBuffer) segment.readRawDataAsync(ForkJoinPool.commonPool()).join().getBuffer());
+        }
+        return result;
+    }
+
+    private static int[] pixels(int seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[NAXIS1 * NAXIS2];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 20_000 + random.nextInt(1000);
+        }
+        return pixels;
+    }
+
+    private static Segment writeUncompressed(RandomAccessFile out, File file, long position, String extName, int[] pixels) throws IOException, FitsException {
+        ByteBuffer data = ByteBuffer.allocate(pixels.length * 4);
+        data.asIntBuffer().put(pixels);
+        out.seek(position);
+        out.write(data.array());
+        Map<String, Object> header = new HashMap<>();
+        header.put("EXTNAME", extName);
+        header.put("BITPIX", 32);
+        header.put("NAXIS1", NAXIS1);
+        header.put("NAXIS2", NAXIS2);
+        header.put("DATASEC", "[1:" + NAXIS1 + ",1:" + NAXIS2 + "]");
+        header.put("CHANNEL", 1);
+        return new Segment(FitsHeaderValues.of(header), file, FileIdentity.of(file), position, "R22", "S11", 'Q', null);
+    }
+
+    private static Segment writeCompressed(RandomAccessFile out, File file, long position, String extName, int[] pixels) throws IOException, FitsException {
+        byte[] data = TileCompressionTest.riceData(pixels, NAXIS1, 4);
+        out.seek(position);
+        out.write(data);
+        Map<String, Object> header = TileCompressionTest.riceSegmentHeader(extName, NAXIS1, NAXIS2, 4, data.length);
+        return new Segment(FitsHeaderValues.of(header), file, FileIdentity.of(file), position, "R22", "S11", 'Q', null);
+    }
+}
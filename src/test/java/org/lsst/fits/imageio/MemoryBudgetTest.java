@@ -0,0 +1,110 @@
+package org.lsst.fits.imageio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests splitting and rebalancing the memory budget between caches.
+ *
+ * @author tonyj
+ */
+public class MemoryBudgetTest {
+
+    private static class FakeTier implements MemoryBudget.Tier {
+
+        private final String name;
+        private final MemoryBudget.Pool pool;
+        private long hits;
+        private long misses;
+        private long weightedSize;
+        private long maximum;
+
+        FakeTier(String name, MemoryBudget.Pool pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public MemoryBudget.Pool pool() {
+            return pool;
+        }
+
+        @Override
+        public long hitCount() {
+            return hits;
+        }
+
+        @Override
+        public long missCount() {
+            return misses;
+        }
+
+        @Override
+        public long weightedSize() {
+            return weightedSize;
+        }
+
+        @Override
+        public long getMaximum() {
+            return maximum;
+        }
+
+        @Override
+        public void setMaximum(long maximum) {
+            this.maximum = maximum;
+        }
+    }
+
+    @Test
+    public void testAllocate() {
+        MemoryBudget budget = new MemoryBudget(1000, 10_000, 200);
+        FakeTier heap = new FakeTier("heap", MemoryBudget.Pool.HEAP);
+        FakeTier direct = new FakeTier("direct", MemoryBudget.Pool.DIRECT);
+        budget.add(heap, 300);
+        budget.add(direct, 200);
+        budget.allocate();
+        assertEquals(600, heap.getMaximum());
+        // Limited by the direct memory available
+        assertEquals(200, direct.getMaximum());
+    }
+
+    @Test
+    public void testRebalance() {
+        MemoryBudget budget = new MemoryBudget(1000, 10_000, 10_000);
+        FakeTier busy = new FakeTier("busy", MemoryBudget.Pool.HEAP);
+        FakeTier idle = new FakeTier("idle", MemoryBudget.Pool.DIRECT);
+        budget.add(busy, 500);
+        budget.add(idle, 500);
+        budget.allocate();
+        assertFalse(budget.rebalance());
+
+        // A full cache which is missing takes memory from one which is not being used
+        busy.weightedSize = 500;
+        busy.misses = 10;
+        busy.hits = 10;
+        assertTrue(budget.rebalance());
+        assertEquals(550, busy.getMaximum());
+        assertEquals(450, idle.getMaximum());
+
+        // No change if the other cache is getting more hits per byte
+        busy.weightedSize = 550;
+        busy.misses += 1;
+        idle.hits += 100;
+        assertFalse(budget.rebalance());
+        assertEquals(550, busy.getMaximum());
+
+        // Never shrunk below the minimum share
+        idle.maximum = 60;
+        busy.misses += 100;
+        assertTrue(budget.rebalance());
+        assertEquals(50, idle.getMaximum());
+        assertEquals(560, busy.getMaximum());
+    }
+}
@@ -0,0 +1,124 @@
+package org.lsst.fits.imageio;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.IntBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests reading segments from a minimal stand-in for an object store, which
+ * supports HEAD and ranged GET requests.
+ *
+ * @author tonyj
+ */
+public class ObjectStoreSegmentSourceTest {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRangeReads() throws IOException, FitsException {
+        int width = 4;
+        int height = 3;
+        byte[] fits = createFitsFile(width, height);
+        AtomicInteger gets = new AtomicInteger();
+        // Failures on the server thread are recorded, and checked on the test thread
+        AtomicReference<String> serverError = new AtomicReference<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/bucket/", (HttpExchange exchange) -> {
+            exchange.getResponseHeaders().add("ETag", "\"1\"");
+            exchange.getResponseHeaders().add("Last-Modified", "Tue, 06 Feb 2021 00:00:00 GMT");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(fits.length));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                gets.incrementAndGet();
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                Matcher matcher = RANGE_PATTERN.matcher(range == null ? "" : range);
+                if (!matcher.matches()) {
+                    serverError.compareAndSet(null, "Unexpected range " + range);
+                    exchange.sendResponseHeaders(400, -1);
+                    exchange.close();
+                    return;
+                }
+                int start = Integer.parseInt(matcher.group(1));
+                int end = Integer.parseInt(matcher.group(2));
+                exchange.sendResponseHeaders(206, end - start + 1);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(fits, start, end - start + 1);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        try {
+            ObjectStoreSegmentSource source = new ObjectStoreSegmentSource("http://localhost:" + server.getAddress().getPort(), folder.newFolder("index"));
+            String line = "s3://bucket/R00_SW0.fits";
+            assertTrue(source.accepts(line));
+
+            List<Segment> segments = source.readSegments(line, 'E', null);
+            assertEquals(8, segments.size());
+            assertEquals("SW0", segments.get(0).getCcdSlot());
+            assertEquals("Segment17", segments.get(7).getSegmentName());
+
+            // All eight segments should be read with a single request
+            gets.set(0);
+            Map<Segment, RawData> rawData = Segment.readRawDataAsync(segments, ForkJoinPool.commonPool()).join();
+            assertEquals(1, gets.get());
+            for (int i = 0; i < segments.size(); i++) {
+                IntBuffer data = (IntBuffer) rawData.get(segments.get(i)).getBuffer();
+                assertEquals(width * height, data.remaining());
+                assertEquals(i, data.get(width * height - 1));
+            }
+
+            // The second time the segments should come from the local index
+            gets.set(0);
+            List<Segment> indexed = source.readSegments(line, 'E', null);
+            assertEquals(0, gets.get());
+            assertEquals(segments, indexed);
+            assertNull(serverError.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    static byte[] createFitsFile(int width, int height) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FitsHeaderScannerTest.writeHeader(out, "SIMPLE  =                    T", "BITPIX  =                    8", "NAXIS   =                    0",
+                "RAFTBAY = 'R00     '", "CCDSLOT = 'SW0     '", "EXPID   =                    0");
+        for (int amp = 0; amp < 8; amp++) {
+            FitsHeaderScannerTest.writeHeader(out, "XTENSION= 'IMAGE   '", "BITPIX  =                   32", "NAXIS   =                    2",
+                    String.format("NAXIS1  = %20d", width), String.format("NAXIS2  = %20d", height),
+                    "PCOUNT  =                    0", "GCOUNT  =                    1",
+                    String.format("EXTNAME = 'Segment1%d'", amp), String.format("DATASEC = '[1:%d,1:%d]'", width, height),
+                    "PC1_1E  =                  1.0", "PC2_2E  =                  1.0", String.format("CRVAL1E = %20d", amp * width));
+            DataOutputStream data = new DataOutputStream(out);
+            for (int i = 0; i < width * height; i++) {
+                data.writeInt(amp);
+            }
+            int dataSize = width * height * 4;
+            out.write(new byte[(int) FitsHeaderScanner.padding(dataSize)]);
+        }
+        return out.toByteArray();
+    }
+}
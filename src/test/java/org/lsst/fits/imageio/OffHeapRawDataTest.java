@@ -0,0 +1,80 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests copying raw data off heap, and freeing it once all references have
+ * been released.
+ *
+ * @author tonyj
+ */
+public class OffHeapRawDataTest {
+
+    @Test
+    public void testReferenceCounting() {
+        int[] pixels = {1, -2, 3, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        RawData<?> rawData = OffHeapRawData.of(new RawData<>(null, IntBuffer.wrap(pixels)));
+        IntBuffer buffer = (IntBuffer) rawData.getBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertFalse(buffer.hasArray());
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(pixels[i], buffer.get(i));
+        }
+        long allocated = OffHeapMemory.getAllocatedBytes();
+
+        assertTrue(rawData.retain());
+        RawData<?> copy = rawData.copyToHeap();
+        rawData.release();
+        assertEquals(allocated, OffHeapMemory.getAllocatedBytes());
+
+        // Releasing the owner's reference frees the memory, after which it can not be retained
+        rawData.release();
+        assertEquals(allocated - pixels.length * 4, OffHeapMemory.getAllocatedBytes());
+        assertFalse(rawData.retain());
+
+        assertNotSame(rawData, copy);
+        assertTrue(copy.getBuffer().hasArray());
+        assertEquals(Integer.MIN_VALUE, ((IntBuffer) copy.getBuffer()).get(4));
+    }
+
+    @Test
+    public void testBigEndianInts() {
+        int[] pixels = {1, -2, 3, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        // As read from disk into a direct buffer, starting part way through
+        ByteBuffer bb = ByteBuffer.allocateDirect(3 + pixels.length * 4);
+        bb.position(3);
+        for (int pixel : pixels) {
+            bb.putInt(pixel);
+        }
+        bb.position(3);
+        long allocated = OffHeapMemory.getAllocatedBytes();
+        RawData<IntBuffer> rawData = OffHeapRawData.ofBigEndianInts(null, bb);
+        assertEquals(allocated + pixels.length * 4, OffHeapMemory.getAllocatedBytes());
+        IntBuffer buffer = rawData.getBuffer();
+        assertTrue(buffer.isReadOnly());
+        assertEquals(pixels.length, buffer.remaining());
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals(pixels[i], buffer.get(i));
+        }
+        // The caller's buffer is left as it was
+        assertEquals(3, bb.position());
+        rawData.release();
+        assertEquals(allocated, OffHeapMemory.getAllocatedBytes());
+    }
+
+    @Test
+    public void testFloatData() {
+        RawData<?> rawData = OffHeapRawData.of(new RawData<>(null, FloatBuffer.wrap(new float[]{1.5f, Float.NaN})));
+        FloatBuffer buffer = (FloatBuffer) rawData.getBuffer();
+        assertEquals(1.5f, buffer.get(0), 0);
+        assertTrue(Float.isNaN(buffer.get(1)));
+        rawData.release();
+    }
+}
@@ -0,0 +1,61 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests splitting the decoding of a compressed segment into chunks of tiles
+ * which are decoded in parallel.
+ *
+ * @author tonyj
+ */
+public class ParallelTileDecodeTest {
+
+    private static final int NAXIS1 = 50;
+    private static final int NAXIS2 = 301;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testChunkedMatchesSerial() throws IOException, FitsException {
+        int[] pixels = new int[NAXIS1 * NAXIS2];
+        Random random = new Random(5);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 20_000 + random.nextInt(500);
+        }
+        // Tiles of 3 rows, so 101 tiles with a partial last tile
+        byte[] data = TileCompressionTest.riceData(pixels, NAXIS1, 3);
+        File file = folder.newFile("a.fits");
+        Files.write(file.toPath(), data);
+        Segment segment = new Segment(FitsHeaderValues.of(TileCompressionTest.riceSegmentHeader("Segment10", NAXIS1, NAXIS2, 3, data.length)), file, FileIdentity.of(file), 0, "R22", "S11", 'Q', null);
+
+        IntBuffer serial = IntBuffer.allocate(pixels.length);
+        segment.decodeTiles(ByteBuffer.wrap(data), serial, 1);
+        assertEquals(IntBuffer.wrap(pixels), serial);
+        // Including uneven splits, and more chunks than tiles
+        for (int chunks : new int[]{2, 3, 7, 100, 101, 150}) {
+            IntBuffer chunked = IntBuffer.allocate(pixels.length);
+            segment.decodeTiles(ByteBuffer.wrap(data), chunked, chunks);
+            assertEquals("chunks " + chunks, serial, chunked);
+        }
+    }
+
+    @Test
+    public void testChunkCount() {
+        // Segments smaller than the minimum chunk (128 rows by default) are not split
+        assertEquals(1, Segment.parallelDecodeChunks(100));
+        assertTrue(Segment.parallelDecodeChunks(256) <= 2);
+        assertTrue(Segment.parallelDecodeChunks(1_000_000) <= Runtime.getRuntime().availableProcessors());
+    }
+}
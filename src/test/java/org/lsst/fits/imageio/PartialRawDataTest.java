@@ -0,0 +1,141 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests reading an uncompressed segment a range of rows at a time.
+ *
+ * @author tonyj
+ */
+public class PartialRawDataTest {
+
+    private static final int NAXIS1 = 20;
+    private static final int NAXIS2 = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPartialRead() throws IOException, FitsException {
+        PartialRawData partial = new PartialRawData(createSegment());
+        partial.readRowsAsync(10, 20).join();
+        assertFalse(partial.isComplete());
+        // Only the first block of rows is allocated
+        assertEquals(64 * NAXIS1 * 4, partial.getWeight());
+        checkRows(partial.getRows(10, 20), 10, 20);
+
+        // Rows spanning blocks read separately
+        partial.readRowsAsync(100, 140).join();
+        partial.readRowsAsync(60, 70).join();
+        checkRows(partial.getRows(60, 140), 60, 140);
+
+        partial.readRowsAsync(0, NAXIS2).join();
+        assertTrue(partial.isComplete());
+        assertEquals(NAXIS1 * NAXIS2 * 4, partial.getWeight());
+        checkRows(partial.toRawData().getBuffer(), 0, NAXIS2);
+    }
+
+    @Test
+    public void testOverlappingReadsAreShared() throws IOException, FitsException {
+        PartialRawData partial = new PartialRawData(createSegment());
+        long before = channelAcquires();
+        CompletableFuture<Void> first = partial.readRowsAsync(0, 100);
+        CompletableFuture<Void> second = partial.readRowsAsync(50, 150);
+        CompletableFuture.allOf(first, second).join();
+        // One read for the first two blocks, and one for the block only the second request needs
+        assertEquals(2, channelAcquires() - before);
+        checkRows(partial.getRows(0, 150), 0, 150);
+
+        partial.readRowsAsync(30, 190).join();
+        assertEquals(2, channelAcquires() - before);
+    }
+
+    @Test
+    public void testCompressedRowRanges() throws IOException, FitsException {
+        // 7 row tiles, so blocks of 70 rows, and a partial last tile
+        int nAxis1 = 30;
+        int nAxis2 = 200;
+        int[] pixels = new int[nAxis1 * nAxis2];
+        Random random = new Random(1);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = 20_000 + random.nextInt(100);
+        }
+        File file = folder.newFile("c.fits");
+        byte[] data = TileCompressionTest.riceData(pixels, nAxis1, 7);
+        Files.write(file.toPath(), data);
+        Segment segment = new Segment(FitsHeaderValues.of(TileCompressionTest.riceSegmentHeader("Segment10", nAxis1, nAxis2, 7, data.length)), file, FileIdentity.of(file), 0, "R22", "S11", 'Q', null);
+        IntBuffer full = (IntBuffer) segment.readRawDataAsync(ForkJoinPool.commonPool()).join().getBuffer();
+        assertEquals(IntBuffer.wrap(pixels), full);
+
+        // Ranges which start and end part way through tiles, and span tile and block boundaries
+        PartialRawData partial = new PartialRawData(segment);
+        for (int[] rows : new int[][]{{3, 5}, {12, 30}, {60, 85}, {133, 140}}) {
+            partial.readRowsAsync(rows[0], rows[1]).join();
+            IntBuffer actual = partial.getRows(rows[0], rows[1]);
+            assertEquals(full.slice(rows[0] * nAxis1, (rows[1] - rows[0]) * nAxis1), actual);
+        }
+        assertFalse(partial.isComplete());
+        partial.readRowsAsync(0, nAxis2).join();
+        assertTrue(partial.isComplete());
+        assertEquals(full, partial.toRawData().getBuffer());
+    }
+
+    private static long channelAcquires() {
+        FileChannelPool pool = FileChannelPool.instance();
+        return pool.getOpenedCount() + pool.getHitCount();
+    }
+
+    private static void checkRows(IntBuffer buffer, int firstRow, int lastRow) {
+        assertEquals((lastRow - firstRow) * NAXIS1, buffer.remaining());
+        for (int row = firstRow; row < lastRow; row++) {
+            for (int col = 0; col < NAXIS1; col++) {
+                assertEquals(value(row, col), buffer.get((row - firstRow) * NAXIS1 + col));
+            }
+        }
+    }
+
+    private static int value(int row, int col) {
+        return row * 1000 + col;
+    }
+
+    private Segment createSegment() throws IOException, FitsException {
+        File file = folder.newFile("a.fits");
+        ByteBuffer data = ByteBuffer.allocate(NAXIS1 * NAXIS2 * 4);
+        for (int row = 0; row < NAXIS2; row++) {
+            for (int col = 0; col < NAXIS1; col++) {
+                data.putInt(value(row, col));
+            }
+        }
+        Files.write(file.toPath(), data.array());
+        Map<String, Object> header = new HashMap<>();
+        header.put("EXTNAME", "Segment10");
+        header.put("BITPIX", 32);
+        header.put("NAXIS1", NAXIS1);
+        header.put("NAXIS2", NAXIS2);
+        header.put("DATASEC", "[3:18,1:290]");
+        header.put("CHANNEL", 1);
+        header.put("PC1_1Q", 0.0);
+        header.put("PC2_2Q", 0.0);
+        header.put("PC1_2Q", -1.0);
+        header.put("PC2_1Q", 1.0);
+        header.put("CRVAL1Q", 0.0);
+        header.put("CRVAL2Q", 0.0);
+        return new Segment(FitsHeaderValues.of(header), file, FileIdentity.of(file), 0, "R22", "S11", 'Q', null);
+    }
+}
@@ -0,0 +1,76 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.TruncatedFileException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests following a FITS file as it is written.
+ *
+ * @author tonyj
+ */
+public class PartialSegmentListTest {
+
+    @Test
+    public void testFollow() throws IOException, FitsException {
+        byte[] fits = ObjectStoreSegmentSourceTest.createFitsFile(4, 3);
+        File file = File.createTempFile("follow", ".fits");
+        file.deleteOnExit();
+        // Write the primary header, three complete segments and part of the fourth
+        int hduSize = 2 * 2880;
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(fits, 0, 2880 + 3 * hduSize + 2880 + 10);
+        }
+        List<Segment> partial = parse(file);
+        assertTrue(partial instanceof PartialSegmentList);
+        assertEquals(3, partial.size());
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(fits);
+        }
+        List<Segment[]> carried = new ArrayList<>();
+        List<Segment> complete = ((PartialSegmentList) partial).merge(parse(file), (old, segment) -> carried.add(new Segment[]{old, segment}));
+        assertFalse(complete instanceof PartialSegmentList);
+        assertEquals(8, complete.size());
+        // Every segment has the new identity, and those which were already available are matched with their replacements
+        FileIdentity identity = FileIdentity.of(file);
+        for (Segment segment : complete) {
+            assertEquals(identity, segment.getFileIdentity());
+        }
+        assertEquals(3, carried.size());
+        assertSame(partial.get(2), carried.get(2)[0]);
+        assertSame(complete.get(2), carried.get(2)[1]);
+    }
+
+    @Test(expected = TruncatedFileException.class)
+    public void testAbandoned() throws IOException, FitsException {
+        byte[] fits = ObjectStoreSegmentSourceTest.createFitsFile(4, 3);
+        File file = File.createTempFile("abandoned", ".fits");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(fits, 0, 2880 + 3 * 2 * 2880 + 2880 + 10);
+        }
+        // A file which has not been written to for a long time is no longer followed
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 3_600_000L));
+        FileIdentity identity = FileIdentity.of(file);
+        assertFalse(PartialSegmentList.isFollowable(identity));
+        try (FitsHeaderScanner scanner = new FitsHeaderScanner(file)) {
+            CachingReader.parseSegments(scanner, file.getName(), file, null, identity, 'E', null, PartialSegmentList.isFollowable(identity));
+        }
+    }
+
+    private static List<Segment> parse(File file) throws IOException, FitsException {
+        try (FitsHeaderScanner scanner = new FitsHeaderScanner(file)) {
+            return CachingReader.parseSegments(scanner, file.getName(), file, null, FileIdentity.of(file), 'E', null, true);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import org.junit.Test;
+
+/**
+ * Tests that the pixel kernels in use agree with the scalar kernels, including
+ * for lengths which are not a multiple of the vector length.
+ *
+ * @author tonyj
+ */
+public class PixelKernelsTest {
+
+    private final PixelKernels scalar = new PixelKernels.Scalar();
+    private final PixelKernels kernels = PixelKernels.instance();
+
+    @Test
+    public void testUnshuffle() {
+        Random random = new Random(1);
+        for (int n : new int[]{1, 7, 16, 61, 1000}) {
+            byte[] in = new byte[n * 4];
+            random.nextBytes(in);
+            int[] expected = new int[n + 1];
+            int[] actual = new int[n + 1];
+            scalar.unshuffle(in, n, expected, 1);
+            kernels.unshuffle(in, n, actual, 1);
+            assertArrayEquals(expected, actual);
+            assertArrayEquals(new int[]{(in[0] & 0xff) << 24 | (in[n] & 0xff) << 16 | (in[2 * n] & 0xff) << 8 | (in[3 * n] & 0xff)}, new int[]{actual[1]});
+        }
+    }
+
+    @Test
+    public void testBigEndianToInts() {
+        Random random = new Random(2);
+        for (int n : new int[]{1, 7, 16, 61, 5000}) {
+            byte[] bytes = new byte[n * 4 + 3];
+            random.nextBytes(bytes);
+            ByteBuffer heap = ByteBuffer.wrap(bytes).position(3);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).position(3);
+            int[] expected = new int[n];
+            for (int i = 0; i < n; i++) {
+                expected[i] = heap.getInt(3 + i * 4);
+            }
+            for (ByteBuffer in : new ByteBuffer[]{heap, direct, heap.slice()}) {
+                int[] actual = new int[n];
+                kernels.bigEndianToInts(in, actual, 0, n);
+                assertArrayEquals(expected, actual);
+                scalar.bigEndianToInts(in, actual, 0, n);
+                assertArrayEquals(expected, actual);
+            }
+        }
+    }
+}
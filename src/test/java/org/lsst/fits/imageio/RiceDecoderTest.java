@@ -0,0 +1,178 @@
+package org.lsst.fits.imageio;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import nom.tam.fits.compression.algorithm.rice.RiceCompressOption;
+import nom.tam.fits.compression.algorithm.rice.RiceCompressor;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests decoding RICE_1 tiles, using data compressed with a simple port of
+ * the cfitsio encoder, and cross checked against data compressed by nom.tam.
+ *
+ * @author tonyj
+ */
+public class RiceDecoderTest {
+
+    @Test
+    public void testDecode32() {
+        testDecode(4, createValues(Integer.MIN_VALUE, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testDecode16() {
+        testDecode(2, createValues(Short.MIN_VALUE, Short.MAX_VALUE));
+    }
+
+    @Test
+    public void testDecode8() {
+        testDecode(1, createValues(0, 255));
+    }
+
+    @Test
+    public void testNomTamEncoded() {
+        // nom.tam 1.15.2 does not wrap the differences between 8 and 16 bit pixels, so can not itself round
+        // trip values whose differences do not fit in a signed pixel. Those are covered by the tests above.
+        int[] ints = createValues(Integer.MIN_VALUE, Integer.MAX_VALUE);
+        int[] shorts = createValues(Short.MIN_VALUE / 2, Short.MAX_VALUE / 2);
+        int[] bytes = createValues(0, 127);
+        ShortBuffer shortBuffer = ShortBuffer.allocate(shorts.length);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(bytes.length);
+        for (int i = 0; i < shorts.length; i++) {
+            shortBuffer.put(i, (short) shorts[i]);
+            byteBuffer.put(i, (byte) bytes[i]);
+        }
+        for (int blockSize : new int[]{16, 32}) {
+            ByteBuffer compressed = ByteBuffer.allocate(ints.length * 8);
+            assertTrue(new RiceCompressor.IntRiceCompressor(option(blockSize, 4)).compress(IntBuffer.wrap(ints), compressed));
+            checkDecode(compressed, blockSize, 4, ints);
+
+            compressed = ByteBuffer.allocate(shorts.length * 8);
+            assertTrue(new RiceCompressor.ShortRiceCompressor(option(blockSize, 2)).compress(shortBuffer.duplicate(), compressed));
+            checkDecode(compressed, blockSize, 2, shorts);
+
+            compressed = ByteBuffer.allocate(bytes.length * 8);
+            assertTrue(new RiceCompressor.ByteRiceCompressor(option(blockSize, 1)).compress(byteBuffer.duplicate(), compressed));
+            checkDecode(compressed, blockSize, 1, bytes);
+        }
+    }
+
+    private static RiceCompressOption option(int blockSize, int bytePix) {
+        return new RiceCompressOption().setBlockSize(blockSize).setBytePix(bytePix);
+    }
+
+    private static void checkDecode(ByteBuffer compressed, int blockSize, int bytePix, int[] values) {
+        IntBuffer result = IntBuffer.allocate(values.length);
+        RiceDecoder.of(blockSize, bytePix).decompress(compressed.flip(), result);
+        assertArrayEquals("block size " + blockSize + " bytes per pixel " + bytePix, values, result.array());
+    }
+
+    private static void testDecode(int bytePix, int[] values) {
+        for (int blockSize : new int[]{16, 32}) {
+            ByteBuffer compressed = ByteBuffer.wrap(encode(values, blockSize, bytePix));
+            IntBuffer result = IntBuffer.allocate(values.length);
+            RiceDecoder.of(blockSize, bytePix).decompress(compressed, result);
+            assertArrayEquals(values, result.array());
+        }
+    }
+
+    // Blocks of constant, smoothly varying, noisy and completely random values
+    private static int[] createValues(int min, int max) {
+        Random random = new Random(1234);
+        int[] values = new int[200];
+        int mid = (int) (((long) min + max) / 2);
+        for (int i = 0; i < values.length; i++) {
+            if (i < 40) {
+                values[i] = mid + 7;
+            } else if (i < 80) {
+                values[i] = mid + i;
+            } else if (i < 150) {
+                values[i] = mid + (int) (random.nextGaussian() * 10);
+            } else {
+                values[i] = (int) (min + (long) (random.nextDouble() * ((long) max - min)));
+            }
+        }
+        return values;
+    }
+
+    static byte[] encode(int[] values, int blockSize, int bytePix) {
+        int fsBits = bytePix == 1 ? 3 : bytePix == 2 ? 4 : 5;
+        int fsMax = bytePix == 1 ? 6 : bytePix == 2 ? 14 : 25;
+        int bBits = 1 << fsBits;
+        long mask = bBits == 32 ? 0xffffffffL : (1L << bBits) - 1;
+        BitWriter out = new BitWriter();
+        out.write(values[0] & mask, bBits);
+        long lastPix = values[0];
+        long[] diff = new long[blockSize];
+        for (int i = 0; i < values.length; i += blockSize) {
+            int thisBlock = Math.min(blockSize, values.length - i);
+            double pixelSum = 0;
+            for (int j = 0; j < thisBlock; j++) {
+                long pdiff = (values[i + j] - lastPix) & mask;
+                // Sign extend the difference within the pixel size
+                if ((pdiff & (1L << (bBits - 1))) != 0) {
+                    pdiff -= mask + 1;
+                }
+                diff[j] = (pdiff < 0 ? ~(pdiff << 1) : (pdiff << 1)) & mask;
+                pixelSum += diff[j];
+                lastPix = values[i + j];
+            }
+            double dpsum = Math.max(0, (pixelSum - (thisBlock / 2) - 1) / thisBlock);
+            long psum = ((long) dpsum) >> 1;
+            int fs = 0;
+            for (; psum > 0; fs++) {
+                psum >>= 1;
+            }
+            if (fs >= fsMax) {
+                out.write(fsMax + 1, fsBits);
+                for (int j = 0; j < thisBlock; j++) {
+                    out.write(diff[j], bBits);
+                }
+            } else if (fs == 0 && pixelSum == 0) {
+                out.write(0, fsBits);
+            } else {
+                out.write(fs + 1, fsBits);
+                for (int j = 0; j < thisBlock; j++) {
+                    for (long top = diff[j] >> fs; top > 0; top--) {
+                        out.write(0, 1);
+                    }
+                    out.write(1, 1);
+                    if (fs > 0) {
+                        out.write(diff[j] & ((1L << fs) - 1), fs);
+                    }
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static class BitWriter {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private long buffer;
+        private int nBits;
+
+        void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                buffer = (buffer << 1) | ((value >> i) & 1);
+                if (++nBits == 8) {
+                    out.write((int) buffer);
+                    buffer = 0;
+                    nBits = 0;
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            if (nBits > 0) {
+                write(0, 8 - nBits);
+            }
+            return out.toByteArray();
+        }
+    }
+}
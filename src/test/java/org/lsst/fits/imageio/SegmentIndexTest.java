@@ -0,0 +1,121 @@
+package org.lsst.fits.imageio;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import nom.tam.fits.FitsException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests saving and restoring segments using the segment index.
+ *
+ * @author tonyj
+ */
+public class SegmentIndexTest {
+
+    private static final String WCS_LETTERS = "ABCDEFGHIJKLMNOP";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException, FitsException {
+        File file = createFile("a.fits");
+        FileIdentity identity = new FileIdentity(1000, 1234, null);
+        List<Segment> segments = createSegments(file, identity, 'A');
+        assertNull(SegmentIndex.read(file, identity, 'A'));
+        SegmentIndex.write(file, identity, 'A', segments);
+        SegmentIndex.write(file, identity, 'B', createSegments(file, identity, 'B'));
+
+        List<Segment> read = SegmentIndex.read(file, identity, 'A');
+        assertNotNull(read);
+        assertEquals(segments, read);
+        for (int i = 0; i < segments.size(); i++) {
+            assertEquals(segments.get(i).getSegmentName(), read.get(i).getSegmentName());
+            assertEquals(segments.get(i).getDataSec(), read.get(i).getDataSec());
+            assertEquals(segments.get(i).getWCSTranslation(false), read.get(i).getWCSTranslation(false));
+        }
+        assertEquals(createSegments(file, identity, 'B'), SegmentIndex.read(file, identity, 'B'));
+        assertNull(SegmentIndex.read(file, identity, 'C'));
+    }
+
+    @Test
+    public void testInvalidation() throws IOException, FitsException {
+        File file = createFile("a.fits");
+        FileIdentity identity = new FileIdentity(1000, 1234, null);
+        SegmentIndex.write(file, identity, 'A', createSegments(file, identity, 'A'));
+        assertNotNull(SegmentIndex.read(file, identity, 'A'));
+
+        // A change of size or modification time invalidates the index
+        assertNull(SegmentIndex.read(file, new FileIdentity(1001, 1234, null), 'A'));
+        assertNull(SegmentIndex.read(file, new FileIdentity(1000, 1235, null), 'A'));
+
+        // An index copied to another file is not used for that file
+        File other = createFile("b.fits");
+        Files.copy(new File(folder.getRoot(), ".a.fits.segidx").toPath(), new File(folder.getRoot(), ".b.fits.segidx").toPath());
+        assertNull(SegmentIndex.read(other, identity, 'A'));
+
+        // Writing for a new version of the file replaces the old entries
+        FileIdentity newIdentity = new FileIdentity(2000, 5678, null);
+        SegmentIndex.write(file, newIdentity, 'B', createSegments(file, newIdentity, 'B'));
+        assertNull(SegmentIndex.read(file, newIdentity, 'A'));
+        assertNotNull(SegmentIndex.read(file, newIdentity, 'B'));
+    }
+
+    @Test
+    public void testConcurrentWrites() throws IOException, FitsException {
+        File file = createFile("a.fits");
+        FileIdentity identity = new FileIdentity(1000, 1234, null);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            for (char wcsLetter : WCS_LETTERS.toCharArray()) {
+                List<Segment> segments = createSegments(file, identity, wcsLetter);
+                writes.add(CompletableFuture.runAsync(() -> SegmentIndex.write(file, identity, wcsLetter, segments), executor));
+            }
+            CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)).join();
+        } finally {
+            executor.shutdown();
+        }
+        for (char wcsLetter : WCS_LETTERS.toCharArray()) {
+            assertEquals(createSegments(file, identity, wcsLetter), SegmentIndex.read(file, identity, wcsLetter));
+        }
+    }
+
+    private File createFile(String name) throws IOException {
+        return folder.newFile(name);
+    }
+
+    private static List<Segment> createSegments(File file, FileIdentity identity, char wcsLetter) throws IOException, FitsException {
+        List<Segment> segments = new ArrayList<>();
+        for (int channel = 1; channel <= 2; channel++) {
+            Map<String, Object> header = new HashMap<>();
+            header.put("EXTNAME", "Segment1" + (channel - 1));
+            header.put("BITPIX", 32);
+            header.put("NAXIS1", 576);
+            header.put("NAXIS2", 2048);
+            header.put("DATASEC", "[11:522,1:2002]");
+            header.put("CHANNEL", channel);
+            header.put("PC1_1" + wcsLetter, 0.0);
+            header.put("PC2_2" + wcsLetter, 0.0);
+            header.put("PC1_2" + wcsLetter, -1.0);
+            header.put("PC2_1" + wcsLetter, 1.0 - 2 * (channel - 1));
+            header.put("CRVAL1" + wcsLetter, 512.0 * channel);
+            header.put("CRVAL2" + wcsLetter, 4004.0 + wcsLetter);
+            segments.add(new Segment(FitsHeaderValues.of(header), file, identity, 2880L * 4 * channel, "R22", "S11", wcsLetter, null));
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,273 @@
+package org.lsst.fits.imageio;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import nom.tam.fits.FitsException;
+import nom.tam.fits.compression.algorithm.hcompress.HCompressor;
+import nom.tam.fits.compression.algorithm.hcompress.HCompressorOption;
+import nom.tam.fits.compression.algorithm.plio.PLIOCompress;
+import nom.tam.fits.compression.algorithm.rice.RiceCompressOption;
+import nom.tam.fits.compression.algorithm.rice.RiceCompressor;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests decoding tiles with the less common compression types, using small
+ * hand made tiles, and larger tiles encoded by nom.tam.
+ *
+ * @author tonyj
+ */
+public class TileCompressionTest {
+
+    @Test
+    public void testNoCompress() throws FitsException {
+        // Two tiles of two rows of three 16 bit pixels
+        Map<String, Object> header = header("NOCOMPRESS", 16, 3, 4, 2, "1PB");
+        ByteBuffer data = table(new byte[][]{shorts(1, -2, 3, 4, 5, 6), shorts(7, 8, 9, 10, -11, 12)});
+        IntBuffer result = decode(header, data, 2, 12);
+        assertArrayEquals(new int[]{1, -2, 3, 4, 5, 6, 7, 8, 9, 10, -11, 12}, result.array());
+    }
+
+    @Test
+    public void testPlio() throws FitsException {
+        // Old style header, then a run of 3 pixels of 1, set the value to 5,
+        // output one pixel incremented by 2, then 2 zeros
+        short[] lineList = {0, 0, 8, 0x4003, 0x1005, 0, 0x6002, 0x0002};
+        ByteBuffer tile = ByteBuffer.allocate(lineList.length * 2);
+        tile.asShortBuffer().put(lineList);
+        Map<String, Object> header = header("PLIO_1", 32, 8, 1, 1, "1PI");
+        IntBuffer result = decode(header, table(new byte[][]{tile.array()}, 2), 1, 8);
+        assertArrayEquals(new int[]{1, 1, 1, 7, 0, 0, 0, 0}, result.array());
+    }
+
+    @Test
+    public void testHCompress() throws FitsException {
+        // A 2x2 tile with no bit planes, so all pixels are sum/4
+        ByteBuffer tile = ByteBuffer.allocate(2 + 4 * 3 + 8 + 3 + 1);
+        tile.put((byte) 0xdd).put((byte) 0x99).putInt(2).putInt(2).putInt(0).putLong(4 * 25).put(new byte[4]);
+        Map<String, Object> header = header("HCOMPRESS_1", 32, 2, 2, 2, "1PB");
+        IntBuffer result = decode(header, table(new byte[][]{tile.array()}), 1, 4);
+        assertArrayEquals(new int[]{25, 25, 25, 25}, result.array());
+    }
+
+    @Test
+    public void testPlioRoundTrip() throws FitsException {
+        // A mask image, mostly zero with runs of mask bits and a few large values, in tiles of 4 rows
+        int nAxis1 = 100;
+        int nAxis2 = 12;
+        int rowsPerTile = 4;
+        Random random = new Random(3);
+        int[] pixels = new int[nAxis1 * nAxis2];
+        for (int i = 0; i < 40; i++) {
+            int start = random.nextInt(pixels.length - 20);
+            Arrays.fill(pixels, start, start + 1 + random.nextInt(20), 1 << random.nextInt(8));
+        }
+        pixels[17] = 70_000;
+        pixels[pixels.length - 1] = (1 << 24) - 1;
+        byte[][] tiles = new byte[nAxis2 / rowsPerTile][];
+        for (int tile = 0; tile < tiles.length; tile++) {
+            ByteBuffer compressed = ByteBuffer.allocate(nAxis1 * rowsPerTile * 8);
+            assertTrue(new PLIOCompress.IntPLIOCompressor().compress(IntBuffer.wrap(pixels, tile * rowsPerTile * nAxis1, rowsPerTile * nAxis1).slice(), compressed));
+            // The encoder does not advance the buffer, the length is in the line list header
+            int length = (compressed.getShort(8) << 15) + compressed.getShort(6);
+            tiles[tile] = Arrays.copyOf(compressed.array(), length * 2);
+        }
+        Map<String, Object> header = header("PLIO_1", 32, nAxis1, nAxis2, rowsPerTile, "1PI");
+        IntBuffer result = decode(header, table(tiles, 2), tiles.length, pixels.length);
+        assertArrayEquals(pixels, result.array());
+    }
+
+    @Test
+    public void testHCompressRoundTrip() throws FitsException {
+        // Noisy bias level images with some stars, in tiles of 16 rows with a partial last tile
+        int nAxis1 = 61;
+        int nAxis2 = 45;
+        int rowsPerTile = 16;
+        int nTiles = (nAxis2 + rowsPerTile - 1) / rowsPerTile;
+        int[] pixels = noisyImage(nAxis1, nAxis2, new Random(4));
+        for (int scale : new int[]{0, 1, 4, 16}) {
+            byte[][] tiles = new byte[nTiles][];
+            int[] expected = new int[pixels.length];
+            for (int tile = 0; tile < nTiles; tile++) {
+                int start = tile * rowsPerTile * nAxis1;
+                int rows = Math.min(rowsPerTile, nAxis2 - tile * rowsPerTile);
+                HCompressorOption option = new HCompressorOption().setScale(scale).setTileWidth(nAxis1).setTileHeight(rows);
+                ByteBuffer compressed = ByteBuffer.allocate(rows * nAxis1 * 8 + 1024);
+                assertTrue(new HCompressor.IntHCompressor(option).compress(IntBuffer.wrap(pixels, start, rows * nAxis1).slice(), compressed));
+                tiles[tile] = Arrays.copyOf(compressed.array(), compressed.position());
+                // With a scale above 1 compression is lossy, so nom.tam's own decoder gives the expected pixels
+                IntBuffer reference = IntBuffer.wrap(expected, start, rows * nAxis1).slice();
+                new HCompressor.IntHCompressor(option).decompress(ByteBuffer.wrap(tiles[tile]), reference);
+            }
+            if (scale <= 1) {
+                assertArrayEquals(pixels, expected);
+            } else {
+                assertFalse(Arrays.equals(pixels, expected));
+            }
+            Map<String, Object> header = header("HCOMPRESS_1", 32, nAxis1, nAxis2, rowsPerTile, "1PB");
+            IntBuffer result = decode(header, table(tiles), nTiles, pixels.length);
+            assertArrayEquals("scale " + scale, expected, result.array());
+        }
+    }
+
+    @Test
+    public void testQuantized() throws FitsException {
+        int[] quantized = {0, 1, 2, 3, -4, Integer.MIN_VALUE + 1};
+        byte[] compressed = RiceDecoderTest.encode(quantized, 32, 4);
+        for (String method : new String[]{"NO_DITHER", "SUBTRACTIVE_DITHER_1"}) {
+            Map<String, Object> header = header("RICE_1", -32, 6, 1, 1, "1PB");
+            header.put("ZQUANTIZ", method);
+            header.put("ZSCALE", 0.5);
+            header.put("ZZERO", 100.0);
+            header.put("ZBLANK", Integer.MIN_VALUE + 1);
+            TileCompression compression = TileCompression.of(FitsHeaderValues.of(header));
+            FloatBuffer result = FloatBuffer.allocate(quantized.length);
+            compression.createDecoder().decode(table(new byte[][]{compressed}), 0, result);
+            for (int i = 0; i < quantized.length - 1; i++) {
+                double expected = quantized[i] * 0.5 + 100.0;
+                if ("NO_DITHER".equals(method)) {
+                    assertEquals(expected, result.get(i), 1e-6);
+                } else {
+                    // Dithering adds an offset within half a quantization step
+                    assertTrue(Math.abs(result.get(i) - expected) <= 0.25);
+                }
+            }
+            assertTrue(Float.isNaN(result.get(quantized.length - 1)));
+        }
+    }
+
+    private static IntBuffer decode(Map<String, Object> header, ByteBuffer data, int nTiles, int nPixels) throws FitsException {
+        TileCompression compression = TileCompression.of(FitsHeaderValues.of(header));
+        assertEquals(nTiles, compression.getTileCount());
+        IntBuffer result = IntBuffer.allocate(nPixels);
+        TileCompression.Decoder decoder = compression.createDecoder();
+        int tileSize = (Integer) header.get("ZTILE1") * (Integer) header.get("ZTILE2");
+        for (int tile = 0; tile < nTiles; tile++) {
+            decoder.decode(data, tile, result.slice(tile * tileSize, Math.min(tileSize, nPixels - tile * tileSize)));
+        }
+        return result;
+    }
+
+    /**
+     * A bias level with read noise, a gradient and a few saturated stars.
+     */
+    private static int[] noisyImage(int nAxis1, int nAxis2, Random random) {
+        int[] pixels = new int[nAxis1 * nAxis2];
+        for (int row = 0; row < nAxis2; row++) {
+            for (int col = 0; col < nAxis1; col++) {
+                pixels[row * nAxis1 + col] = 20_000 + row * 3 + (int) Math.round(random.nextGaussian() * 7);
+            }
+        }
+        for (int star = 0; star < 5; star++) {
+            int x = random.nextInt(nAxis1);
+            int y = random.nextInt(nAxis2);
+            for (int row = Math.max(0, y - 3); row < Math.min(nAxis2, y + 4); row++) {
+                for (int col = Math.max(0, x - 3); col < Math.min(nAxis1, x + 4); col++) {
+                    double r2 = (row - y) * (row - y) + (col - x) * (col - x);
+                    pixels[row * nAxis1 + col] += (int) Math.min(200_000, 300_000 * Math.exp(-r2 / 2));
+                }
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Compress an image with RICE_1, in tiles of the given number of rows,
+     * giving the table of tile descriptors followed by the heap, as stored in
+     * the data unit of a compressed image HDU.
+     */
+    static byte[] riceData(int[] pixels, int nAxis1, int rowsPerTile) {
+        int nAxis2 = pixels.length / nAxis1;
+        byte[][] tiles = new byte[(nAxis2 + rowsPerTile - 1) / rowsPerTile][];
+        for (int tile = 0; tile < tiles.length; tile++) {
+            int first = tile * rowsPerTile * nAxis1;
+            int length = Math.min(rowsPerTile * nAxis1, pixels.length - first);
+            ByteBuffer compressed = ByteBuffer.allocate(length * 8);
+            assertTrue(new RiceCompressor.IntRiceCompressor(new RiceCompressOption().setBlockSize(32).setBytePix(4)).compress(IntBuffer.wrap(pixels, first, length).slice(), compressed));
+            tiles[tile] = Arrays.copyOf(compressed.array(), compressed.position());
+        }
+        return table(tiles).array();
+    }
+
+    /**
+     * The header of a RICE_1 compressed image segment, with data written by
+     * {@link #riceData}.
+     */
+    static Map<String, Object> riceSegmentHeader(String extName, int nAxis1, int nAxis2, int rowsPerTile, int dataLength) {
+        Map<String, Object> header = header("RICE_1", 32, nAxis1, nAxis2, rowsPerTile, "1PB");
+        int nTiles = (nAxis2 + rowsPerTile - 1) / rowsPerTile;
+        header.put("ZIMAGE", true);
+        header.put("PCOUNT", dataLength - nTiles * 8);
+        header.put("ZNAME1", "BLOCKSIZE");
+        header.put("ZVAL1", 32);
+        header.put("ZNAME2", "BYTEPIX");
+        header.put("ZVAL2", 4);
+        header.put("EXTNAME", extName);
+        header.put("DATASEC", "[1:" + nAxis1 + ",1:" + nAxis2 + "]");
+        header.put("CHANNEL", 1);
+        header.put("PC1_1Q", 1.0);
+        header.put("PC2_2Q", 1.0);
+        header.put("PC1_2Q", 0.0);
+        header.put("PC2_1Q", 0.0);
+        header.put("CRVAL1Q", 0.0);
+        header.put("CRVAL2Q", 0.0);
+        return header;
+    }
+
+    private static Map<String, Object> header(String type, int bitpix, int nAxis1, int nAxis2, int rowsPerTile, String tform) {
+        Map<String, Object> header = new HashMap<>();
+        header.put("ZCMPTYPE", type);
+        header.put("ZBITPIX", bitpix);
+        header.put("ZNAXIS1", nAxis1);
+        header.put("ZNAXIS2", nAxis2);
+        header.put("ZTILE1", nAxis1);
+        header.put("ZTILE2", rowsPerTile);
+        header.put("NAXIS1", 8);
+        header.put("NAXIS2", (nAxis2 + rowsPerTile - 1) / rowsPerTile);
+        header.put("TFIELDS", 1);
+        header.put("TTYPE1", "COMPRESSED_DATA");
+        header.put("TFORM1", tform);
+        return header;
+    }
+
+    private static ByteBuffer table(byte[][] tiles) {
+        return table(tiles, 1);
+    }
+
+    /**
+     * Create a binary table with a single descriptor column, followed by the
+     * heap containing the tiles.
+     */
+    private static ByteBuffer table(byte[][] tiles, int elementSize) {
+        int heapSize = 0;
+        for (byte[] tile : tiles) {
+            heapSize += tile.length;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(tiles.length * 8 + heapSize);
+        int offset = 0;
+        for (byte[] tile : tiles) {
+            bb.putInt(tile.length / elementSize).putInt(offset);
+            offset += tile.length;
+        }
+        for (byte[] tile : tiles) {
+            bb.put(tile);
+        }
+        return bb.flip();
+    }
+
+    private static byte[] shorts(int... values) {
+        ByteBuffer bb = ByteBuffer.allocate(values.length * 2);
+        for (int value : values) {
+            bb.putShort((short) value);
+        }
+        return bb.array();
+    }
+}
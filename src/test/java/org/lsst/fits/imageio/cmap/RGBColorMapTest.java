@@ -0,0 +1,46 @@
+package org.lsst.fits.imageio.cmap;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Tests that drawing images of color map indexes through the color map's
+ * IndexColorModel gives the same pixels as the LookupOp previously applied to
+ * grey RGB images.
+ *
+ * @author tonyj
+ */
+public class RGBColorMapTest {
+
+    private static final RGBColorMap GREY = new SAOColorMap(256, "grey.sao");
+
+    @Test
+    public void testColorModelMatchesLookupOp() {
+        for (String name : new String[]{"a.sao", "b.sao", "bb.sao", "cubehelix0.sao", "rainbow.sao", "standard.sao"}) {
+            RGBColorMap cmap = new SAOColorMap(256, name);
+            BufferedImage grey = new BufferedImage(16, 16, BufferedImage.TYPE_INT_RGB);
+            BufferedImage indexed = new BufferedImage(16, 16, BufferedImage.TYPE_BYTE_INDEXED, GREY.getColorModel());
+            WritableRaster raster = indexed.getRaster();
+            for (int i = 0; i < 256; i++) {
+                grey.setRGB(i % 16, i / 16, GREY.getRGB(i));
+                raster.setSample(i % 16, i / 16, 0, i);
+            }
+            BufferedImage expected = draw(cmap.getLookupOp().filter(grey, null));
+            BufferedImage actual = draw(new BufferedImage(cmap.getColorModel(), raster, false, null));
+            for (int i = 0; i < 256; i++) {
+                assertEquals(name + " index " + i, expected.getRGB(i % 16, i / 16), actual.getRGB(i % 16, i / 16));
+            }
+        }
+    }
+
+    private static BufferedImage draw(BufferedImage image) {
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = result.createGraphics();
+        g2.drawImage(image, 0, 0, null);
+        g2.dispose();
+        return result;
+    }
+}